@@ -0,0 +1,142 @@
+package trackhub;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** Synthetic networks loaded straight into Main's State, and an in-memory HttpExchange to drive handlers without sockets. */
+final class Fixtures {
+    static final double LAT0 = -27.60, LNG0 = -48.60, SPAN_DEG = 0.2, STEP_DEG = 0.0002;
+
+    /**
+     * A closed random walk of the given length (about 20 m per step) starting somewhere in a
+     * SPAN_DEG box around (LAT0, LNG0), as {latE7, lngE7}.
+     */
+    static int[][] walk(Random rnd, int points){
+        int[] lat = new int[points], lng = new int[points];
+        double a = LAT0 + (rnd.nextDouble()-0.5)*SPAN_DEG, b = LNG0 + (rnd.nextDouble()-0.5)*SPAN_DEG;
+        double heading = rnd.nextDouble()*2*Math.PI;
+        for (int i=0;i<points;i++) {
+            lat[i] = Route.fixed(a); lng[i] = Route.fixed(b);
+            heading += (rnd.nextDouble()-0.5)*0.6;
+            a += Math.sin(heading)*STEP_DEG; b += Math.cos(heading)*STEP_DEG;
+        }
+        return new int[][]{lat, lng};
+    }
+
+    /** departures daily times spread over 05:00-23:00. */
+    static Schedule schedule(Random rnd, int departures){
+        int[] secs = new int[departures]; byte[] days = new byte[departures];
+        for (int i=0;i<departures;i++) { secs[i] = 5*3600 + rnd.nextInt(18*3600); days[i] = Schedule.DAILY; }
+        return new Schedule(secs, days);
+    }
+
+    /**
+     * Loads lines 1..lines (points each, departures each) with buses per line spread along their
+     * routes. The simulator is marked as started so handlers see frozen, deterministic positions.
+     */
+    static void network(int lines, int points, int buses, int departures) throws IOException {
+        Random rnd = new Random(42);
+        List<byte[]> recs = new ArrayList<>();
+        Main.Company c = new Main.Company(); c.id = 1; c.name = "Bench";
+        recs.add(Journal.company(c));
+        int busId = 1;
+        for (int id=1;id<=lines;id++) {
+            Main.Line l = new Main.Line(); l.id = id; l.companyId = 1; l.name = "L"+id;
+            recs.add(Journal.line(l));
+            int[][] w = walk(rnd, points);
+            recs.add(Journal.route(id, w[0], w[1]));
+            if (departures>0) recs.add(Journal.schedule(id, schedule(rnd, departures)));
+            for (int k=0;k<buses;k++) { Main.Bus b = new Main.Bus(); b.id = busId++; b.lineId = id; b.code = "B"+b.id; recs.add(Journal.bus(b)); }
+        }
+        Main.journal.commitAll(recs, false);
+        Main.resetSeqs(Main.state());
+        Main.tickerStarted = true;
+        Main.busStates.clear();
+        for (Main.Bus b : Main.state().buses.values()) {
+            Route r = Main.routeOf(Main.state().lines.get(b.lineId));
+            Main.BusState bs = new Main.BusState(); bs.busId = b.id; bs.lineId = b.lineId;
+            bs.idx = bs.lastIdx = rnd.nextInt(r.size()); bs.along = r.cum[bs.idx]; bs.speed = 6;
+            Main.busStates.put(b.id, bs);
+        }
+    }
+
+    /** An admin route upload body, {"lineId":..,"points":[{"lat":..,"lng":..},...]}. */
+    static byte[] routeBody(int lineId, int points, long seed){
+        int[][] w = walk(new Random(seed), points);
+        StringBuilder sb = new StringBuilder(points*40).append("{\"lineId\":").append(lineId).append(",\"points\":[");
+        for (int i=0;i<points;i++) sb.append(i==0?"":",").append("{\"lat\":").append(w[0][i]/1e7).append(",\"lng\":").append(w[1][i]/1e7).append('}');
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Counts what a handler writes and throws it away. */
+    static final class Sink extends OutputStream {
+        long n;
+        public void write(int b){ n++; }
+        public void write(byte[] b, int off, int len){ n += len; }
+    }
+
+    /** One request, replayable: call reset() before each handler invocation. */
+    static final class Exchange extends HttpExchange {
+        final Headers req = new Headers(), res = new Headers();
+        final String method; final URI uri; final byte[] body;
+        final Context ctx = new Context();
+        final Sink out = new Sink();
+        InputStream in; int code = -1;
+
+        Exchange(String method, String uri, byte[] body){ this.method = method; this.uri = URI.create(uri); this.body = body; reset(); }
+
+        Exchange reset(){
+            res.clear(); code = -1; out.n = 0;
+            in = body==null ? InputStream.nullInputStream() : new ByteArrayInputStream(body);
+            return this;
+        }
+
+        public Headers getRequestHeaders(){ return req; }
+        public Headers getResponseHeaders(){ return res; }
+        public URI getRequestURI(){ return uri; }
+        public String getRequestMethod(){ return method; }
+        public HttpContext getHttpContext(){ return ctx; }
+        public void close(){}
+        public InputStream getRequestBody(){ return in; }
+        public OutputStream getResponseBody(){ return out; }
+        public void sendResponseHeaders(int rCode, long responseLength){ code = rCode; }
+        public InetSocketAddress getRemoteAddress(){ return null; }
+        public int getResponseCode(){ return code; }
+        public InetSocketAddress getLocalAddress(){ return null; }
+        public String getProtocol(){ return "HTTP/1.1"; }
+        public Object getAttribute(String name){ return null; }
+        public void setAttribute(String name, Object value){}
+        public void setStreams(InputStream i, OutputStream o){}
+        public HttpPrincipal getPrincipal(){ return null; }
+    }
+
+    static final class Context extends HttpContext {
+        final Map<String,Object> attributes = new HashMap<>();
+        public HttpHandler getHandler(){ return null; }
+        public void setHandler(HttpHandler h){}
+        public String getPath(){ return "/"; }
+        public HttpServer getServer(){ return null; }
+        public Map<String,Object> getAttributes(){ return attributes; }
+        public List<Filter> getFilters(){ return List.of(); }
+        public Authenticator setAuthenticator(Authenticator auth){ return null; }
+        public Authenticator getAuthenticator(){ return null; }
+    }
+}
@@ -0,0 +1,60 @@
+package trackhub;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Route geometry: haversine, distance along a route (old per-hop haversine walk vs the cumulative
+ * array) and nearest point (old linear scan vs the grid). Pairs and query points are drawn once
+ * and cycled so every call does different work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoBench {
+    static final int MASK = 1023;
+
+    @Param({"1000", "10000"})
+    int points;
+
+    Route route;
+    List<Legacy.RoutePoint> legacy;
+    final int[] from = new int[MASK+1], to = new int[MASK+1];
+    final double[] lat = new double[MASK+1], lng = new double[MASK+1];
+    int k;
+
+    @Setup
+    public void setup(){
+        Random rnd = new Random(42);
+        int[][] w = Fixtures.walk(rnd, points);
+        route = new Route(w[0], w[1]);
+        legacy = Legacy.points(route);
+        for (int i=0;i<=MASK;i++) {
+            from[i] = rnd.nextInt(points); to[i] = rnd.nextInt(points);
+            int p = rnd.nextInt(points);
+            lat[i] = route.lat(p) + (rnd.nextDouble()-0.5)*0.002; lng[i] = route.lng(p) + (rnd.nextDouble()-0.5)*0.002;
+        }
+    }
+
+    int next(){ return k = (k+1) & MASK; }
+
+    @Benchmark
+    public double distanceMeters(){ int i = next(); return Main.distanceMeters(lat[i], lng[i], lat[i^1], lng[i^1]); }
+
+    @Benchmark
+    public double distanceAlongLegacy(){ int i = next(); return Legacy.distanceAlong(legacy, from[i], to[i]); }
+
+    @Benchmark
+    public double distanceAlong(){ int i = next(); return route.distanceAlong(from[i], to[i]); }
+
+    @Benchmark
+    public int nearestIndexLegacy(){ int i = next(); return Legacy.nearestIndex(legacy, lat[i], lng[i]); }
+
+    @Benchmark
+    public int nearestIndex(){ int i = next(); return route.nearest(lat[i], lng[i]); }
+}
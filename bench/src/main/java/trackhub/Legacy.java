@@ -0,0 +1,113 @@
+package trackhub;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The hot paths as they were before the rewrites, kept only as baselines for the benchmarks. */
+final class Legacy {
+    static final class RoutePoint { final double lat, lng; RoutePoint(double lat, double lng){ this.lat = lat; this.lng = lng; } }
+
+    static List<RoutePoint> points(Route r){
+        List<RoutePoint> out = new ArrayList<>(r.size());
+        for (int i=0;i<r.size();i++) out.add(new RoutePoint(r.lat(i), r.lng(i)));
+        return out;
+    }
+
+    static double distanceMeters(RoutePoint a, RoutePoint b){ return Main.distanceMeters(a.lat, a.lng, b.lat, b.lng); }
+
+    static double distanceAlong(List<RoutePoint> r, int fromIdx, int toIdx){
+        if (r.isEmpty()) return 0;
+        int n = r.size();
+        double sum = 0;
+        int i = fromIdx;
+        while (i != toIdx) {
+            RoutePoint a = r.get(i % n);
+            RoutePoint b = r.get((i+1) % n);
+            sum += distanceMeters(a,b);
+            i = (i+1) % n;
+            if (sum>1e7) break; // safety guard
+        }
+        return sum;
+    }
+
+    static int nearestIndex(List<RoutePoint> r, double lat, double lng){
+        int idx = 0; double best = Double.MAX_VALUE; for(int i=0;i<r.size();i++){ RoutePoint p=r.get(i); double d=(p.lat-lat)*(p.lat-lat)+(p.lng-lng)*(p.lng-lng); if (d<best){best=d; idx=i;} } return idx;
+    }
+
+    static String nextDeparture(List<String> times){
+        LocalTime now = LocalTime.now();
+        LocalTime best = null;
+        for (String t:times){
+            try {
+                LocalTime lt = LocalTime.parse(t);
+                if (lt.isAfter(now) && (best==null || lt.isBefore(best))) best = lt;
+            } catch(Exception ignore) {}
+        }
+        return best==null? (times.isEmpty()?"":times.get(0)) : best.toString();
+    }
+
+    static List<Main.Line> searchRoutes(Iterable<Main.Line> lines, String q){
+        String term = q.toLowerCase();
+        List<Main.Line> out = new ArrayList<>();
+        for (Main.Line l : lines) if (term.isEmpty() || (l.name!=null && l.name.toLowerCase().contains(term))) out.add(l);
+        return out;
+    }
+
+    static String extractField(String json, String field) {
+        String f = "\""+field+"\"";
+        int i = json.indexOf(f);
+        if (i<0) return "";
+        int c = json.indexOf(':', i);
+        if (c<0) return "";
+        int start = c+1;
+        while (start<json.length() && Character.isWhitespace(json.charAt(start))) start++;
+        char ch = json.charAt(start);
+        if (ch=='\"') {
+            int end = json.indexOf('"', start+1);
+            if (end<0) return "";
+            return json.substring(start+1, end);
+        } else {
+            int end = start;
+            while (end<json.length() && ",}\n\r".indexOf(json.charAt(end))==-1) end++;
+            return json.substring(start, end).trim();
+        }
+    }
+
+    static String extractArray(String json, String field) {
+        String f = "\""+field+"\"";
+        int i = json.indexOf(f);
+        if (i<0) return "[]";
+        int c = json.indexOf(':', i);
+        int start = json.indexOf('[', c);
+        if (start<0) return "[]";
+        int depth = 0; int end = start;
+        while (end<json.length()) {
+            char ch = json.charAt(end);
+            if (ch=='[') depth++;
+            if (ch==']') {depth--; if (depth==0) break;}
+            end++;
+        }
+        return json.substring(start, end+1);
+    }
+
+    static List<String> splitItems(String arrayJson) {
+        List<String> items = new ArrayList<>();
+        int i = arrayJson.indexOf('[')+1;
+        int start = i;
+        int depth = 0;
+        while (i<arrayJson.length()) {
+            char ch = arrayJson.charAt(i);
+            if (ch=='{') depth++;
+            if (ch=='}') depth--;
+            if (ch==',' && depth==0) {
+                items.add(arrayJson.substring(start, i));
+                start = i+1;
+            }
+            i++;
+        }
+        String last = arrayJson.substring(start, arrayJson.lastIndexOf(']'));
+        if (!last.trim().isEmpty()) items.add(last);
+        return items;
+    }
+}
@@ -0,0 +1,117 @@
+package trackhub;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic passengers against a running server: an open-loop mix of the passenger read endpoints at
+ * a fixed rate, to go with a simulated fleet:
+ *
+ *   SIM_BUSES=100000 PERSIST=false java -jar server/target/trackhub-server.jar &
+ *   java -Drate=2000 -cp bench/target/benchmarks.jar trackhub.PassengerLoad
+ *
+ * System properties:
+ *   url       server base URL (http://127.0.0.1:8000)
+ *   rate      requests per second (500)
+ *   seconds   how long to run (30)
+ *   inflight  most requests outstanding at once (256); arrivals past it are counted as dropped
+ *   seed      lines x buses per line to create through the admin API first (20x0); 0 skips it
+ *
+ * Each arrival is a passenger at a random point of the Fixtures area asking for the buses near
+ * them (50%), searching lines by the first letters of a name (15%), for departures (15%), for a
+ * trip to another point (10%) or for a line's schedule (10%). Latency runs from the arrival's
+ * scheduled time, not from when it was sent, so a server that falls behind shows it in the
+ * percentiles instead of slowing the generator down. Every 5 s the interval's figures are printed;
+ * at the end, percentiles per kind and the server's simulator metrics.
+ */
+public final class PassengerLoad {
+    static final String[] KINDS = {"near", "search", "departures", "plan", "schedule"};
+    static final int[] WEIGHTS = {50, 15, 15, 10, 10};
+    static final Pattern LINE = Pattern.compile("\"id\"\\s*:\\s*(\\d+)\\s*,\\s*\"name\"\\s*:\\s*\"([^\"]*)\"");
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("url", "http://127.0.0.1:8000");
+        int rate = Integer.getInteger("rate", 500), seconds = Integer.getInteger("seconds", 30), inflight = Integer.getInteger("inflight", 256);
+        String seed = System.getProperty("seed", "20x0");
+        if (!seed.equals("0")) SseLoad.seed(url, seed);
+
+        List<Integer> lineIds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Matcher m = LINE.matcher(SseLoad.get(url+"/api/passenger/searchRoutes?limit=200"));
+        while (m.find()) { lineIds.add(Integer.parseInt(m.group(1))); names.add(m.group(2)); }
+        if (lineIds.isEmpty()) throw new IllegalStateException("no lines; seed some");
+        System.out.printf("%d req/s for %d s on %s (%d lines, at most %d in flight)%n", rate, seconds, url, lineIds.size(), inflight);
+
+        HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        Semaphore slots = new Semaphore(inflight);
+        Histogram[] total = new Histogram[KINDS.length];
+        for (int k=0;k<KINDS.length;k++) total[k] = new Histogram();
+        Histogram[] interval = {new Histogram()};
+        AtomicLong errors = new AtomicLong();
+        SplittableRandom rnd = new SplittableRandom(42);
+        long dropped = 0, sent = 0, intervalSent = 0;
+        long t0 = System.nanoTime(), end = t0 + seconds*1_000_000_000L, lastReport = t0, gap = 1_000_000_000L/rate;
+        for (long due = t0; due < end; due += gap) {
+            long wait = due-System.nanoTime();
+            if (wait>0) LockSupport.parkNanos(wait);
+            if (!slots.tryAcquire()) { dropped++; continue; }
+            int kind = kind(rnd);
+            String path = path(kind, rnd, lineIds, names);
+            long at = due;
+            Histogram h = total[kind];
+            http.sendAsync(HttpRequest.newBuilder(URI.create(url+path)).build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((r, e) -> {
+                    slots.release();
+                    if (e!=null || r.statusCode()>=400) { errors.incrementAndGet(); return; }
+                    long us = (System.nanoTime()-at)/1000;
+                    h.record(us); interval[0].record(us);
+                });
+            sent++; intervalSent++;
+            long now = System.nanoTime();
+            if (now-lastReport >= 5_000_000_000L) {
+                Histogram iv = interval[0];
+                System.out.printf("t=%3ds req/s=%.0f dropped=%d errors=%d ms p50=%.1f p99=%.1f max=%.1f%n",
+                        (now-t0)/1_000_000_000L, intervalSent/((now-lastReport)/1e9), dropped, errors.get(),
+                        iv.percentile(0.5)/1000.0, iv.percentile(0.99)/1000.0, iv.percentile(1.0)/1000.0);
+                interval[0] = new Histogram(); intervalSent = 0; lastReport = now;
+            }
+        }
+        slots.acquire(inflight);
+        System.out.printf("total sent=%d dropped=%d errors=%d%n", sent, dropped, errors.get());
+        for (int k=0;k<KINDS.length;k++)
+            System.out.printf("  %-10s n=%-7d ms p50=%.1f p99=%.1f p999=%.1f max=%.1f%n", KINDS[k], total[k].total.get(),
+                    total[k].percentile(0.5)/1000.0, total[k].percentile(0.99)/1000.0, total[k].percentile(0.999)/1000.0, total[k].percentile(1.0)/1000.0);
+        String metrics = SseLoad.get(url+"/metrics");
+        for (String line : metrics.split("\n"))
+            if (!line.startsWith("#") && !line.contains("_bucket") && (line.startsWith("trackhub_sim") || line.startsWith("trackhub_tick") || line.startsWith("trackhub_buses") || line.startsWith("jvm_gc")))
+                System.out.println("  server "+line);
+    }
+
+    static int kind(SplittableRandom rnd){
+        int r = rnd.nextInt(100);
+        for (int k=0;k<WEIGHTS.length;k++) { if (r<WEIGHTS[k]) return k; r -= WEIGHTS[k]; }
+        return 0;
+    }
+
+    static String path(int kind, SplittableRandom rnd, List<Integer> lineIds, List<String> names){
+        double lat = Fixtures.LAT0 + (rnd.nextDouble()-0.5)*Fixtures.SPAN_DEG, lng = Fixtures.LNG0 + (rnd.nextDouble()-0.5)*Fixtures.SPAN_DEG;
+        int i = rnd.nextInt(lineIds.size());
+        switch (kind) {
+            case 0: return "/api/buses/near?lat="+lat+"&lng="+lng+"&radius=1000";
+            case 1: { String n = names.get(i); return "/api/passenger/searchRoutes?limit=10&q="+java.net.URLEncoder.encode(n.substring(0, Math.min(n.length(), 1+rnd.nextInt(4))), java.nio.charset.StandardCharsets.UTF_8); }
+            case 2: return "/api/departures?n=10&lines="+lineIds.get(i);
+            case 3: return "/api/plan?originLat="+lat+"&originLng="+lng+"&destLat="+(Fixtures.LAT0+(rnd.nextDouble()-0.5)*Fixtures.SPAN_DEG)+"&destLng="+(Fixtures.LNG0+(rnd.nextDouble()-0.5)*Fixtures.SPAN_DEG);
+            default: return "/api/line/schedule?line="+lineIds.get(i);
+        }
+    }
+}
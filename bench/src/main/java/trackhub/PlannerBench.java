@@ -0,0 +1,50 @@
+package trackhub;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Trip planning. plan runs PlannerHandler (the timetable planner over cached line indexes);
+ * lineScan is its fallback, which snaps origin and destination onto every line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlannerBench {
+    @Param({"10", "100", "1000"})
+    int lines;
+
+    @Param({"1000"})
+    int points;
+
+    @Param({"50"})
+    int departures;
+
+    Fixtures.Exchange plan;
+    final Main.PlannerHandler handler = new Main.PlannerHandler();
+    final double oLat = Fixtures.LAT0-0.02, oLng = Fixtures.LNG0-0.02, dLat = Fixtures.LAT0+0.02, dLng = Fixtures.LNG0+0.02;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.network(lines, points, 0, departures);
+        plan = new Fixtures.Exchange("GET", "/api/plan?originLat="+oLat+"&originLng="+oLng+"&destLat="+dLat+"&destLng="+dLng+"&time=08:00", null);
+    }
+
+    @Benchmark
+    public long plan() throws IOException { handler.handle(plan.reset()); return plan.out.n; }
+
+    @Benchmark
+    public int lineScan(){
+        int best = -1, bestLen = Integer.MAX_VALUE;
+        for (Main.Line l : Main.state().lines.values()) {
+            Route r = Main.routeOf(l);
+            int oi = r.nearest(oLat, oLng), di = r.nearest(dLat, dLng);
+            if (oi<=di && di-oi<bestLen) { bestLen = di-oi; best = l.id; }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,44 @@
+package trackhub;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** JSON responses built by the real handlers, written to a discarding stream. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBench {
+    @Param({"10", "100", "1000"})
+    int lines;
+
+    @Param({"1000"})
+    int points;
+
+    @Param({"5"})
+    int busesPerLine;
+
+    Fixtures.Exchange nearRadius, nearAll, route;
+    final Main.BusesNearHandler near = new Main.BusesNearHandler();
+    final Main.RouteGetHandler routeGet = new Main.RouteGetHandler();
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.network(lines, points, busesPerLine, 0);
+        nearRadius = new Fixtures.Exchange("GET", "/api/buses/near?lat="+Fixtures.LAT0+"&lng="+Fixtures.LNG0+"&radius=2000", null);
+        nearAll = new Fixtures.Exchange("GET", "/api/buses/near?lat="+Fixtures.LAT0+"&lng="+Fixtures.LNG0, null);
+        route = new Fixtures.Exchange("GET", "/api/routes/get?line=1", null);
+    }
+
+    @Benchmark
+    public long busesNearRadius() throws IOException { near.handle(nearRadius.reset()); return nearRadius.out.n; }
+
+    @Benchmark
+    public long busesNearAll() throws IOException { near.handle(nearAll.reset()); return nearAll.out.n; }
+
+    @Benchmark
+    public long routeGet() throws IOException { routeGet.handle(route.reset()); return route.out.n; }
+}
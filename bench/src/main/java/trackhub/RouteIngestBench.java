@@ -0,0 +1,80 @@
+package trackhub;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Bulk route upload. parseLegacy is the old extractField/extractArray/splitItems path; parse is the
+ * streaming JsonReader loop of AdminRouteHandler; ingest runs the whole handler, which also builds
+ * the Route (cumulative metres, grid) and publishes a new State.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteIngestBench {
+    @Param({"1000", "10000", "100000"})
+    int points;
+
+    byte[] body;
+    final double[] lat = new double[100_000], lng = new double[100_000];
+    Fixtures.Exchange upload;
+    final Main.AdminRouteHandler handler = new Main.AdminRouteHandler();
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.network(1, 10, 0, 0);
+        body = Fixtures.routeBody(1, points, 7);
+        upload = new Fixtures.Exchange("POST", "/api/admin/route", body);
+    }
+
+    @Benchmark
+    public int parseLegacy(){
+        String json = new String(body, StandardCharsets.UTF_8);
+        int lineId = Integer.parseInt(Legacy.extractField(json, "lineId"));
+        int n = 0;
+        for (String item : Legacy.splitItems(Legacy.extractArray(json, "points"))) {
+            lat[n] = Double.parseDouble(Legacy.extractField(item, "lat"));
+            lng[n++] = Double.parseDouble(Legacy.extractField(item, "lng"));
+        }
+        return lineId+n;
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        JsonReader r = new JsonReader(new ByteArrayInputStream(body));
+        int lineId = 0, n = 0;
+        r.beginObject();
+        while (r.hasNext()) {
+            String k = r.nextName();
+            if (k.equals("lineId")) lineId = r.nextInt();
+            else if (k.equals("points")) {
+                r.beginArray();
+                while (r.hasNext()) {
+                    r.beginObject();
+                    while (r.hasNext()) {
+                        String pk = r.nextName();
+                        if (pk.equals("lat")) lat[n] = r.nextDouble();
+                        else if (pk.equals("lng")) lng[n] = r.nextDouble();
+                        else r.skipValue();
+                    }
+                    r.endObject();
+                    n++;
+                }
+                r.endArray();
+            } else r.skipValue();
+        }
+        return lineId+n;
+    }
+
+    @Benchmark
+    public long ingest() throws IOException {
+        handler.handle(upload.reset());
+        return upload.out.n;
+    }
+}
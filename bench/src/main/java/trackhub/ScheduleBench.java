@@ -0,0 +1,38 @@
+package trackhub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Next departure: the old parse-every-string scan against the per-weekday sorted arrays. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBench {
+    @Param({"10", "100", "1000"})
+    int departures;
+
+    Schedule schedule;
+    final List<String> times = new ArrayList<>();
+    int sec;
+
+    @Setup
+    public void setup(){
+        schedule = Fixtures.schedule(new Random(42), departures);
+        for (int s : schedule.secs) times.add(Main.clock(s));
+    }
+
+    @Benchmark
+    public String nextDepartureLegacy(){ return Legacy.nextDeparture(times); }
+
+    @Benchmark
+    public String nextDeparture(){ return Main.nextDeparture(schedule, Schedule.today()); }
+
+    @Benchmark
+    public int next(){ sec = (sec+397) % 86400; return schedule.next(3, sec); }
+}
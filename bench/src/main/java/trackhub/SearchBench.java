@@ -0,0 +1,46 @@
+package trackhub;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** searchRoutes: the old lowercase-and-contains scan against the trigram index, top 20. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBench {
+    static final String[] WORDS = {"Palhoça","Centro","Estreito","Beira-Mar","São","José","Kobrasol","Campinas","Trindade","Córrego",
+            "Grande","Ingleses","Canasvieiras","Lagoa","Conceição","Itacorubi","Santa","Mônica","Barreiros","Biguaçu"};
+
+    @Param({"100", "1000", "10000"})
+    int lines;
+
+    @Param({"palh", "centro", "plahoca", "sao jose"})
+    String query;
+
+    @Setup
+    public void setup() throws IOException {
+        Random rnd = new Random(42);
+        List<byte[]> recs = new ArrayList<>();
+        Main.Company c = new Main.Company(); c.id = 1; c.name = "Bench";
+        recs.add(Journal.company(c));
+        for (int id=1;id<=lines;id++) {
+            Main.Line l = new Main.Line(); l.id = id; l.companyId = 1;
+            l.name = (100+id)+" "+WORDS[rnd.nextInt(WORDS.length)]+" - "+WORDS[rnd.nextInt(WORDS.length)];
+            recs.add(Journal.line(l));
+        }
+        Main.journal.commitAll(recs, false);
+    }
+
+    @Benchmark
+    public int scanLegacy(){ return Legacy.searchRoutes(Main.state().lines.values(), query).size(); }
+
+    @Benchmark
+    public int search(){ return Main.lineSearch.search(query, 0, 20).size(); }
+}
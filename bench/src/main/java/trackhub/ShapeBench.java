@@ -0,0 +1,60 @@
+package trackhub;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Route bodies as routes/get builds them on a cache miss: every point as JSON objects (the old
+ * body) against the zoom-simplified JSON, encoded polyline and delta-varint forms, plus the
+ * one-off Douglas-Peucker pass a route upload now pays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeBench {
+    @Param({"1000", "10000"})
+    int points;
+
+    @Param({"15"})
+    int zoom;
+
+    Route route;
+    int[] all;
+
+    @Setup
+    public void setup(){
+        int[][] w = Fixtures.walk(new Random(42), points);
+        route = new Route(w[0], w[1]);
+        all = route.simplified(0, points-1, -1);
+    }
+
+    @Benchmark
+    public byte[] jsonFull(){
+        JsonWriter w = new JsonWriter(64+points*40);
+        w.beginObject().name("points").beginArray();
+        Main.writePoints(w, route, all);
+        return w.endArray().endObject().toByteArray();
+    }
+
+    @Benchmark
+    public byte[] jsonZoom(){
+        int[] idx = route.simplified(0, points-1, route.tolerance(zoom));
+        JsonWriter w = new JsonWriter(64+idx.length*40);
+        w.beginObject().name("points").beginArray();
+        Main.writePoints(w, route, idx);
+        return w.endArray().endObject().toByteArray();
+    }
+
+    @Benchmark
+    public byte[] polylineZoom(){ return Main.polyline(route, route.simplified(0, points-1, route.tolerance(zoom))); }
+
+    @Benchmark
+    public byte[] binaryFull(){ return Main.deltaVarint(route, all); }
+
+    @Benchmark
+    public float[] significance(){ return Route.significance(route.latE7, route.lngE7); }
+}
@@ -0,0 +1,153 @@
+package trackhub;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Many concurrent SSE clients against a running server, over real sockets:
+ *
+ *   PERSIST=false java -jar server/target/trackhub-server.jar &
+ *   java -Dclients=5000 -cp bench/target/benchmarks.jar trackhub.SseLoad
+ *
+ * System properties:
+ *   url      server base URL (http://127.0.0.1:8000)
+ *   clients  concurrent streams (1000); raise ulimit -n for more than about 1000
+ *   rate     new connections per second (500)
+ *   seconds  how long to hold all streams open (30)
+ *   path     stream path; {bus} is replaced round-robin by the seeded bus ids (/api/bus/stream?id={bus})
+ *   seed     lines x buses per line to create through the admin API first (20x10); 0 skips it
+ *
+ * One selector thread reads every stream. A frame ends at a blank line; the gap between frames on
+ * a stream is recorded, so tick jitter and slow delivery show up in p99 and max. Every 5 s the
+ * interval's figures are printed, and at the end the server's own SSE and ticker metrics.
+ */
+public final class SseLoad {
+    static final class Conn {
+        final SocketChannel ch; final byte[] request;
+        long last; int frames; boolean nl, statusChecked, connected;
+        Conn(SocketChannel ch, byte[] request){ this.ch = ch; this.request = request; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("url", "http://127.0.0.1:8000");
+        int clients = Integer.getInteger("clients", 1000), rate = Integer.getInteger("rate", 500), seconds = Integer.getInteger("seconds", 30);
+        String path = System.getProperty("path", "/api/bus/stream?id={bus}");
+        String seed = System.getProperty("seed", "20x10");
+        URI base = URI.create(url);
+        InetSocketAddress addr = new InetSocketAddress(base.getHost(), base.getPort()<0 ? 80 : base.getPort());
+
+        List<Integer> buses = seed.equals("0") ? List.of() : seed(url, seed);
+        if (path.contains("{bus}") && buses.isEmpty()) throw new IllegalStateException("path needs {bus} ids; seed some buses");
+        System.out.printf("%d clients at %d/s for %d s on %s%s (%d buses)%n", clients, rate, seconds, url, path, buses.size());
+
+        Selector sel = Selector.open();
+        ByteBuffer buf = ByteBuffer.allocateDirect(1<<16);
+        Histogram interval = new Histogram(), total = new Histogram();
+        long t0 = System.nanoTime(), lastReport = t0, end = Long.MAX_VALUE;
+        long frames = 0, intervalFrames = 0;
+        int opened = 0, open = 0, failed = 0, closed = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            for (long due = Math.min(clients, (now-t0)/1_000_000L*rate/1000+1); opened < due; opened++) {
+                String p = path.replace("{bus}", buses.isEmpty() ? "" : String.valueOf(buses.get(opened % buses.size())));
+                byte[] req = ("GET "+p+" HTTP/1.1\r\nHost: "+base.getHost()+"\r\nAccept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                SocketChannel ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.connect(addr);
+                ch.register(sel, SelectionKey.OP_CONNECT, new Conn(ch, req));
+            }
+            if (opened==clients && end==Long.MAX_VALUE) end = now + seconds*1_000_000_000L;
+            sel.select(100);
+            for (SelectionKey k : sel.selectedKeys()) {
+                Conn c = (Conn)k.attachment();
+                try {
+                    if (k.isConnectable()) {
+                        c.ch.finishConnect();
+                        ByteBuffer r = ByteBuffer.wrap(c.request);
+                        while (r.hasRemaining()) c.ch.write(r);
+                        k.interestOps(SelectionKey.OP_READ);
+                        c.connected = true; open++;
+                    } else if (k.isReadable()) {
+                        buf.clear();
+                        int n = c.ch.read(buf);
+                        if (n<0) { k.cancel(); c.ch.close(); open--; closed++; continue; }
+                        buf.flip();
+                        if (!c.statusChecked && n>=12) {
+                            c.statusChecked = true;
+                            if (buf.get(9)!='2') { k.cancel(); c.ch.close(); open--; failed++; continue; }
+                        }
+                        long at = System.nanoTime();
+                        while (buf.hasRemaining()) {
+                            byte b = buf.get();
+                            if (b!='\n') { c.nl = false; continue; }
+                            if (!c.nl) { c.nl = true; continue; }
+                            c.nl = false;
+                            if (c.frames++>0) { long gap = (at-c.last)/1_000_000L; interval.record(gap); total.record(gap); }
+                            c.last = at; frames++; intervalFrames++;
+                        }
+                    }
+                } catch (IOException e) { k.cancel(); try { c.ch.close(); } catch (IOException ignore) {} failed++; if (c.connected) open--; }
+            }
+            sel.selectedKeys().clear();
+            if (now-lastReport >= 5_000_000_000L) {
+                double secs = (now-lastReport)/1e9;
+                System.out.printf("t=%3ds open=%d failed=%d closed=%d frames/s=%.0f gap ms p50=%d p99=%d max=%d%n",
+                        (now-t0)/1_000_000_000L, open, failed, closed, intervalFrames/secs, interval.percentile(0.5), interval.percentile(0.99), interval.percentile(1.0));
+                interval = new Histogram(); intervalFrames = 0; lastReport = now;
+            }
+        }
+        for (SelectionKey k : sel.keys()) k.channel().close();
+        System.out.printf("total frames=%d failed=%d closed=%d gap ms p50=%d p99=%d p999=%d max=%d%n",
+                frames, failed, closed, total.percentile(0.5), total.percentile(0.99), total.percentile(0.999), total.percentile(1.0));
+        String metrics = get(url+"/metrics");
+        for (String line : metrics.split("\n"))
+            if (!line.startsWith("#") && !line.contains("_bucket") && (line.startsWith("trackhub_sse") || line.startsWith("trackhub_fleet") || line.startsWith("trackhub_tick") || line.startsWith("jvm_gc")))
+                System.out.println("  server "+line);
+    }
+
+    static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+    static final HttpClient http = HttpClient.newHttpClient();
+
+    /** Creates lines x buses through the admin API and returns the bus ids. */
+    static List<Integer> seed(String url, String spec) throws IOException, InterruptedException {
+        String[] p = spec.split("x");
+        int lines = Integer.parseInt(p[0]), perLine = Integer.parseInt(p[1]);
+        int company = id(post(url+"/api/admin/company", "{\"name\":\"Load\"}"));
+        List<Integer> buses = new ArrayList<>();
+        for (int i=0;i<lines;i++) {
+            int line = id(post(url+"/api/admin/line", "{\"companyId\":"+company+",\"name\":\"LOAD-"+i+"\"}"));
+            post(url+"/api/admin/route", new String(Fixtures.routeBody(line, 500, i), StandardCharsets.UTF_8));
+            for (int k=0;k<perLine;k++) buses.add(id(post(url+"/api/admin/bus", "{\"lineId\":"+line+",\"code\":\"LD"+i+"-"+k+"\"}")));
+        }
+        return buses;
+    }
+
+    static int id(String json){
+        Matcher m = ID.matcher(json);
+        if (!m.find()) throw new IllegalStateException("no id in "+json);
+        return Integer.parseInt(m.group(1));
+    }
+
+    static String post(String url, String body) throws IOException, InterruptedException {
+        HttpResponse<String> r = http.send(HttpRequest.newBuilder(URI.create(url)).POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+        if (r.statusCode()!=200) throw new IOException(url+" answered "+r.statusCode()+": "+r.body());
+        return r.body();
+    }
+
+    static String get(String url) throws IOException, InterruptedException {
+        return http.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString()).body();
+    }
+}
@@ -0,0 +1,29 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class AssetCacheTest {
+    @Test
+    void satisfiableRanges(){
+        assertArrayEquals(new long[]{0, 99}, AssetCache.range("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, AssetCache.range("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999}, AssetCache.range("bytes=-100", 1000));
+        assertArrayEquals(new long[]{990, 999}, AssetCache.range("bytes=990-5000", 1000));
+    }
+
+    @Test
+    void invalidRangesAreIgnored(){
+        assertArrayEquals(new long[0], AssetCache.range("bytes=500-100", 1000));
+        assertArrayEquals(new long[0], AssetCache.range("bytes=--5", 1000));
+        assertArrayEquals(new long[0], AssetCache.range("bytes=1-2-3", 1000));
+        assertArrayEquals(new long[0], AssetCache.range("bytes=0-1,5-6", 1000));
+        assertArrayEquals(new long[0], AssetCache.range("items=0-1", 1000));
+    }
+
+    @Test
+    void unsatisfiableRanges(){
+        assertNull(AssetCache.range("bytes=1000-", 1000));
+        assertNull(AssetCache.range("bytes=-0", 1000));
+    }
+}
@@ -0,0 +1,100 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Two nodes over the loopback transport. They share Main's State, as two fully replicated nodes would. */
+class ClusterTest {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    Cluster.LoopbackTransport loop;
+    Cluster a, b;
+    int mine, theirs;   // a line owned by node 0 and one owned by node 1
+
+    @BeforeEach
+    void twoNodes(){
+        Main.tickerStarted = true; // peers start the simulator on their first message; not here
+        loop = new Cluster.LoopbackTransport(2);
+        Cluster.Transport recorded = (node, topic, body) -> { calls.add(node+":"+topic); return loop.call(node, topic, body); };
+        a = loop.nodes[0] = new Cluster(0, 2, recorded, "s");
+        b = loop.nodes[1] = new Cluster(1, 2, recorded, "s");
+        mine = theirs = -1;
+        for (int id=1; mine<0 || theirs<0; id++) { if (a.owner(id)==0 && mine<0) mine = id; if (a.owner(id)==1 && theirs<0) theirs = id; }
+    }
+
+    @AfterEach
+    void reset(){
+        Main.busStates.clear();
+        Main.stateRef.set(new Main.State());
+    }
+
+    static Main.Bus bus(int id, int lineId){ Main.Bus b = new Main.Bus(); b.id = id; b.lineId = lineId; b.code = "B"+id; return b; }
+
+    @Test
+    void nodesAgreeOnOwnersAndStandbys(){
+        for (int id=1;id<500;id++) {
+            assertEquals(a.owner(id), b.owner(id));
+            assertEquals(a.owns(id), !b.owns(id));
+            assertNotEquals(a.owner(id), a.standby(id));
+        }
+    }
+
+    @Test
+    void forwardsLineWritesToTheOwner() throws IOException {
+        a.commitOwned(theirs, Journal.bus(bus(7, theirs)));
+        assertEquals(List.of("1:commit"), calls);
+        assertEquals(1, a.forwarded.get());
+        assertEquals(theirs, Main.state().buses.get(7).lineId);
+
+        calls.clear();
+        a.commitOwned(mine, Journal.bus(bus(8, mine)));
+        assertEquals(List.of(), calls);
+        assertEquals(mine, Main.state().buses.get(8).lineId);
+    }
+
+    @Test
+    void rejectsNodeIdsOutsideTheCluster(){
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(2, 2, loop, "s"));
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(-1, 2, loop, "s"));
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(0, 2, loop, ""));
+    }
+
+    @Test
+    void mergesNearbyBusesFromBothOwners(){
+        Main.State.Tx tx = new Main.State.Tx(new Main.State());
+        tx.route(TransitPlannerTest.line(mine, "A"), TransitPlannerTest.straight(-27.60, -48.62, 0, 0.001));
+        tx.route(TransitPlannerTest.line(theirs, "B"), TransitPlannerTest.straight(-27.62, -48.60, 0.001, 0));
+        tx.bus(bus(1, mine)); tx.bus(bus(2, theirs));
+        Main.stateRef.set(tx.build());
+        for (Main.Bus x : Main.state().buses.values()) { Main.BusState bs = new Main.BusState(); bs.busId = x.id; bs.lineId = x.lineId; Main.busStates.put(x.id, bs); }
+
+        JsonWriter w = new JsonWriter();
+        w.beginArray(); assertTrue(a.near(w, Map.of(), "")); w.endArray();
+        assertEquals(List.of(1, 2), busIds(w));
+        assertEquals(List.of("1:near"), calls);
+
+        loop.down[1] = true; // node 0 is the standby for node 1's lines in a two-node ring
+        w = new JsonWriter();
+        w.beginArray(); assertTrue(a.near(w, Map.of(), "")); w.endArray();
+        assertEquals(List.of(1, 2), busIds(w));
+    }
+
+    static List<Integer> busIds(JsonWriter w){
+        List<Integer> ids = new ArrayList<>();
+        Matcher m = Pattern.compile("\"busId\":(\\d+)").matcher(new String(w.toByteArray(), StandardCharsets.UTF_8));
+        while (m.find()) ids.add(Integer.parseInt(m.group(1)));
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,32 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EtaModelTest {
+    static final Route ROUTE = TransitPlannerTest.straight(-27.60, -48.62, 0, 0.001);
+
+    @Test
+    void readsSeeAnObservationWithoutAPublishStep(){
+        EtaModel eta = new EtaModel();
+        double before = eta.seconds(1, ROUTE, 0, 1, 8*3600);
+        eta.observe(1, ROUTE, 0, 1, before*2, 8*3600);
+        assertEquals(before*(1+EtaModel.ALPHA), eta.seconds(1, ROUTE, 0, 1, 8*3600), 0.01);
+        assertEquals(before, eta.seconds(1, ROUTE, 0, 1, 9*3600), 0.01);
+    }
+
+    @Test
+    void concurrentObserversConvergeOnTheObservedTime() throws InterruptedException {
+        EtaModel eta = new EtaModel();
+        List<Thread> ts = new ArrayList<>();
+        for (int t=0;t<4;t++) {
+            Thread th = new Thread(() -> { for (int k=0;k<5000;k++) { eta.observe(1, ROUTE, k%40, k%40+1, 30, 8*3600); eta.seconds(1, ROUTE, 0, 40, 8*3600); } });
+            ts.add(th); th.start();
+        }
+        for (Thread th : ts) th.join();
+        double whole = eta.seconds(1, ROUTE, 0, 40, 8*3600);
+        assertTrue(Math.abs(whole-40*30)<1, "got "+whole);
+    }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class FleetFeedTest {
+    /** Line 1 steps east across the tile boundary at lng -48.60; point 2 is far outside the bbox. */
+    static Main.State line(){
+        Main.State.Tx tx = new Main.State.Tx(new Main.State());
+        tx.route(TransitPlannerTest.line(1, "Leste"), Route.of(new double[]{-27.60, -27.60, -27.00}, new double[]{-48.601, -48.599, -48.00}, 3));
+        return tx.build();
+    }
+
+    @AfterEach
+    void reset(){ Main.busStates.clear(); }
+
+    static List<String> frames(ByteArrayOutputStream out){
+        return List.of(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n\n"));
+    }
+
+    @Test
+    void busCrossingTilesInsideTheBboxIsOneUpsert(){
+        Main.State st = line();
+        Main.BusState bs = new Main.BusState(); bs.busId = 9; bs.lineId = 1;
+        Main.busStates.put(9, bs);
+        FleetFeed feed = new FleetFeed(Runnable::run);
+        feed.tick(st);
+        long[] tiles = FleetFeed.tiles(-27.61, -48.65, -27.59, -48.55);
+        assertTrue(tiles.length>1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        feed.subscribe(out, () -> {}, false, tiles);
+
+        bs.idx = 1;
+        feed.tick(st);
+        List<String> f = frames(out);
+        assertEquals(2, f.size());
+        assertTrue(f.get(0).startsWith("event: snapshot"));
+        assertEquals("event: delta\ndata: {\"seq\":2,\"buses\":[[9,1,-27.6,-48.599]],\"removed\":[]}", f.get(1));
+
+        bs.idx = 2;
+        feed.tick(st);
+        assertEquals("event: delta\ndata: {\"seq\":3,\"buses\":[],\"removed\":[9]}", frames(out).get(2));
+    }
+
+    @Test
+    void backlogCountsTicksNotTiles(){
+        Main.State st = line();
+        for (int id=1;id<=2;id++) { Main.BusState bs = new Main.BusState(); bs.busId = id; bs.lineId = 1; bs.idx = id-1; Main.busStates.put(id, bs); }
+        FleetFeed feed = new FleetFeed(r -> {}); // nothing is ever written, so every frame stays queued
+        FleetFeed.Sub s = feed.subscribe(new ByteArrayOutputStream(), () -> {}, false, FleetFeed.tiles(-27.61, -48.65, -27.59, -48.55));
+        feed.tick(st);
+        Main.busStates.get(1).idx = 1; Main.busStates.get(2).idx = 0;
+        feed.tick(st);
+        assertEquals(3, s.backlog.get());
+        assertEquals(0, feed.resyncs.get());
+    }
+}
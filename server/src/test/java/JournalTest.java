@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+    static byte[] company(int id, String name){ Main.Company c = new Main.Company(); c.id = id; c.name = name; return Journal.company(c); }
+
+    static ByteBuffer frames(byte[]... records){
+        int n = 0; for (byte[] r : records) n += 8+r.length;
+        ByteBuffer b = ByteBuffer.allocate(n);
+        for (byte[] r : records) b.put(Journal.frame(r));
+        return b.flip();
+    }
+
+    @Test
+    void replayStopsAtTornTail(){
+        ByteBuffer good = frames(company(1, "A"), company(2, "B"));
+        byte[] torn = Journal.frame(company(3, "C")).array();
+        ByteBuffer b = ByteBuffer.allocate(good.remaining()+torn.length-3).put(good.duplicate()).put(torn, 0, torn.length-3).flip();
+        Main.State.Tx tx = new Main.State.Tx(new Main.State());
+        assertEquals(good.remaining(), Journal.replay(tx, b));
+        Main.State st = tx.build();
+        assertEquals("B", st.companies.get(2).name);
+        assertFalse(st.companies.containsKey(3));
+    }
+
+    @Test
+    void replayStopsAtBadChecksum(){
+        ByteBuffer b = frames(company(1, "A"), company(2, "B"));
+        int second = 8+company(1, "A").length;
+        b.put(b.limit()-1, (byte)(b.get(b.limit()-1)^1));
+        Main.State.Tx tx = new Main.State.Tx(new Main.State());
+        assertEquals(second, Journal.replay(tx, b));
+        assertEquals(Set.of(1), tx.build().companies.keySet());
+    }
+
+    @Test
+    void restoreTruncatesTornSegment(@TempDir Path dir) throws IOException {
+        ByteBuffer good = frames(company(41, "A"), company(42, "B"));
+        byte[] torn = Journal.frame(company(43, "C")).array();
+        File wal = dir.resolve("wal-0000000000.log").toFile();
+        byte[] bytes = new byte[good.remaining()+5];
+        good.duplicate().get(bytes, 0, good.remaining());
+        System.arraycopy(torn, 0, bytes, good.remaining(), 5);
+        Files.write(wal.toPath(), bytes);
+        Journal j = new Journal(); j.dir = dir.toFile();
+        assertEquals(0, j.restore());
+        assertEquals(good.remaining(), wal.length());
+        assertTrue(Main.state().companies.containsKey(42));
+        assertFalse(Main.state().companies.containsKey(43));
+    }
+
+    @Test
+    void restoreRefusesACorruptOlderSegment(@TempDir Path dir) throws IOException {
+        ByteBuffer older = frames(company(51, "A"), company(52, "B"));
+        byte[] bytes = new byte[older.remaining()];
+        older.get(bytes);
+        bytes[bytes.length-1] ^= 1;
+        Files.write(dir.resolve("wal-0000000000.log"), bytes);
+        ByteBuffer newer = frames(company(53, "C"));
+        byte[] tail = new byte[newer.remaining()];
+        newer.get(tail);
+        Files.write(dir.resolve("wal-0000000001.log"), tail);
+        Main.State before = Main.state();
+        Journal j = new Journal(); j.dir = dir.toFile();
+        assertThrows(IOException.class, j::restore);
+        assertEquals(bytes.length, Files.size(dir.resolve("wal-0000000000.log")));
+        assertSame(before, Main.state());
+    }
+}
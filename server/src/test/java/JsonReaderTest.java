@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class JsonReaderTest {
+    static JsonReader reader(String json){ return new JsonReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))); }
+
+    @Test
+    void resolvesEscapes() throws IOException {
+        JsonReader r = reader("{\"name\" : \"a\\\"b\\\\c\\n\\u00e7\\ud83d\\ude8c\", \"n\": null}");
+        r.beginObject();
+        assertTrue(r.hasNext());
+        assertEquals("name", r.nextName());
+        assertEquals("a\"b\\c\nç🚌", r.nextString());
+        assertTrue(r.hasNext());
+        assertEquals("n", r.nextName());
+        assertNull(r.nextString());
+        assertFalse(r.hasNext());
+        r.endObject();
+    }
+
+    @Test
+    void streamsEscapedStrings() throws IOException {
+        JsonReader r = reader("[\"x\\ty\\u0041\"]");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.beginArray(); r.nextStringTo(out); r.endArray();
+        assertEquals("x\tyA", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void keepsTheEscapeAfterAnUnpairedHighSurrogate() throws IOException {
+        JsonReader r = reader("[\"\\ud83d\\u0041\", \"\\ud83d\\n\", \"\\ud83dx\", \"\\ude8c\"]");
+        r.beginArray();
+        assertEquals("\uFFFDA", r.nextString());
+        assertTrue(r.hasNext());
+        assertEquals("\uFFFD\n", r.nextString());
+        assertTrue(r.hasNext());
+        assertEquals("\uFFFDx", r.nextString());
+        assertTrue(r.hasNext());
+        assertEquals("\uFFFD", r.nextString());
+        assertFalse(r.hasNext());
+        r.endArray();
+
+        // one byte per read, so the low surrogate is always past the end of the buffer
+        byte[] json = "[\"\\ud83d\\ude8c\\ud83d\\u0042\"]".getBytes(StandardCharsets.UTF_8);
+        InputStream trickle = new ByteArrayInputStream(json) {
+            @Override public synchronized int read(byte[] b, int off, int len){ return super.read(b, off, Math.min(len, 1)); }
+        };
+        r = new JsonReader(trickle);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.beginArray(); r.nextStringTo(out); r.endArray();
+        assertEquals("\uD83D\uDE8C\uFFFDB", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readsNumbersAndSkipsNestedValues() throws IOException {
+        JsonReader r = reader("{\"skip\":{\"a\":[1,\"]\",{}]},\"lat\":-27.5954321,\"id\":\"42\"}");
+        r.beginObject();
+        r.nextName(); r.skipValue();
+        assertTrue(r.hasNext());
+        assertEquals("lat", r.nextName());
+        assertEquals(-27.5954321, r.nextDouble(), 1e-12);
+        assertTrue(r.hasNext());
+        assertEquals("id", r.nextName());
+        assertEquals(42, r.nextInt());
+        r.endObject();
+    }
+
+    @Test
+    void rejectsMalformedInput(){
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("[1,2"); r.beginArray(); r.nextInt(); r.hasNext(); r.nextInt(); assertFalse(r.hasNext()); r.endArray(); });
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("{\"a\":\"open"); r.beginObject(); r.nextName(); r.nextString(); });
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("{\"a\" 1}"); r.beginObject(); r.nextName(); });
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("{\"a\":}"); r.beginObject(); r.nextName(); r.nextString(); });
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("{\"a\":[1,{"); r.beginObject(); r.nextName(); r.skipValue(); });
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("{\"a\":1"); r.beginObject(); r.nextName(); r.nextString(); r.hasNext(); r.endObject(); });
+        assertThrows(IllegalStateException.class, () -> reader("").beginObject());
+        assertThrows(IllegalStateException.class, () -> { JsonReader r = reader("[\"\\u00zz\"]"); r.beginArray(); r.nextString(); });
+    }
+}
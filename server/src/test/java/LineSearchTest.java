@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LineSearchTest {
+    LineSearch index;
+
+    @BeforeEach
+    void load(){
+        index = new LineSearch();
+        Main.Company c = new Main.Company(); c.id = 1; c.name = "Jotur";
+        String[] names = {"Centro - Palhoça", "São José via Kobrasol", "Beira-Mar Norte", "Estreito", "Trindade"};
+        for (int i=0;i<names.length;i++) { Main.Line l = new Main.Line(); l.id = i+1; l.companyId = 1; l.name = names[i]; index.add(l, c); }
+    }
+
+    List<Integer> ids(String q){
+        List<Integer> out = new ArrayList<>();
+        for (LineSearch.Doc d : index.search(q, 0, 20)) out.add(d.lineId);
+        return out;
+    }
+
+    @Test
+    void foldsAccentsAndCase(){
+        assertEquals(List.of(1), ids("palhoca"));
+        assertEquals(List.of(1), ids("PALHOÇA"));
+        assertEquals(List.of(2), ids("sao jose"));
+    }
+
+    @Test
+    void toleratesTypos(){
+        assertEquals(List.of(1), ids("plahoca"));
+        assertEquals(List.of(2), ids("kobrasool"));
+        assertEquals(List.of(), ids("plhc"));
+    }
+
+    @Test
+    void ranksByMatchKindThenShorterName(){
+        Main.Line l = new Main.Line(); l.id = 9; l.companyId = 1; l.name = "Centrinho";
+        index.add(l, null);
+        assertEquals(List.of(1, 9), ids("centro"));
+        assertEquals(List.of(9, 1), ids("centr"));
+        assertEquals(List.of(5, 4, 9, 1), ids("tr"));
+    }
+
+    @Test
+    void shortTokensMatchBySubstring(){
+        assertEquals(List.of(1, 2, 3, 5), ids("a").stream().sorted().toList());
+        assertEquals(List.of(1), ids("ho"));
+        assertEquals(List.of(), ids("x"));
+    }
+
+    @Test
+    void everyTokenMustMatch(){
+        assertEquals(List.of(2), ids("jose kobrasol"));
+        assertEquals(List.of(), ids("jose trindade"));
+    }
+}
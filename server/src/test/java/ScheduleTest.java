@@ -0,0 +1,41 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ScheduleTest {
+    static final int MON = 0, FRI = 4, SAT = 5, SUN = 6, DAY = 86400;
+
+    @Test
+    void nextRollsPastMidnight(){
+        Schedule sc = Schedule.of(List.of("06:00", "23:30"));
+        assertEquals(23*3600+1800, sc.next(MON, 23*3600));
+        assertEquals(DAY+6*3600, sc.next(MON, 23*3600+1800));
+        assertEquals(6*3600, sc.next(MON, -1));
+    }
+
+    @Test
+    void nextFollowsDayMasks(){
+        Schedule sc = new Schedule(new int[]{7*3600, 9*3600}, new byte[]{(byte)Schedule.days("weekdays"), (byte)Schedule.days("weekend")});
+        assertEquals(7*3600, sc.next(FRI, 0));
+        assertEquals(DAY+9*3600, sc.next(FRI, 8*3600));
+        assertEquals(9*3600, sc.next(SUN, 0));
+        assertEquals(DAY+7*3600, sc.next(SUN, 10*3600));
+        assertEquals(DAY+9*3600, sc.next(SAT, 10*3600));
+    }
+
+    @Test
+    void nextListsAcrossDays(){
+        Schedule sc = new Schedule(new int[]{8*3600, 18*3600}, new byte[]{(byte)Schedule.days("mon"), (byte)Schedule.days("mon,wed")});
+        int[] out = new int[3];
+        assertEquals(3, sc.next(SUN, 12*3600, out));
+        assertArrayEquals(new int[]{DAY+8*3600, DAY+18*3600, 3*DAY+18*3600}, out);
+    }
+
+    @Test
+    void emptyScheduleHasNoDeparture(){
+        assertEquals(-1, new Schedule(new int[0], new byte[0]).next(MON, 0));
+        assertEquals(0, Schedule.days("holiday"));
+    }
+}
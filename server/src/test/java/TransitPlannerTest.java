@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TransitPlannerTest {
+    /** Line 1 runs east along -27.60 into the middle of line 2, which runs north along -48.60. */
+    static Main.State crossing(){
+        Main.State.Tx tx = new Main.State.Tx(new Main.State());
+        tx.route(line(1, "Leste"), straight(-27.60, -48.62, 0, 0.001));
+        tx.route(line(2, "Norte"), straight(-27.62, -48.60, 0.001, 0));
+        int[] secs = new int[144]; byte[] days = new byte[144];
+        for (int i=0;i<secs.length;i++) { secs[i] = i*600; days[i] = (byte)Schedule.DAILY; }
+        tx.schedule(1, new Schedule(secs, days));
+        tx.schedule(2, new Schedule(secs, days));
+        return tx.build();
+    }
+
+    static Main.Line line(int id, String name){ Main.Line l = new Main.Line(); l.id = id; l.companyId = 1; l.name = name; return l; }
+
+    static Route straight(double lat, double lng, double dLat, double dLng){
+        double[] la = new double[41], ln = new double[41];
+        for (int i=0;i<la.length;i++) { la[i] = lat+i*dLat; ln[i] = lng+i*dLng; }
+        return Route.of(la, ln, la.length);
+    }
+
+    static List<Integer> rides(TransitPlanner.Journey j){
+        List<Integer> out = new ArrayList<>();
+        for (TransitPlanner.Leg lg : j.legs) if (lg.lineId>=0) out.add(lg.lineId);
+        return out;
+    }
+
+    @Test
+    void transfersBetweenCrossingLines(){
+        List<TransitPlanner.Journey> js = new TransitPlanner().plan(crossing(), -27.60, -48.62, -27.58, -48.60, 10*3600);
+        assertFalse(js.isEmpty());
+        TransitPlanner.Journey fastest = js.get(js.size()-1);
+        assertEquals(List.of(1, 2), rides(fastest));
+        assertEquals(1, fastest.transfers);
+        TransitPlanner.Leg first = fastest.legs.get(0), last = fastest.legs.get(fastest.legs.size()-1);
+        assertEquals(10*3600, fastest.depart);
+        assertEquals(0, first.fromIdx);
+        assertEquals(40, last.toIdx);
+        for (int i=1;i<fastest.legs.size();i++) assertFalse(fastest.legs.get(i).depart<fastest.legs.get(i-1).arrive);
+    }
+
+    @Test
+    void walksWhenTheDestinationIsClose(){
+        List<TransitPlanner.Journey> js = new TransitPlanner().plan(crossing(), -27.60, -48.62, -27.6005, -48.6195, 10*3600);
+        assertEquals(1, js.size());
+        assertEquals(List.of(), rides(js.get(0)));
+        assertEquals("walk", js.get(0).legs.get(0).mode);
+        assertNull(js.get(0).legs.get(0).route);
+    }
+
+    @Test
+    void newHourRetimesTripsButKeepsTheTimetable(){
+        TransitPlanner p = new TransitPlanner();
+        Main.State st = crossing();
+        TransitPlanner.Slice ten = p.slice(st, 1, 10);
+        assertSame(ten, p.slice(st, 1, 10));
+        TransitPlanner.Slice eleven = p.slice(st, 1, 11);
+        assertSame(ten.tt, eleven.tt);
+        assertNotSame(ten.trips[0], eleven.trips[0]);
+        p.invalidate(2);
+        TransitPlanner.Slice rebuilt = p.slice(st, 1, 11);
+        int line1 = rebuilt.tt.patterns[0].lineId==1 ? 0 : 1;
+        assertSame(eleven.trips[line1], rebuilt.trips[line1]);
+        assertNotSame(eleven.trips[1-line1], rebuilt.trips[1-line1]);
+    }
+
+    @Test
+    void keepsTransfersWhenOneLineIsRebuilt(){
+        TransitPlanner p = new TransitPlanner();
+        Main.State st = crossing();
+        p.plan(st, -27.60, -48.62, -27.58, -48.60, 10*3600);
+        Main.State.Tx tx = new Main.State.Tx(st);
+        tx.route(st.lines.get(2), straight(-27.62, -48.605, 0.001, 0));
+        Main.State moved = tx.build();
+        p.invalidate(2);
+        List<TransitPlanner.Journey> js = p.plan(moved, -27.60, -48.62, -27.58, -48.605, 10*3600);
+        assertEquals(List.of(1, 2), rides(js.get(js.size()-1)));
+    }
+}
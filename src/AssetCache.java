@@ -0,0 +1,236 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * public/ in memory with a precomputed gzip (and an offline .br), strong ETags and an LRU bound of
+ * maxBytes; files over maxEntry are streamed with transferTo. A WatchService drops changed files.
+ */
+final class AssetCache {
+    static final class Asset {
+        final String key, contentType, etag; final File file; final long length, modified;
+        final byte[] raw, gzip, br;
+        Asset(String key, File file, String contentType, String etag, long length, long modified, byte[] raw, byte[] gzip, byte[] br){
+            this.key=key; this.file=file; this.contentType=contentType; this.etag=etag; this.length=length; this.modified=modified;
+            this.raw=raw; this.gzip=gzip; this.br=br;
+        }
+        long bytes(){ return (raw==null?0:raw.length)+(gzip==null?0:gzip.length)+(br==null?0:br.length); }
+    }
+
+    final File root; final Path rootPath;
+    final long maxBytes, maxEntry;
+    long bytes;
+    final LinkedHashMap<String, Asset> entries = new LinkedHashMap<>(64, 0.75f, true);
+    final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), notModified = new AtomicLong();
+    volatile boolean watching;
+
+    AssetCache(File root, long maxBytes, long maxEntry){
+        this.root = root; this.rootPath = root.toPath().toAbsolutePath().normalize();
+        this.maxBytes = maxBytes; this.maxEntry = maxEntry;
+    }
+
+    /** Loads everything that fits and starts the watcher; called at startup, and again by get() once a watcher has died. */
+    void start(){
+        synchronized (this) { if (watching) return; watching = true; }
+        try (Stream<Path> files = Files.walk(rootPath)) {
+            files.filter(Files::isRegularFile).forEach(p -> get("/"+rootPath.relativize(p).toString().replace(File.separatorChar, '/')));
+        } catch (IOException | UncheckedIOException e) { /* nothing to preload; requests load lazily */ }
+        Thread t = new Thread(this::watch, "asset-watch"); t.setDaemon(true); t.start();
+    }
+
+    Asset get(String path){
+        if (!watching) start();
+        synchronized (this) { Asset a = entries.get(path); if (a!=null) { hits.incrementAndGet(); return a; } }
+        misses.incrementAndGet();
+        Path p = rootPath.resolve(path.substring(1)).normalize();
+        if (!p.startsWith(rootPath) || path.endsWith(".br")) return null;
+        File f = p.toFile();
+        if (!f.isFile()) return null;
+        Asset a;
+        try { a = load(path, f); } catch (IOException e) { return null; }
+        synchronized (this) {
+            Asset old = entries.put(path, a);
+            if (old!=null) bytes -= old.bytes();
+            bytes += a.bytes();
+            Iterator<Asset> it = entries.values().iterator();
+            while (bytes>maxBytes && it.hasNext()) { Asset e = it.next(); if (e==a) continue; bytes -= e.bytes(); it.remove(); }
+        }
+        return a;
+    }
+
+    Asset load(String key, File f) throws IOException {
+        long len = f.length(), mod = f.lastModified();
+        String ct = contentType(f.getName());
+        if (len>maxEntry) return new Asset(key, f, ct, "\""+Long.toHexString(len)+"-"+Long.toHexString(mod)+"\"", len, mod, null, null, null);
+        byte[] raw = Files.readAllBytes(f.toPath());
+        byte[] gz = null, br = null;
+        if (compressible(ct)) {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream(raw.length/3+64);
+            try (GZIPOutputStream z = new GZIPOutputStream(bo) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) { z.write(raw); }
+            if (bo.size()<raw.length) gz = bo.toByteArray();
+            File brf = new File(f.getPath()+".br");
+            if (brf.isFile() && brf.lastModified()>=mod) br = Files.readAllBytes(brf.toPath());
+        }
+        return new Asset(key, f, ct, etag(raw), raw.length, mod, raw, gz, br);
+    }
+
+    /** Strong validator: the first 96 bits of the content's SHA-256, quoted. */
+    static String etag(byte[] content){
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i=0;i<12;i++) sb.append(Character.forDigit((d[i]>>4)&15, 16)).append(Character.forDigit(d[i]&15, 16));
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+
+    synchronized void invalidate(String key){
+        Asset a = entries.remove(key);
+        if (a!=null) bytes -= a.bytes();
+    }
+
+    void watch(){
+        try (WatchService ws = rootPath.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> dirs = new HashMap<>();
+            register(ws, dirs, rootPath);
+            while (true) {
+                WatchKey k = ws.take();
+                Path dir = dirs.get(k);
+                for (WatchEvent<?> e : k.pollEvents()) {
+                    if (dir==null || !(e.context() instanceof Path)) { synchronized (this) { entries.clear(); bytes = 0; } continue; } // overflow
+                    Path p = dir.resolve((Path) e.context());
+                    String key = "/"+rootPath.relativize(p).toString().replace(File.separatorChar, '/');
+                    invalidate(key.endsWith(".br") ? key.substring(0, key.length()-3) : key);
+                    if (e.kind()==StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p)) register(ws, dirs, p);
+                }
+                if (!k.reset()) dirs.remove(k);
+            }
+        } catch (IOException | InterruptedException e) {
+            watching = false; // without a watcher a later get() starts a new one
+        }
+    }
+
+    static void register(WatchService ws, Map<WatchKey, Path> dirs, Path start) throws IOException {
+        try (Stream<Path> all = Files.walk(start)) {
+            for (Path d : (Iterable<Path>) all.filter(Files::isDirectory)::iterator)
+                dirs.put(d.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), d);
+        }
+    }
+
+    void serve(HttpExchange ex, Asset a, boolean head) throws IOException {
+        Headers req = ex.getRequestHeaders(), h = ex.getResponseHeaders();
+        boolean html = a.contentType.startsWith("text/html");
+        h.set("Content-Type", a.contentType);
+        h.set("Cache-Control", html ? "no-cache" : "public, max-age=300");
+        h.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(a.modified).atZone(ZoneOffset.UTC)));
+        h.set("Accept-Ranges", "bytes");
+        String enc = null; byte[] body = a.raw;
+        if (a.gzip!=null || a.br!=null) {
+            h.set("Vary", "Accept-Encoding");
+            String ae = req.getFirst("Accept-Encoding");
+            if (a.br!=null && accepts(ae, "br")) { enc = "br"; body = a.br; }
+            else if (a.gzip!=null && accepts(ae, "gzip")) { enc = "gzip"; body = a.gzip; }
+        }
+        String etag = enc==null ? a.etag : a.etag.substring(0, a.etag.length()-1)+"-"+enc+"\"";
+        h.set("ETag", etag);
+        String inm = req.getFirst("If-None-Match");
+        if (inm!=null && matches(inm, etag)) { notModified.incrementAndGet(); ex.sendResponseHeaders(304, -1); ex.close(); return; }
+
+        long len = body!=null ? body.length : a.length, from = 0, to = len-1;
+        int code = 200;
+        String range = req.getFirst("Range"), ifRange = req.getFirst("If-Range");
+        if (range!=null && enc==null && (ifRange==null || ifRange.equals(a.etag))) {
+            long[] r = range(range, len);
+            if (r==null) { h.set("Content-Range", "bytes */"+len); ex.sendResponseHeaders(416, -1); ex.close(); return; }
+            if (r.length==2) { from = r[0]; to = r[1]; code = 206; h.set("Content-Range", "bytes "+from+"-"+to+"/"+len); }
+        }
+        if (enc!=null) h.set("Content-Encoding", enc);
+        long n = to-from+1;
+        if (head) { h.set("Content-Length", String.valueOf(n)); ex.sendResponseHeaders(code, -1); ex.close(); return; }
+        ex.sendResponseHeaders(code, n==0 ? -1 : n);
+        try (OutputStream os = ex.getResponseBody()) {
+            if (body!=null) { os.write(body, (int)from, (int)n); return; }
+            try (FileChannel ch = FileChannel.open(a.file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel out = Channels.newChannel(os);
+                while (n>0) { long w = ch.transferTo(from, n, out); if (w<=0) break; from += w; n -= w; }
+            }
+        }
+    }
+
+    /** A single "bytes=" range as {from,to}; {} when the header is invalid and should be ignored (RFC 9110 14.2); null when unsatisfiable. */
+    static long[] range(String header, long len){
+        if (!header.startsWith("bytes=") || header.indexOf(',')>=0) return new long[0];
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash<0) return new long[0];
+        try {
+            long from, to;
+            if (!spec.chars().allMatch(c -> c=='-' || c>='0' && c<='9') || spec.indexOf('-', dash+1)>=0) return new long[0];
+            if (dash==0) { long suffix = Long.parseLong(spec.substring(1)); if (suffix==0) return null; from = Math.max(0, len-suffix); to = len-1; }
+            else {
+                from = Long.parseLong(spec.substring(0, dash));
+                long last = dash==spec.length()-1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash+1));
+                if (last<from) return new long[0]; // "500-100" is not a range at all, so the whole body goes out
+                to = Math.min(len-1, last);
+            }
+            return from>=len ? null : new long[]{from, to};
+        } catch (NumberFormatException e) { return new long[0]; }
+    }
+
+    static boolean accepts(String header, String enc){
+        if (header==null) return false;
+        for (String part : header.split(",")) {
+            String[] p = part.trim().split(";");
+            if (!p[0].trim().equalsIgnoreCase(enc)) continue;
+            for (int i=1;i<p.length;i++) { String q = p[i].trim(); if (q.startsWith("q=")) { try { return Double.parseDouble(q.substring(2))>0; } catch (NumberFormatException e) { return false; } } }
+            return true;
+        }
+        return false;
+    }
+
+    static boolean matches(String ifNoneMatch, String etag){
+        for (String t : ifNoneMatch.split(",")) { t = t.trim(); if (t.startsWith("W/")) t = t.substring(2); if (t.equals("*") || t.equals(etag)) return true; }
+        return false;
+    }
+
+    static boolean compressible(String ct){ return ct.startsWith("text/") || ct.startsWith("application/javascript") || ct.startsWith("application/json") || ct.startsWith("image/svg"); }
+
+    static String contentType(String name){
+        String n = name.toLowerCase();
+        if (n.endsWith(".html")) return "text/html; charset=utf-8";
+        if (n.endsWith(".css")) return "text/css; charset=utf-8";
+        if (n.endsWith(".js")) return "application/javascript; charset=utf-8";
+        if (n.endsWith(".json")) return "application/json; charset=utf-8";
+        if (n.endsWith(".svg")) return "image/svg+xml";
+        if (n.endsWith(".png")) return "image/png";
+        if (n.endsWith(".jpg")||n.endsWith(".jpeg")) return "image/jpeg";
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Clustered mode (CLUSTER_NODES=url0,url1,..., NODE_ID=i, CLUSTER_SECRET shared by all nodes). Every
+ * node holds the full State and replicates its commits to each peer; live buses are partitioned by
+ * lineId over a consistent-hash ring, line-scoped writes and position reports go to the owner, the
+ * next node is its standby. Peers talk over a Transport: HTTP between JVMs, loopback in tests.
+ */
+final class Cluster {
+    static final int VNODES = 64;
+    static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    interface Transport { byte[] call(int node, String topic, byte[] body) throws IOException; }
+
+    /** In-process delivery for tests: node i is nodes[i], and a node that is null or marked down fails every call. */
+    static final class LoopbackTransport implements Transport {
+        final Cluster[] nodes; final boolean[] down;
+        LoopbackTransport(int size){ nodes = new Cluster[size]; down = new boolean[size]; }
+        public byte[] call(int node, String topic, byte[] body) throws IOException {
+            Cluster c = nodes[node];
+            if (c==null || down[node]) throw new IOException("node "+node+" is down");
+            return c.receive(topic, body.clone());
+        }
+    }
+
+    static final class HttpTransport implements Transport {
+        final String[] urls; final String secret;
+        final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        HttpTransport(String[] urls, String secret){ this.urls = urls; this.secret = secret; }
+        public byte[] call(int node, String topic, byte[] body) throws IOException {
+            HttpRequest req = HttpRequest.newBuilder(URI.create(urls[node]+"/api/cluster/msg?topic="+topic))
+                    .timeout(Duration.ofSeconds(5)).header(SECRET_HEADER, secret).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+            try {
+                HttpResponse<byte[]> res = client.send(req, HttpResponse.BodyHandlers.ofByteArray());
+                if (res.statusCode()!=200) throw new IOException("node "+node+" answered "+res.statusCode());
+                return res.body();
+            } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException(); }
+        }
+    }
+
+    final int self, size;
+    final Transport transport;
+    final byte[] secret;
+    final long[] ring; final int[] ringNode;
+    final ExecutorService[] senders;
+    final AtomicLong replicated = new AtomicLong(), replicationFailures = new AtomicLong(), forwarded = new AtomicLong();
+
+    Cluster(int self, String nodes, String secret){ this(self, peers(nodes).length, new HttpTransport(peers(nodes), secret), secret); }
+
+    Cluster(int self, int nodes, Transport transport, String secret){
+        this.size = Math.max(1, nodes); this.self = self;
+        if (self<0 || self>=size) throw new IllegalArgumentException("NODE_ID "+self+" is outside CLUSTER_NODES (0.."+(size-1)+")");
+        if (size>1 && secret.isEmpty()) throw new IllegalArgumentException("CLUSTER_SECRET must be set when CLUSTER_NODES lists peers");
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.transport = transport;
+        long[][] points = new long[size*VNODES][];
+        for (int n=0;n<size;n++) for (int v=0;v<VNODES;v++) points[n*VNODES+v] = new long[]{mix((long)(n+1)<<32 | v), n};
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        ring = new long[points.length]; ringNode = new int[points.length];
+        for (int i=0;i<points.length;i++) { ring[i] = points[i][0]; ringNode[i] = (int)points[i][1]; }
+        senders = new ExecutorService[size];
+        for (int n=0;n<size;n++) if (n!=self) { int peer = n; senders[n] = Executors.newSingleThreadExecutor(r -> { Thread t = new Thread(r, "replicate-"+peer); t.setDaemon(true); return t; }); }
+    }
+
+    static String[] peers(String nodes){ return nodes.isEmpty() ? new String[0] : nodes.split(","); }
+
+    boolean enabled(){ return size>1; }
+
+    /** Peer messages must carry CLUSTER_SECRET; compared in constant time, never accepted outside a cluster. */
+    boolean trusted(String presented){
+        return enabled() && presented!=null && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static long mix(long z){ z = (z ^ (z>>>33)) * 0xff51afd7ed558ccdL; z = (z ^ (z>>>33)) * 0xc4ceb9fe1a85ec53L; return z ^ (z>>>33); }
+
+    int slot(int lineId){
+        int i = Arrays.binarySearch(ring, mix(lineId));
+        if (i<0) i = -i-1;
+        return i==ring.length ? 0 : i;
+    }
+
+    int owner(int lineId){ return ringNode[slot(lineId)]; }
+    boolean owns(int lineId){ return owner(lineId)==self; }
+
+    /** The next distinct node after the owner on the ring; the owner itself in a one-node cluster. */
+    int standby(int lineId){
+        int s = slot(lineId), o = ringNode[s];
+        for (int k=1;k<ring.length;k++) { int n = ringNode[(s+k)%ring.length]; if (n!=o) return n; }
+        return o;
+    }
+
+    /** Next id from seq that falls in this node's residue class. */
+    int nextId(AtomicInteger seq){
+        int prev = seq.getAndUpdate(x -> align(x)+size);
+        return align(prev);
+    }
+    int align(int x){ int r = Math.floorMod(x-self, size); return r==0 ? x : x+size-r; }
+
+    /** Journal hook: ships locally originated records to every peer, in commit order per peer. */
+    void replicate(List<byte[]> records){
+        if (!enabled()) return;
+        byte[] body = frames(records);
+        for (int n=0;n<size;n++) {
+            if (n==self) continue;
+            int peer = n;
+            senders[n].execute(() -> {
+                for (int attempt=0;attempt<3;attempt++) {
+                    try { transport.call(peer, "records", body); replicated.incrementAndGet(); return; }
+                    catch (IOException e) { try { Thread.sleep(200L<<attempt); } catch (InterruptedException ie) { return; } }
+                }
+                replicationFailures.incrementAndGet(); // the peer catches up from a snapshot when it restarts
+            });
+        }
+    }
+
+    /** Commits a line-scoped record on the line's owner; the caller applies it too for read-your-writes. */
+    void commitOwned(int lineId, byte[] record) throws IOException {
+        int o = owner(lineId);
+        if (!enabled() || o==self) { Main.journal.commit(record); return; }
+        transport.call(o, "commit", frames(List.of(record)));
+        forwarded.incrementAndGet();
+        Main.journal.commitAll(List.of(record), false);
+    }
+
+    /** Pulls the full state from the first peer that answers. */
+    void catchUp(){
+        if (!enabled()) return;
+        for (int n=0;n<size;n++) {
+            if (n==self) continue;
+            try { Main.journal.commitAll(unframe(transport.call(n, "snapshot", new byte[0])), false); Main.resetSeqs(Main.state()); return; }
+            catch (IOException e) { /* try the next peer */ }
+        }
+    }
+
+    byte[] receive(String topic, byte[] body) throws IOException {
+        if (!topic.equals("records") && !topic.equals("snapshot")) Main.ensureTicker();
+        switch (topic) {
+            case "records": Main.journal.commitAll(unframe(body), false); return new byte[0];
+            case "commit": Main.journal.commitAll(unframe(body), true); return new byte[0];
+            case "snapshot": return frames(Journal.records(Main.state()));
+            case "positions": case "standby": {
+                ByteBuffer b = ByteBuffer.wrap(body);
+                int[] res = new int[4]; Main.State st = Main.state();
+                while (b.remaining()>=20) res[Main.ingest.report(st, b.getInt(), b.getInt(), b.getInt(), b.getLong())]++;
+                if (topic.equals("positions")) standbyCopy(st, body);
+                ByteBuffer out = ByteBuffer.allocate(16); for (int v : res) out.putInt(v);
+                return out.array();
+            }
+            case "near": {
+                Map<String,String> q = Main.parseQuery(new String(body, StandardCharsets.UTF_8));
+                Set<Integer> owners = new HashSet<>();
+                for (String s : q.getOrDefault("for", String.valueOf(self)).split(",")) owners.add(Main.parseInt(s));
+                JsonWriter w = new JsonWriter();
+                w.beginArray(); Main.writeNear(w, q, id -> owners.contains(owner(id))); w.endArray();
+                return w.toByteArray();
+            }
+            default: throw new IOException("unknown topic "+topic);
+        }
+    }
+
+    /**
+     * Asks the owner of every line in range (this node included) for its buses and splices the arrays.
+     * When an owner fails, its lines are asked of their standby nodes; false if some still went unanswered.
+     */
+    boolean near(JsonWriter w, Map<String,String> q, String query){
+        double lat = Double.parseDouble(q.getOrDefault("lat","-27.65")), lng = Double.parseDouble(q.getOrDefault("lng","-48.65"));
+        double radius = Double.parseDouble(q.getOrDefault("radius","0"));
+        Set<Integer> lines = radius>0 ? Main.routeIndex.linesWithin(lat, lng, radius) : Main.state().lines.keySet();
+        Set<Integer> owners = new TreeSet<>();
+        for (int id : lines) owners.add(owner(id));
+        Map<Integer, CompletableFuture<byte[]>> calls = new HashMap<>();
+        for (int o : owners) if (o!=self) calls.put(o, near(o, query+"&for="+o));
+        Main.writeNear(w, q, id -> owner(id)==self);
+        boolean complete = true;
+        for (Map.Entry<Integer, CompletableFuture<byte[]>> e : calls.entrySet()) {
+            byte[] arr = e.getValue().join();
+            if (arr!=null) { splice(w, arr); continue; }
+            Set<Integer> standbys = new TreeSet<>();
+            for (int id : lines) if (owner(id)==e.getKey()) standbys.add(standby(id));
+            for (int s : standbys) {
+                byte[] b = s==self ? null : near(s, query+"&for="+e.getKey()).join();
+                if (s==self) { int dead = e.getKey(); Main.writeNear(w, q, id -> owner(id)==dead); }
+                else if (b!=null) splice(w, b);
+                else complete = false;
+            }
+        }
+        return complete;
+    }
+
+    CompletableFuture<byte[]> near(int node, String query){
+        return CompletableFuture.supplyAsync(() -> {
+            try { return transport.call(node, "near", query.getBytes(StandardCharsets.UTF_8)); } catch (IOException e) { return null; }
+        }, Main.httpExec.pool);
+    }
+
+    /** Appends the members of a JSON array produced by a peer to the array being written. */
+    static void splice(JsonWriter w, byte[] arr){
+        int from = 0, to = arr.length;
+        while (from<to && arr[from]!='[') from++;
+        while (to>from && arr[to-1]!=']') to--;
+        if (to-from>2) w.raw(arr, from+1, to-from-2);
+    }
+
+    /** Splits a report batch by owner; local ones are applied here, the rest forwarded. Returns counts by PositionIngest status. */
+    int[] positions(Main.State st, ByteBuffer batch){
+        int[] res = new int[4];
+        Map<Integer, ByteArrayOutputStream> remote = new HashMap<>();
+        ByteArrayOutputStream mine = new ByteArrayOutputStream();
+        while (batch.remaining()>=20) {
+            int start = batch.position(), busId = batch.getInt(); batch.position(start+20);
+            Main.Bus b = st.buses.get(busId);
+            int o = b==null ? self : owner(b.lineId);
+            (o==self ? mine : remote.computeIfAbsent(o, k -> new ByteArrayOutputStream())).write(batch.array(), batch.arrayOffset()+start, 20);
+        }
+        byte[] local = mine.toByteArray();
+        ByteBuffer lb = ByteBuffer.wrap(local);
+        while (lb.remaining()>=20) res[Main.ingest.report(st, lb.getInt(), lb.getInt(), lb.getInt(), lb.getLong())]++;
+        standbyCopy(st, local);
+        for (Map.Entry<Integer, ByteArrayOutputStream> e : remote.entrySet()) {
+            byte[] part = e.getValue().toByteArray();
+            try {
+                ByteBuffer r = ByteBuffer.wrap(transport.call(e.getKey(), "positions", part));
+                for (int i=0;i<4;i++) res[i] += r.getInt();
+                forwarded.incrementAndGet();
+            } catch (IOException ex) { res[PositionIngest.UNKNOWN] += part.length/20; }
+        }
+        return res;
+    }
+
+    void standbyCopy(Main.State st, byte[] reports){
+        if (!enabled() || reports.length==0) return;
+        Map<Integer, ByteArrayOutputStream> by = new HashMap<>();
+        for (int off=0;off+20<=reports.length;off+=20) {
+            Main.Bus b = st.buses.get(ByteBuffer.wrap(reports, off, 4).getInt());
+            if (b==null) continue;
+            int s = standby(b.lineId);
+            if (s!=self) by.computeIfAbsent(s, k -> new ByteArrayOutputStream()).write(reports, off, 20);
+        }
+        for (Map.Entry<Integer, ByteArrayOutputStream> e : by.entrySet()) {
+            byte[] part = e.getValue().toByteArray(); int peer = e.getKey();
+            senders[peer].execute(() -> { try { transport.call(peer, "standby", part); } catch (IOException ex) { replicationFailures.incrementAndGet(); } });
+        }
+    }
+
+    static byte[] frames(List<byte[]> records){
+        int n = 0; for (byte[] r : records) n += 8+r.length;
+        ByteBuffer b = ByteBuffer.allocate(n);
+        for (byte[] r : records) b.put(Journal.frame(r));
+        return b.array();
+    }
+
+    static List<byte[]> unframe(byte[] body) throws IOException {
+        List<byte[]> out = new ArrayList<>();
+        ByteBuffer b = ByteBuffer.wrap(body);
+        CRC32 crc = new CRC32();
+        while (b.remaining()>=8) {
+            int len = b.getInt(), sum = b.getInt();
+            if (len<0 || len>b.remaining()) throw new IOException("truncated record");
+            byte[] r = new byte[len]; b.get(r);
+            crc.reset(); crc.update(r);
+            if ((int)crc.getValue()!=sum) throw new IOException("bad record checksum");
+            out.add(r);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per line and hour, an EWMA of the seconds each route segment takes. observe() updates the segments
+ * a report covers (usually one) under that bucket's lock and drops its prefix sums; the first
+ * seconds() after that rebuilds them under the same lock, later ones are two reads.
+ */
+final class EtaModel {
+    static final int BUCKETS = 24, MAX_SPAN = 256;
+    static final double DEFAULT_MPS = 5.0, ALPHA = 0.2, CLAMP = 8;
+
+    static final class LineModel {
+        final Route route; final int n;
+        final float[] prior, secs;                  // secs[b*n+i] guarded by locks[b]
+        final Object[] locks = new Object[BUCKETS];
+        final AtomicReferenceArray<double[]> prefix = new AtomicReferenceArray<>(BUCKETS);   // null: stale
+
+        LineModel(Route route){
+            this.route = route; n = route.size();
+            prior = new float[n];
+            for (int i=0;i<n;i++) prior[i] = (float)((route.cum[i+1]-route.cum[i])/DEFAULT_MPS);
+            secs = new float[BUCKETS*n];
+            for (int b=0;b<BUCKETS;b++) { System.arraycopy(prior, 0, secs, b*n, n); locks[b] = new Object(); }
+        }
+
+        double[] prefix(int b){
+            double[] p = prefix.get(b);
+            if (p!=null) return p;
+            synchronized (locks[b]) {
+                p = prefix.get(b);
+                if (p==null) {
+                    p = new double[n+1];
+                    for (int i=0;i<n;i++) p[i+1] = p[i]+secs[b*n+i];
+                    prefix.set(b, p);
+                }
+                return p;
+            }
+        }
+    }
+
+    final Map<Integer, LineModel> lines = new ConcurrentHashMap<>();
+
+    LineModel model(int lineId, Route r){
+        LineModel m = lines.get(lineId);
+        if (m!=null && m.route==r) return m;
+        return lines.compute(lineId, (k, cur) -> cur!=null && cur.route==r ? cur : new LineModel(r)); // new geometry, start over
+    }
+
+    static int bucket(int secOfDay){ return Math.floorMod(secOfDay, 86400)/3600; }
+
+    /** A bus of lineId went from point from to point to (forward, wrapping) in the given seconds. */
+    void observe(int lineId, Route r, int from, int to, double seconds, int secOfDay){
+        int n = r.size();
+        if (n<2 || seconds<=0) return;
+        from = Math.floorMod(from, n); to = Math.floorMod(to, n);
+        int span = Math.floorMod(to-from, n);
+        if (span==0 || span>MAX_SPAN) return;
+        LineModel m = model(lineId, r);
+        int b = bucket(secOfDay), base = b*n;
+        synchronized (m.locks[b]) {
+            double est = 0;
+            for (int k=0;k<span;k++) est += m.secs[base+(from+k)%n];
+            for (int k=0;k<span;k++) {
+                int i = base+(from+k)%n;
+                double share = est>0 ? seconds*m.secs[i]/est : seconds/span;
+                double p = Math.max(m.prior[(from+k)%n], 0.1);
+                share = Math.max(p/CLAMP, Math.min(p*CLAMP, share));   // dwell at a terminal or a GPS jump is not a speed
+                m.secs[i] = (float)(m.secs[i] + ALPHA*(share-m.secs[i]));
+            }
+            m.prefix.set(b, null);
+        }
+    }
+
+    /** Expected seconds from point from to point to (forward, wrapping) at the given time of day. */
+    double seconds(int lineId, Route r, int from, int to, int secOfDay){
+        int n = r.size();
+        if (n<2) return 0;
+        double[] p = model(lineId, r).prefix(bucket(secOfDay));
+        from = Math.floorMod(from, n); to = Math.floorMod(to, n);
+        return from<=to ? p[to]-p[from] : p[n]-p[from]+p[to];
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whole-fleet feed: a snapshot, then one delta per tick for each distinct set of TILE_DEG tiles,
+ * encoded once per format and shared by the subscribers of that set. A bus that moved between two
+ * tiles of the set is only upserted. A subscriber MAX_BACKLOG ticks behind is resynced.
+ * binary frames: [int len][byte kind][long seq] [int n] n x [id][lineId][latE7][lngE7] [int m] m x [id].
+ */
+final class FleetFeed {
+    static final double TILE_DEG = Double.parseDouble(Main.env("FLEET_TILE_DEG", "0.05"));
+    static final int MAX_TILES = 1024, MAX_BACKLOG = 8;
+    static final long ALL = Long.MIN_VALUE;
+
+    static final class Pos { final int lineId, latE7, lngE7; final long tile; Pos(int lineId, int latE7, int lngE7, long tile){this.lineId=lineId; this.latE7=latE7; this.lngE7=lngE7; this.tile=tile;} }
+
+    /** The tiles of a bbox; subscribers with equal views share frames. */
+    static final class View {
+        final long[] tiles;
+        View(long[] tiles){this.tiles=tiles;}
+        @Override public boolean equals(Object o){ return o instanceof View && Arrays.equals(tiles, ((View)o).tiles); }
+        @Override public int hashCode(){ return Arrays.hashCode(tiles); }
+    }
+
+    final class Sub {
+        final OutputStream os; final Runnable close; final boolean binary; final View view;
+        final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger backlog = new AtomicInteger();   // frames queued, at most one per tick
+        final AtomicBoolean scheduled = new AtomicBoolean(), closed = new AtomicBoolean();
+        Sub(OutputStream os, Runnable close, boolean binary, View view){this.os=os; this.close=close; this.binary=binary; this.view=view;}
+
+        void offer(byte[] f){ queue.add(f); backlog.incrementAndGet(); if (!closed.get() && scheduled.compareAndSet(false, true)) writers.execute(this::drain); }
+        void drain(){
+            try {
+                byte[] f;
+                while (!closed.get() && (f = queue.poll())!=null) { backlog.decrementAndGet(); long t0 = System.nanoTime(); os.write(f); if (queue.isEmpty()) os.flush(); Main.metrics.sseWrite(t0, f.length); }
+            } catch (IOException | RuntimeException e) { unsubscribe(this); }
+            scheduled.set(false);
+            if (!queue.isEmpty() && !closed.get() && scheduled.compareAndSet(false, true)) writers.execute(this::drain);
+        }
+    }
+
+    final Executor writers;
+    final Map<Integer, Pos> positions = new HashMap<>();      // as of the last tick, guarded by this
+    final Map<Long, Set<Integer>> members = new HashMap<>();  // tile -> bus ids
+    final Map<View, Set<Sub>> views = new HashMap<>();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicLong framesEncoded = new AtomicLong(), framesSent = new AtomicLong(), resyncs = new AtomicLong();
+    long seq;
+
+    FleetFeed(Executor writers){ this.writers = writers; }
+
+    static long tile(int latE7, int lngE7){
+        long ty = (long)Math.floor(latE7/Route.E7/TILE_DEG), tx = (long)Math.floor(lngE7/Route.E7/TILE_DEG);
+        return tx<<32 | (ty & 0xffffffffL);
+    }
+
+    /** Tiles covering the bbox, or {ALL} without one or when it spans more than MAX_TILES. */
+    static long[] tiles(double minLat, double minLng, double maxLat, double maxLng){
+        long y0 = (long)Math.floor(minLat/TILE_DEG), y1 = (long)Math.floor(maxLat/TILE_DEG);
+        long x0 = (long)Math.floor(minLng/TILE_DEG), x1 = (long)Math.floor(maxLng/TILE_DEG);
+        if (y1<y0 || x1<x0 || (y1-y0+1)*(x1-x0+1)>MAX_TILES) return new long[]{ALL};
+        long[] out = new long[(int)((y1-y0+1)*(x1-x0+1))]; int k = 0;
+        for (long x=x0;x<=x1;x++) for (long y=y0;y<=y1;y++) out[k++] = x<<32 | (y & 0xffffffffL);
+        return out;
+    }
+
+    synchronized Sub subscribe(OutputStream os, Runnable close, boolean binary, long[] tiles){
+        Sub s = new Sub(os, close, binary, new View(tiles));
+        views.computeIfAbsent(s.view, k -> new HashSet<>()).add(s);
+        active.incrementAndGet();
+        s.offer(snapshot(tiles, binary));
+        return s;
+    }
+
+    synchronized void unsubscribe(Sub s){
+        if (!s.closed.compareAndSet(false, true)) return;
+        active.decrementAndGet();
+        Set<Sub> set = views.get(s.view);
+        if (set!=null && set.remove(s) && set.isEmpty()) views.remove(s.view);
+        s.close.run();
+    }
+
+    /** Diffs every BusState against the last tick and pushes one encoded delta per subscribed view. */
+    synchronized void tick(Main.State st){
+        seq++;
+        Map<Long, List<Integer>> upserts = new HashMap<>(), removed = new HashMap<>();
+        Set<Integer> seen = new HashSet<>();
+        for (Main.BusState bs : Main.busStates.values()) {
+            Route r = Main.routeOf(st.lines.get(bs.lineId));
+            if (r.isEmpty()) continue;
+            int i = Math.floorMod(bs.idx, r.size());
+            int la = r.latE7[i], ln = r.lngE7[i];
+            seen.add(bs.busId);
+            Pos old = positions.get(bs.busId);
+            if (old!=null && old.latE7==la && old.lngE7==ln && old.lineId==bs.lineId) continue;
+            Pos p = new Pos(bs.lineId, la, ln, tile(la, ln));
+            positions.put(bs.busId, p);
+            if (old!=null && old.tile!=p.tile) { members.get(old.tile).remove(bs.busId); removed.computeIfAbsent(old.tile, k -> new ArrayList<>()).add(bs.busId); }
+            members.computeIfAbsent(p.tile, k -> new HashSet<>()).add(bs.busId);
+            upserts.computeIfAbsent(p.tile, k -> new ArrayList<>()).add(bs.busId);
+            upserts.computeIfAbsent(ALL, k -> new ArrayList<>()).add(bs.busId);
+        }
+        if (positions.size()>seen.size()) {
+            for (Iterator<Map.Entry<Integer, Pos>> it = positions.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Pos> e = it.next();
+                if (seen.contains(e.getKey())) continue;
+                it.remove(); members.get(e.getValue().tile).remove(e.getKey());
+                removed.computeIfAbsent(e.getValue().tile, k -> new ArrayList<>()).add(e.getKey());
+                removed.computeIfAbsent(ALL, k -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+        for (Map.Entry<View, Set<Sub>> e : views.entrySet()) {
+            List<Integer> up = new ArrayList<>(), rm = new ArrayList<>();
+            for (long t : e.getKey().tiles) { up.addAll(upserts.getOrDefault(t, List.of())); rm.addAll(removed.getOrDefault(t, List.of())); }
+            if (!up.isEmpty() && !rm.isEmpty()) { Set<Integer> moved = new HashSet<>(up); rm.removeIf(moved::contains); }
+            if (up.isEmpty() && rm.isEmpty()) continue;
+            byte[] json = null, bin = null;
+            for (Sub s : e.getValue()) {
+                if (s.backlog.get()>=MAX_BACKLOG) { resync(s); continue; }
+                byte[] f = s.binary ? (bin!=null ? bin : (bin = encode(false, up, rm, true))) : (json!=null ? json : (json = encode(false, up, rm, false)));
+                s.offer(f); framesSent.incrementAndGet();
+            }
+        }
+    }
+
+    void resync(Sub s){
+        s.queue.clear(); s.backlog.set(0); resyncs.incrementAndGet();
+        s.offer(snapshot(s.view.tiles, s.binary));
+    }
+
+    /** One frame for all of a subscriber's tiles; built per subscriber, only on connect and resync. */
+    byte[] snapshot(long[] tiles, boolean binary){
+        List<Integer> ids = new ArrayList<>();
+        for (long t : tiles) ids.addAll(t==ALL ? positions.keySet() : members.getOrDefault(t, Set.of()));
+        return encode(true, ids, List.of(), binary);
+    }
+
+    byte[] encode(boolean snapshot, List<Integer> up, List<Integer> rm, boolean binary){
+        framesEncoded.incrementAndGet();
+        if (binary) {
+            ByteBuffer b = ByteBuffer.allocate(4+1+8+4+16*up.size()+4+4*rm.size());
+            b.putInt(b.capacity()-4).put((byte)(snapshot?1:2)).putLong(seq).putInt(up.size());
+            for (int id : up) { Pos p = positions.get(id); b.putInt(id).putInt(p.lineId).putInt(p.latE7).putInt(p.lngE7); }
+            b.putInt(rm.size()); for (int id : rm) b.putInt(id);
+            return b.array();
+        }
+        JsonWriter w = new JsonWriter();
+        w.beginObject().name("seq").value(seq).name("buses").beginArray();
+        for (int id : up) { Pos p = positions.get(id); w.beginArray().value(id).value(p.lineId).valueE7(p.latE7).valueE7(p.lngE7).endArray(); }
+        w.endArray().name("removed").beginArray();
+        for (int id : rm) w.value(id);
+        w.endArray().endObject();
+        byte[] head = (snapshot ? "event: snapshot\ndata: " : "event: delta\ndata: ").getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[head.length+w.len+2];
+        System.arraycopy(head, 0, out, 0, head.length); System.arraycopy(w.buf, 0, out, head.length, w.len);
+        out[out.length-2] = '\n'; out[out.length-1] = '\n';
+        return out;
+    }
+}
@@ -0,0 +1,228 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves every bus without live reports once per SIM_TICK_MS: shards of primitive arrays stepped in
+ * parallel, dwelling at stops and waiting for an unclaimed departure at point 0. SIM_BUSES adds
+ * virtual buses that never reach State, as do the demo buses on DEFAULT_LINE. Overruns, skipped
+ * ticks and failures are counted.
+ */
+final class FleetSim {
+    static final long TICK_MS = Long.parseLong(Main.env("SIM_TICK_MS", "1000"));
+    static final int VIRTUAL = Integer.parseInt(Main.env("SIM_BUSES", "0"));
+    static final int THREADS = Integer.parseInt(Main.env("SIM_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    static final int SHARD_SIZE = 2048, VIRTUAL_BASE = 1<<30, DEMO_BASE = VIRTUAL_BASE+(1<<29);
+    static final double STOP_SPACING_M = TransitPlanner.STOP_SPACING_M, MIN_MPS = 5, MAX_MPS = 11;
+    static final long DWELL_S = 20, LAYOVER_S = 120;
+
+    /** Values one tick shares with every shard. */
+    static final class Tick {
+        final Main.State st; final long now, midnight; final double dt; final int day, sod;
+        Tick(Main.State st, long now, double dt){
+            this.st = st; this.now = now; this.dt = dt;
+            ZonedDateTime t = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault());
+            day = t.getDayOfWeek().getValue()-1; sod = t.toLocalTime().toSecondOfDay();
+            midnight = t.toLocalDate().atStartOfDay(t.getZone()).toInstant().toEpochMilli();
+        }
+    }
+
+    final class Shard {
+        final SplittableRandom rnd;
+        int n;
+        Main.BusState[] bus = new Main.BusState[64];
+        Route[] route = new Route[64];
+        double[] along = new double[64], nextStop = new double[64];
+        float[] cruise = new float[64];
+        long[] resume = new long[64];   // epoch ms the bus may move again; 0 while running
+        long version = -1;
+
+        Shard(long seed){ rnd = new SplittableRandom(seed); }
+
+        void add(Main.BusState bs, Route r, long now){
+            if (n==bus.length) {
+                int c = n*2;
+                bus = Arrays.copyOf(bus, c); route = Arrays.copyOf(route, c);
+                along = Arrays.copyOf(along, c); nextStop = Arrays.copyOf(nextStop, c);
+                cruise = Arrays.copyOf(cruise, c); resume = Arrays.copyOf(resume, c);
+            }
+            bus[n] = bs;
+            place(n++, r, now);
+        }
+
+        /** Puts bus i at a random point of r, running (a live one keeps its reported position). */
+        void place(int i, Route r, long now){
+            double loop = r.cum[r.size()];
+            Main.BusState bs = bus[i];
+            route[i] = r;
+            along[i] = loop>0 ? rnd.nextDouble()*loop : 0;
+            nextStop[i] = Math.min((Math.floor(along[i]/STOP_SPACING_M)+1)*STOP_SPACING_M, loop);
+            cruise[i] = (float)(MIN_MPS + rnd.nextDouble()*(MAX_MPS-MIN_MPS));
+            resume[i] = 0;
+            if (!bs.live) { bs.along = along[i]; bs.idx = bs.lastIdx = r.indexAt(along[i]); bs.speed = cruise[i]; bs.lastMs = now; }
+        }
+
+        void step(Tick t){
+            if (version!=t.st.version) {   // routes may have changed; keep the same fraction of the loop
+                for (int i=0;i<n;i++) {
+                    Route r = Main.routeOf(t.st.lines.get(bus[i].lineId));
+                    if (r==route[i]) continue;
+                    double old = route[i].cum[route[i].size()], loop = r.cum[r.size()];
+                    along[i] = old>0 ? along[i]/old*loop : 0;
+                    nextStop[i] = Math.min((Math.floor(along[i]/STOP_SPACING_M)+1)*STOP_SPACING_M, loop);
+                    route[i] = r; bus[i].lastIdx = r.indexAt(along[i]); bus[i].lastMs = t.now;
+                }
+                version = t.st.version;
+            }
+            for (int i=0;i<n;i++) {
+                Main.BusState bs = bus[i];
+                if (bs.live || resume[i]>t.now || !Main.cluster.owns(bs.lineId)) continue;
+                Route r = route[i];
+                double loop = r.cum[r.size()];
+                if (loop<=0) continue;
+                resume[i] = 0;
+                double a = along[i] + cruise[i]*(0.7+0.6*rnd.nextDouble())*t.dt;
+                if (a>=nextStop[i]) {
+                    if (nextStop[i]>=loop) {   // terminal: the layover is not travel time, so the ETA clock restarts at departure
+                        a = 0; nextStop[i] = Math.min(STOP_SPACING_M, loop);
+                        Schedule sc = t.st.lineSchedules.get(bs.lineId);
+                        long dep = sc==null ? -1 : claim(bs.lineId, sc, t);
+                        resume[i] = dep>=0 ? dep : t.now + (long)((0.5+rnd.nextDouble())*LAYOVER_S*1000);
+                        bs.lastIdx = 0; bs.lastMs = resume[i];
+                    } else {
+                        a = nextStop[i]; nextStop[i] = Math.min(nextStop[i]+STOP_SPACING_M, loop);
+                        resume[i] = t.now + (long)((0.5+rnd.nextDouble())*DWELL_S*1000);
+                    }
+                }
+                along[i] = a;
+                int idx = r.indexAt(a);
+                if (idx!=bs.lastIdx) {
+                    Main.eta.observe(bs.lineId, r, bs.lastIdx, idx, (t.now-bs.lastMs)/1000.0, t.sod);
+                    bs.lastIdx = idx; bs.lastMs = t.now;
+                }
+                bs.along = a; bs.idx = idx;
+            }
+        }
+    }
+
+    final List<Shard> shards = new ArrayList<>();
+    final Set<Integer> tracked = new HashSet<>();
+    final Map<Integer, AtomicLong> taken = new ConcurrentHashMap<>();   // line -> last departure claimed, epoch ms
+    final Histogram stepMicros = new Histogram();
+    final AtomicLong overruns = new AtomicLong(), skipped = new AtomicLong(), errors = new AtomicLong();
+    ForkJoinPool pool;
+    volatile int buses;
+    long version = -1, lastMs;
+    int virtual, spreadOver;
+
+    void start(int demo){
+        pool = new ForkJoinPool(Math.max(1, THREADS));
+        lastMs = System.currentTimeMillis();
+        for (int k=0;k<demo;k++) { Main.BusState bs = new Main.BusState(); bs.busId = DEMO_BASE+k; bs.lineId = Main.DEFAULT_LINE.id; add(bs, Main.DEFAULT_ROUTE); }
+        sync(Main.state());
+        Thread t = new Thread(this::run, "fleet-sim"); t.setDaemon(true); t.start();
+    }
+
+    void add(Main.BusState bs, Route r){
+        Shard s = shards.isEmpty() ? null : shards.get(shards.size()-1);
+        if (s==null || s.n>=SHARD_SIZE) { s = new Shard(shards.size()); shards.add(s); }
+        s.add(bs, r, lastMs);
+        tracked.add(bs.busId);
+        Main.busStates.putIfAbsent(bs.busId, bs);
+    }
+
+    /** Adds the buses of st not yet simulated. A bus that ingest already knows keeps its BusState. */
+    void sync(Main.State st){
+        for (Main.Bus b : st.buses.values()) {
+            if (tracked.contains(b.id)) continue;
+            Main.BusState bs = Main.busStates.computeIfAbsent(b.id, k -> { Main.BusState n = new Main.BusState(); n.busId=k; n.lineId=b.lineId; return n; });
+            add(bs, Main.routeOf(st.lines.get(b.lineId)));
+        }
+        if (VIRTUAL>0) spread(st);
+        version = st.version;
+        buses = tracked.size();
+    }
+
+    /** Creates the virtual buses, and deals them out again whenever the number of owned lines changes. */
+    void spread(Main.State st){
+        List<Main.Line> owned = new ArrayList<>();
+        for (Main.Line l : st.lines.values()) if (Main.cluster.owns(l.id)) owned.add(l);
+        if (owned.isEmpty() || owned.size()==spreadOver) return;
+        owned.sort(Comparator.comparingInt(l -> l.id));
+        spreadOver = owned.size();
+        for (Shard s : shards)
+            for (int i=0;i<s.n;i++) {
+                Main.BusState bs = s.bus[i];
+                if (bs.busId<VIRTUAL_BASE || bs.busId>=DEMO_BASE) continue;
+                Main.Line l = owned.get((bs.busId-VIRTUAL_BASE) % owned.size());
+                if (bs.lineId!=l.id) { bs.lineId = l.id; s.place(i, Main.routeOf(l), lastMs); }
+            }
+        for (;virtual<VIRTUAL;virtual++) {
+            Main.BusState bs = new Main.BusState(); bs.busId = VIRTUAL_BASE+virtual; bs.lineId = owned.get(virtual % owned.size()).id;
+            add(bs, Main.routeOf(st.lines.get(bs.lineId)));
+        }
+    }
+
+    /** Takes the first departure of the line at or after now that no bus has taken yet; -1 if the schedule is empty. */
+    long claim(int lineId, Schedule sc, Tick t){
+        AtomicLong last = taken.computeIfAbsent(lineId, k -> new AtomicLong());
+        while (true) {
+            long prev = last.get(), from = Math.max(t.now, prev+1000), off = from-t.midnight;
+            int days = (int)(off/86_400_000L), sec = (int)(off%86_400_000L/1000);
+            int next = sc.next((t.day+days)%7, sec-1);
+            if (next<0) return -1;
+            long dep = t.midnight + days*86_400_000L + next*1000L;
+            if (last.compareAndSet(prev, dep)) return dep;
+        }
+    }
+
+    void run(){
+        long period = TICK_MS*1_000_000L, due = System.nanoTime();
+        while (true) {
+            long wait = due-System.nanoTime();
+            if (wait>0) LockSupport.parkNanos(wait);
+            long t0 = System.nanoTime();
+            try { tick(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+            catch (Exception e) {
+                Throwable c = e instanceof ExecutionException && e.getCause()!=null ? e.getCause() : e;
+                if (errors.getAndIncrement()==0) System.err.println("sim: tick at state version "+version+" over "+buses+" buses failed, later failures are only counted: "+c);
+            }
+            Main.metrics.tick(due, t0, buses);
+            due += period;
+            long late = System.nanoTime()-due;
+            if (late>0) { overruns.incrementAndGet(); long missed = late/period; if (missed>0) { skipped.addAndGet(missed); due += missed*period; } }
+        }
+    }
+
+    void tick() throws Exception {
+        Main.State st = Main.state();
+        if (st.version!=version) sync(st);
+        long now = System.currentTimeMillis();
+        Tick t = new Tick(st, now, Math.min(now-lastMs, 10*TICK_MS)/1000.0);
+        lastMs = now;
+        long s0 = System.nanoTime();
+        List<Callable<Object>> steps = new ArrayList<>(shards.size());
+        for (Shard s : shards) steps.add(Executors.callable(() -> s.step(t)));
+        for (Future<Object> f : pool.invokeAll(steps)) f.get();
+        stepMicros.record((System.nanoTime()-s0)/1000);
+        Main.streamHub.tick();
+        Main.fleetFeed.tick(st);
+    }
+}
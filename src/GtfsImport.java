@@ -0,0 +1,282 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * --import-gtfs feed.zip: agencies, routes, one shape and the weekday-tagged first departures per
+ * route, parsed from streamed zip entries by one worker per core and committed as one WAL batch.
+ */
+final class GtfsImport {
+    static final int CHUNK = 1<<20;
+    static final Rows POISON = new Rows(new byte[0], 0, 0);
+
+    interface Sink { void rows(Rows r); }
+
+    static final class Shape {
+        int[] seq = new int[64], lat = new int[64], lng = new int[64]; int n;
+        synchronized void add(int[] s, int[] la, int[] ln, int m){
+            if (n+m>seq.length) { int c = Math.max(n+m, seq.length*2); seq = Arrays.copyOf(seq, c); lat = Arrays.copyOf(lat, c); lng = Arrays.copyOf(lng, c); }
+            System.arraycopy(s, 0, seq, n, m); System.arraycopy(la, 0, lat, n, m); System.arraycopy(ln, 0, lng, n, m); n += m;
+        }
+    }
+
+    final Map<String, String> agencies = new ConcurrentHashMap<>();
+    final Map<String, Integer> routeIdx = new HashMap<>();
+    final List<String[]> routes = new ArrayList<>();            // route_id, agency_id, display name
+    final Map<String, Integer> serviceDays = new ConcurrentHashMap<>();  // service_id -> weekday mask
+    final Map<String, Integer> tripIdx = new HashMap<>();
+    int trips;
+    int[] tripRoute = new int[1024];
+    byte[] tripDir = new byte[1024];
+    byte[] tripDays = new byte[1024];
+    String[] tripShape = new String[1024];
+    int[] repDir, repTrip;                                      // per route
+    String[] repShape;
+    final Map<String, Shape> shapes = new HashMap<>();
+    AtomicLongArray first;          // per trip: stop_sequence<<32 | departure second
+    final Map<Integer, List<long[]>> repStops = new HashMap<>(); // trip -> {seq, packed stop coord index}
+    final Map<String, Long> stops = new ConcurrentHashMap<>();  // stop_id -> latE7<<32 | lngE7
+
+    static void run(File file) throws Exception {
+        long t0 = System.nanoTime();
+        GtfsImport g = new GtfsImport();
+        List<byte[]> records;
+        try (ZipFile zip = new ZipFile(file)) { records = g.load(zip); }
+        Main.journal.commitAll(records);
+        System.err.printf("gtfs: %d agencies, %d lines, %d trips imported from %s in %d ms%n",
+                g.agencies.size(), g.routes.size(), g.trips, file, (System.nanoTime()-t0)/1000000);
+    }
+
+    List<byte[]> load(ZipFile zip) throws Exception {
+        scan(zip, "agency.txt", h -> { int id = col(h,"agency_id"), name = col(h,"agency_name");
+            return r -> { while (r.next()) agencies.put(r.str(id), r.str(name)); }; });
+        scan(zip, "calendar.txt", h -> { int id = col(h,"service_id"); int[] days = {col(h,"monday"),col(h,"tuesday"),col(h,"wednesday"),col(h,"thursday"),col(h,"friday"),col(h,"saturday"),col(h,"sunday")};
+            return r -> { while (r.next()) { int m = 0; for (int d=0;d<7;d++) if (r.integer(days[d])==1) m |= 1<<d; serviceDays.merge(r.str(id), m, (a, b) -> a|b); } }; });
+        scan(zip, "routes.txt", h -> { int id = col(h,"route_id"), ag = col(h,"agency_id"), sn = col(h,"route_short_name"), ln = col(h,"route_long_name");
+            return r -> {
+                List<String[]> local = new ArrayList<>();
+                while (r.next()) {
+                    String s = r.str(sn), l = r.str(ln);
+                    local.add(new String[]{r.str(id), r.str(ag), s.isEmpty()?(l.isEmpty()?r.str(id):l):(l.isEmpty()?s:s+" - "+l)});
+                }
+                synchronized (this) { for (String[] x : local) if (routeIdx.putIfAbsent(x[0], routes.size())==null) routes.add(x); }
+            }; });
+        scan(zip, "trips.txt", h -> { int id = col(h,"trip_id"), rt = col(h,"route_id"), sv = col(h,"service_id"), dir = col(h,"direction_id"), sh = col(h,"shape_id");
+            return r -> {
+                List<String[]> local = new ArrayList<>();
+                while (r.next()) local.add(new String[]{r.str(id), r.str(rt), r.str(sv), r.str(dir), r.str(sh)});
+                synchronized (this) { for (String[] x : local) addTrip(x); }
+            }; });
+        pickRepresentatives();
+
+        first = new AtomicLongArray(trips);
+        for (int t=0;t<trips;t++) first.set(t, Long.MAX_VALUE);
+        Thread[] phase = {
+            background(() -> scan(zip, "shapes.txt", h -> { int id = col(h,"shape_id"), la = col(h,"shape_pt_lat"), ln = col(h,"shape_pt_lon"), sq = col(h,"shape_pt_sequence");
+                return r -> {
+                    int[] s = new int[256], a = new int[256], b = new int[256]; int m = 0; Shape cur = null; byte[] key = null;
+                    while (r.next()) {
+                        if (key==null || !r.eq(id, key)) { if (cur!=null && m>0) cur.add(s, a, b, m); m = 0; key = r.bytes(id); cur = shapes.get(r.str(id)); }
+                        if (cur==null) continue;
+                        if (m==s.length) { s = Arrays.copyOf(s, m*2); a = Arrays.copyOf(a, m*2); b = Arrays.copyOf(b, m*2); }
+                        s[m] = r.integer(sq); a[m] = r.e7(la); b[m] = r.e7(ln); m++;
+                    }
+                    if (cur!=null && m>0) cur.add(s, a, b, m);
+                }; })),
+            background(() -> scan(zip, "stop_times.txt", h -> { int id = col(h,"trip_id"), dep = col(h,"departure_time"), arr = col(h,"arrival_time"), sq = col(h,"stop_sequence"), stop = col(h,"stop_id");
+                return r -> {
+                    Map<Integer, List<long[]>> local = new HashMap<>(); List<String> names = new ArrayList<>();
+                    byte[] key = null; Integer t = null;
+                    while (r.next()) {
+                        if (key==null || !r.eq(id, key)) { key = r.bytes(id); t = tripIdx.get(r.str(id)); }
+                        if (t==null) continue;
+                        int seq = r.integer(sq), sec = r.time(dep); if (sec<0) sec = r.time(arr);
+                        if (sec>=0) { long v = (long)seq<<32 | sec; long cur; while (v<(cur = first.get(t)) && !first.compareAndSet(t, cur, v)) { } }
+                        if (repStops.containsKey(t)) { names.add(r.str(stop)); local.computeIfAbsent(t, k -> new ArrayList<>()).add(new long[]{seq, names.size()-1}); }
+                    }
+                    if (local.isEmpty()) return;
+                    synchronized (repStops) { for (Map.Entry<Integer, List<long[]>> e : local.entrySet()) for (long[] x : e.getValue()) repStops.get(e.getKey()).add(new long[]{x[0], stopKey(names.get((int)x[1]))}); }
+                }; })),
+            background(() -> scan(zip, "stops.txt", h -> { int id = col(h,"stop_id"), la = col(h,"stop_lat"), ln = col(h,"stop_lon");
+                return r -> { while (r.next()) stops.put(r.str(id), (long)r.e7(la)<<32 | (r.e7(ln) & 0xffffffffL)); }; }))
+        };
+        for (Thread t : phase) t.join();
+        for (Thread t : phase) if (failures.get(t)!=null) throw new IOException("gtfs import failed", failures.get(t));
+        return build();
+    }
+
+    // stop ids are interned to an index so stop_times workers do not hold one String per row
+    final Map<String, Integer> stopKeys = new HashMap<>();
+    final List<String> stopNames = new ArrayList<>();
+    long stopKey(String id){ Integer k = stopKeys.get(id); if (k==null) { k = stopNames.size(); stopKeys.put(id, k); stopNames.add(id); } return k; }
+
+    final Map<Thread, Throwable> failures = new ConcurrentHashMap<>();
+    interface Step { void run() throws Exception; }
+    Thread background(Step s){
+        Thread t = new Thread(() -> { try { s.run(); } catch (Throwable e) { failures.put(Thread.currentThread(), e); } }, "gtfs-import");
+        t.start(); return t;
+    }
+
+    void addTrip(String[] x){
+        Integer r = routeIdx.get(x[1]);
+        if (r==null || tripIdx.putIfAbsent(x[0], trips)!=null) return;
+        if (trips==tripRoute.length) { int c = trips*2; tripRoute = Arrays.copyOf(tripRoute, c); tripDir = Arrays.copyOf(tripDir, c); tripDays = Arrays.copyOf(tripDays, c); tripShape = Arrays.copyOf(tripShape, c); }
+        tripRoute[trips] = r; tripDir[trips] = (byte)("1".equals(x[3])?1:0);
+        tripDays[trips] = (byte)(int)serviceDays.getOrDefault(x[2], Schedule.DAILY); // calendar_dates-only services count every day
+        tripShape[trips] = x[4].isEmpty()?null:x[4];
+        trips++;
+    }
+
+    /** Per route: the busier direction, its most used shape, and one trip of it for the stop fallback. */
+    void pickRepresentatives(){
+        int n = routes.size();
+        int[][] dirCount = new int[n][2];
+        for (int t=0;t<trips;t++) dirCount[tripRoute[t]][tripDir[t]]++;
+        repDir = new int[n]; repTrip = new int[n]; repShape = new String[n];
+        List<Map<String, Integer>> shapeCount = new ArrayList<>();
+        for (int r=0;r<n;r++) { repDir[r] = dirCount[r][1]>dirCount[r][0]?1:0; repTrip[r] = -1; shapeCount.add(new HashMap<>()); }
+        for (int t=0;t<trips;t++) {
+            int r = tripRoute[t]; if (tripDir[t]!=repDir[r]) continue;
+            if (repTrip[r]<0) repTrip[r] = t;
+            if (tripShape[t]!=null) shapeCount.get(r).merge(tripShape[t], 1, Integer::sum);
+        }
+        for (int r=0;r<n;r++) {
+            String best = null; int bc = 0;
+            for (Map.Entry<String, Integer> e : shapeCount.get(r).entrySet()) if (e.getValue()>bc) { best = e.getKey(); bc = e.getValue(); }
+            repShape[r] = best;
+            if (best!=null) shapes.putIfAbsent(best, new Shape());
+            else if (repTrip[r]>=0) repStops.put(repTrip[r], new ArrayList<>());
+        }
+    }
+
+    List<byte[]> build(){
+        List<byte[]> out = new ArrayList<>();
+        Map<String, Integer> companyOf = new HashMap<>();
+        for (Map.Entry<String, String> e : agencies.entrySet()) {
+            Main.Company c = new Main.Company(); c.id = Main.cluster.nextId(Main.companySeq); c.name = e.getValue();
+            companyOf.put(e.getKey(), c.id); out.add(Journal.company(c));
+        }
+        Integer only = companyOf.size()==1 ? companyOf.values().iterator().next() : null;
+        List<Map<Integer, Integer>> departures = new ArrayList<>();
+        for (int r=0;r<routes.size();r++) departures.add(new HashMap<>());
+        for (int t=0;t<trips;t++) {
+            int r = tripRoute[t]; long v = first.get(t);
+            if (v!=Long.MAX_VALUE && tripDays[t]!=0 && tripDir[t]==repDir[r]) departures.get(r).merge((int)(v & 0xffffffffL) % 86400, (int)tripDays[t], (a, b) -> a|b);
+        }
+        for (int r=0;r<routes.size();r++) {
+            String[] x = routes.get(r);
+            Integer companyId = companyOf.getOrDefault(x[1], only);
+            if (companyId==null) {
+                Main.Company c = new Main.Company(); c.id = Main.cluster.nextId(Main.companySeq); c.name = x[1].isEmpty()?"GTFS":x[1];
+                companyOf.put(x[1], c.id); out.add(Journal.company(c)); companyId = c.id;
+            }
+            Main.Line l = new Main.Line(); l.id = Main.cluster.nextId(Main.lineSeq); l.companyId = companyId; l.name = x[2];
+            out.add(Journal.line(l));
+            int[][] geo = geometry(r);
+            if (geo!=null) out.add(Journal.route(l.id, geo[0], geo[1]));
+            Map<Integer, Integer> deps = departures.get(r);
+            if (!deps.isEmpty()) {
+                int[] secs = new int[deps.size()]; byte[] days = new byte[deps.size()]; int k = 0;
+                for (Map.Entry<Integer, Integer> e : deps.entrySet()) { secs[k] = e.getKey(); days[k++] = (byte)(int)e.getValue(); }
+                out.add(Journal.schedule(l.id, new Schedule(secs, days)));
+            }
+        }
+        return out;
+    }
+
+    int[][] geometry(int r){
+        int n; long[] order; int[] la, ln;
+        Shape s = repShape[r]==null?null:shapes.get(repShape[r]);
+        if (s!=null) {
+            n = s.n; order = new long[n];
+            for (int i=0;i<n;i++) order[i] = (long)s.seq[i]<<32 | i;
+            la = s.lat; ln = s.lng;
+        } else {
+            List<long[]> st = repTrip[r]<0?null:repStops.get(repTrip[r]);
+            if (st==null) return null;
+            n = 0; order = new long[st.size()]; la = new int[st.size()]; ln = new int[st.size()];
+            for (long[] x : st) {
+                Long c = stops.get(stopNames.get((int)x[1])); if (c==null) continue;
+                la[n] = (int)(c>>32); ln[n] = (int)(long)c; order[n] = x[0]<<32 | n; n++;
+            }
+        }
+        if (n<2) return null;
+        Arrays.sort(order, 0, n);
+        int[] a = new int[n], b = new int[n];
+        for (int i=0;i<n;i++) { int k = (int)order[i]; a[i] = la[k]; b[i] = ln[k]; }
+        return new int[][]{a, b};
+    }
+
+    static int col(Map<String, Integer> h, String name){ Integer i = h.get(name); return i==null?-1:i; }
+
+    /** Streams one entry: this thread cuts record-aligned chunks, one worker per core runs the sink. */
+    static void scan(ZipFile zip, String name, Function<Map<String, Integer>, Sink> open) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry==null) return;
+        int workers = Runtime.getRuntime().availableProcessors();
+        BlockingQueue<Rows> queue = new ArrayBlockingQueue<>(2*workers);
+        AtomicReference<Throwable> err = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        try (InputStream in = zip.getInputStream(entry)) {
+            byte[] carry = new byte[0];
+            boolean eof = false;
+            while (!eof) {
+                byte[] b = Arrays.copyOf(carry, Math.max(CHUNK, carry.length*2));
+                int len = carry.length;
+                while (len<b.length) { int k = in.read(b, len, b.length-len); if (k<0) { eof = true; break; } len += k; }
+                int cut = eof ? len : recordEnd(b, len);
+                if (cut<0) { carry = Arrays.copyOf(b, len); continue; } // a single record larger than the chunk
+                carry = Arrays.copyOfRange(b, cut, len);
+                Rows rows = new Rows(b, 0, cut);
+                if (threads.isEmpty()) {
+                    if (cut>=3 && b[0]==(byte)0xEF && b[1]==(byte)0xBB && b[2]==(byte)0xBF) rows.pos = 3;
+                    if (!rows.next()) return;
+                    Map<String, Integer> header = new HashMap<>();
+                    for (int i=0;i<rows.n;i++) header.put(rows.str(i), i);
+                    Sink sink = open.apply(header);
+                    for (int w=0;w<workers;w++) {
+                        Thread t = new Thread(() -> {
+                            while (true) {
+                                Rows r;
+                                try { r = queue.take(); } catch (InterruptedException e) { return; }
+                                if (r==POISON) return;
+                                try { sink.rows(r); } catch (RuntimeException e) { err.compareAndSet(null, e); }
+                            }
+                        }, "gtfs-parse");
+                        t.start(); threads.add(t);
+                    }
+                }
+                put(queue, rows);
+            }
+        } finally {
+            for (int i=0;i<threads.size();i++) put(queue, POISON);
+            for (Thread t : threads) { try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); } }
+        }
+        if (err.get()!=null) throw new IOException(name+": "+err.get(), err.get());
+    }
+
+    static void put(BlockingQueue<Rows> q, Rows r) throws IOException {
+        try { q.put(r); } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException(); }
+    }
+
+    /** End of the last complete record in b[0..len), honouring quoted newlines; -1 if there is none. */
+    static int recordEnd(byte[] b, int len){
+        boolean quoted = false; int end = -1;
+        for (int i=0;i<len;i++) { byte c = b[i]; if (c=='"') quoted = !quoted; else if (c=='\n' && !quoted) end = i+1; }
+        return end;
+    }
+}
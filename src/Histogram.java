@@ -0,0 +1,37 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the HDR style: 8 sub-buckets per power of two, so any recorded
+ * value is within 12.5%. record() is one atomic increment, readers walk the counts.
+ */
+final class Histogram {
+    final AtomicLongArray counts = new AtomicLongArray(64*8);
+    final AtomicLong total = new AtomicLong(), sum = new AtomicLong();
+
+    static int index(long v){
+        if (v<8) return (int)Math.max(v, 0);
+        int exp = 63-Long.numberOfLeadingZeros(v);
+        return (exp-2)*8 + (int)(v>>>(exp-3) & 7);
+    }
+
+    static long lower(int i){ return i<8 ? i : (8L+(i&7)) << (i/8-1); }
+
+    void record(long v){ counts.incrementAndGet(index(v)); total.incrementAndGet(); sum.addAndGet(v); }
+
+    /** Values in buckets whose upper edge is at most v. */
+    long countAtMost(long v){
+        long n = 0;
+        for (int i=0;i<counts.length() && lower(i+1)-1<=v;i++) n += counts.get(i);
+        return n;
+    }
+
+    /** Upper edge of the bucket holding quantile q (0..1); 0 when empty. */
+    long percentile(double q){
+        long n = total.get();
+        if (n==0) return 0;
+        long rank = (long)Math.ceil(q*n), seen = 0;
+        for (int i=0;i<counts.length();i++) { seen += counts.get(i); if (seen>=rank) return lower(i+1)-1; }
+        return lower(counts.length())-1;
+    }
+}
@@ -0,0 +1,84 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handler executor per EXECUTOR: "bounded" (default; HTTP_THREADS threads, HTTP_QUEUE slots, 503
+ * from the dispatcher when full), "virtual" (Java 21+, warns and runs bounded before) or "cached".
+ */
+final class HttpExec {
+    static final ThreadLocal<Boolean> SHED = new ThreadLocal<>();
+    final String mode;
+    final ExecutorService pool;
+    final ThreadPoolExecutor bounded;
+    final AtomicLong served = new AtomicLong(), rejected = new AtomicLong();
+    final AtomicInteger inFlight = new AtomicInteger(), peakInFlight = new AtomicInteger();
+
+    HttpExec(String requested){
+        ExecutorService v = "virtual".equals(requested) ? virtualThreads() : null;
+        if (v==null && "virtual".equals(requested)) System.err.println("http: EXECUTOR=virtual needs Java 21+, running bounded on Java "+Runtime.version().feature());
+        if (v!=null) { mode = "virtual"; pool = v; bounded = null; }
+        else if ("cached".equals(requested)) { mode = "cached"; pool = Executors.newCachedThreadPool(); bounded = null; }
+        else {
+            int threads = Integer.parseInt(Main.env("HTTP_THREADS", String.valueOf(4*Runtime.getRuntime().availableProcessors())));
+            int queue = Integer.parseInt(Main.env("HTTP_QUEUE", "1024"));
+            AtomicInteger n = new AtomicInteger();
+            bounded = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queue),
+                    r -> { Thread t = new Thread(r, "http-"+n.incrementAndGet()); t.setDaemon(true); return t; },
+                    (r, ex) -> { rejected.incrementAndGet(); SHED.set(Boolean.TRUE); try { r.run(); } finally { SHED.remove(); } });
+            bounded.allowCoreThreadTimeOut(true);
+            mode = "bounded"; pool = bounded;
+        }
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor() when the runtime has it; null on older JDKs. */
+    static ExecutorService virtualThreads(){
+        try { return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+        catch (ReflectiveOperationException e) { return null; }
+    }
+
+    void mount(HttpServer server, String path, HttpHandler h){
+        Metrics.Endpoint m = Main.metrics.endpoint(path);
+        HttpContext ctx = server.createContext(path, h);
+        ctx.getAttributes().put(Metrics.KEY, m);
+        ctx.getFilters().add(new Filter() {
+            public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+                if (SHED.get()!=null) {
+                    ex.getResponseHeaders().set("Retry-After", "1");
+                    ex.sendResponseHeaders(503, -1); ex.close(); return;
+                }
+                int now = inFlight.incrementAndGet();
+                peakInFlight.accumulateAndGet(now, Math::max);
+                try { Main.metrics.request(m, ex, chain); } finally { inFlight.decrementAndGet(); served.incrementAndGet(); }
+            }
+            public String description(){ return "load shedding"; }
+        });
+        ctx.getFilters().add(FAILURES);
+    }
+
+    /** A handler that throws before answering gets 503 (I/O, e.g. a journal that cannot write) or 500, not a dropped connection. */
+    static final Filter FAILURES = new Filter() {
+        public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+            try { chain.doFilter(ex); }
+            catch (IOException | RuntimeException e) {
+                if (ex.getResponseCode()>=0) throw e;
+                Main.sendError(ex, e instanceof IOException ? 503 : 500, String.valueOf(e.getMessage()));
+            }
+        }
+        public String description(){ return "failures"; }
+    };
+
+    int queued(){ return bounded==null?0:bounded.getQueue().size(); }
+    int threads(){ return bounded==null?-1:bounded.getPoolSize(); }
+}
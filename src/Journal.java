@@ -0,0 +1,303 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * WAL with group commit: records are applied to head and queued under one lock, the writer thread
+ * fsyncs each batch before publishing its State, and a failed write makes the journal read-only.
+ * Snapshots rotate the segment. Framing: [int length][int crc32][byte type][fields].
+ */
+class Journal {
+    static final byte COMPANY=1, LINE=2, BUS=3, ROUTE=4, SCHEDULE=5, AD=6, PASSENGER=7, DEPARTURES=8; // SCHEDULE: legacy daily strings
+    static final int SNAPSHOT_MAGIC = 0x4F4E534E;
+    static final long SNAPSHOT_EVERY_MS = 60000;
+
+    static class Pending {
+        final List<byte[]> records; final Main.State state; final CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending(List<byte[]> records, Main.State state){this.records=records; this.state=state;}
+        boolean rotate(){ return records==null; }
+    }
+
+    final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    final AtomicLong sinceSnapshot = new AtomicLong(), snapshotFailures = new AtomicLong();
+    File dir;
+    volatile boolean open;
+    volatile IOException failed;   // first write error; no commit succeeds after it
+    Main.State head;                    // newest applied State, ahead of stateRef until its batch is durable
+    FileChannel wal;
+    long segment;
+
+    void commit(byte[] record) throws IOException { commitAll(List.of(record)); }
+
+    void commitAll(List<byte[]> records) throws IOException { commitAll(records, true); }
+
+    /**
+     * Applies the records as one State version (one swap, one durable batch); all or nothing.
+     * Records that originate here are handed to the cluster for replication; replicated ones are not.
+     */
+    void commitAll(List<byte[]> records, boolean local) throws IOException {
+        if (records.isEmpty()) return;
+        Pending p = null;
+        Main.State.Tx tx;
+        synchronized (this) {
+            if (failed!=null) throw new IOException("journal is read-only after a write error", failed);
+            tx = new Main.State.Tx(head!=null ? head : Main.state());
+            for (byte[] r : records) apply(tx, ByteBuffer.wrap(r));
+            Main.State next = tx.build();
+            if (open) { head = next; p = new Pending(records, next); queue.add(p); }
+            else Main.stateRef.set(next);
+        }
+        if (p!=null) await(p);
+        tx.published();
+        if (local) Main.cluster.replicate(records);
+    }
+
+    static void await(Pending p) throws IOException {
+        try { p.done.join(); }
+        catch (CompletionException e) { throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause()); }
+    }
+
+    void open(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create "+dir);
+        segment = restore();
+        wal = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        open = true;
+        Thread w = new Thread(this::writeLoop, "wal-writer"); w.setDaemon(true); w.start();
+        ScheduledExecutorService snap = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "snapshot"); t.setDaemon(true); return t; });
+        snap.scheduleWithFixedDelay(() -> {
+            if (sinceSnapshot.get()==0 || failed!=null) return;
+            try { snapshot(); }
+            catch (IOException e) { snapshotFailures.incrementAndGet(); System.err.println("journal: snapshot in "+dir+" failed, WAL segments are kept: "+e); }
+        }, SNAPSHOT_EVERY_MS, SNAPSHOT_EVERY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    File segmentFile(long n){ return new File(dir, String.format("wal-%010d.log", n)); }
+
+    void writeLoop(){
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, 4096);
+                if (failed!=null) { for (Pending p : batch) p.done.completeExceptionally(failed); continue; }
+                List<ByteBuffer> bufs = new ArrayList<>();
+                for (Pending p : batch) {
+                    if (p.rotate()) { flush(bufs); wal.close(); segment++; wal = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND); }
+                    else for (byte[] r : p.records) bufs.add(frame(r));
+                }
+                flush(bufs);
+                sinceSnapshot.addAndGet(batch.size());
+                for (Pending p : batch) { if (p.state!=null) Main.stateRef.set(p.state); p.done.complete(null); }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                IOException io = e instanceof IOException ? (IOException)e : new IOException(e);
+                synchronized (this) { failed = io; head = Main.state(); }
+                System.err.println("journal: write to "+segmentFile(segment)+" failed, refusing writes until restart: "+e);
+                for (Pending p : batch) p.done.completeExceptionally(io);
+            }
+        }
+    }
+
+    void flush(List<ByteBuffer> bufs) throws IOException {
+        if (bufs.isEmpty()) return;
+        ByteBuffer[] arr = bufs.toArray(new ByteBuffer[0]);
+        long left = 0; for (ByteBuffer b : arr) left += b.remaining();
+        while (left>0) left -= wal.write(arr);
+        wal.force(false);
+        bufs.clear();
+    }
+
+    static ByteBuffer frame(byte[] record){
+        CRC32 crc = new CRC32(); crc.update(record);
+        ByteBuffer b = ByteBuffer.allocate(8+record.length);
+        b.putInt(record.length).putInt((int)crc.getValue()).put(record).flip();
+        return b;
+    }
+
+    /** Writes a snapshot of the state as of the rotation point and deletes the segments it covers. */
+    void snapshot() throws IOException {
+        Pending rot; Main.State st;
+        synchronized (this) {
+            st = head!=null ? head : Main.state();
+            rot = new Pending(null, null);
+            queue.add(rot);
+        }
+        await(rot);
+        long from = segment;
+        sinceSnapshot.set(0);
+        File tmp = new File(dir, "snapshot.bin.tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(ch), 1<<16);
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(SNAPSHOT_MAGIC); out.writeLong(from);
+            for (byte[] r : records(st)) { ByteBuffer f = frame(r); out.write(f.array(), 0, f.limit()); }
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, "snapshot.bin").toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        File[] old = dir.listFiles((d, n) -> n.startsWith("wal-") && n.compareTo(segmentFile(from).getName())<0);
+        if (old!=null) for (File f : old) f.delete();
+    }
+
+    static List<byte[]> records(Main.State st){
+        List<byte[]> out = new ArrayList<>();
+        for (Main.Company c : st.companies.values()) out.add(company(c));
+        for (Main.Line l : st.lines.values()) { out.add(line(l)); if (!l.route.isEmpty()) out.add(route(l.id, l.route)); }
+        for (Main.Bus b : st.buses.values()) out.add(bus(b));
+        for (Map.Entry<Integer, Schedule> e : st.lineSchedules.entrySet()) out.add(schedule(e.getKey(), e.getValue()));
+        for (Main.Ad a : st.ads) out.add(ad(a));
+        for (Main.Passenger p : st.passengers.values()) out.add(passenger(p));
+        return out;
+    }
+
+    /**
+     * Loads snapshot.bin and replays newer WAL segments; returns the segment to append to. Only the
+     * newest segment may end in a torn or corrupt frame, which is cut off. Anywhere else a bad frame
+     * would drop history that later records build on, so it fails the restore.
+     */
+    long restore() throws IOException {
+        long seg = 0;
+        Main.State.Tx tx = new Main.State.Tx(Main.state());
+        File snap = new File(dir, "snapshot.bin");
+        if (snap.isFile()) {
+            try (FileChannel ch = FileChannel.open(snap.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (b.getInt()!=SNAPSHOT_MAGIC) throw new IOException("bad snapshot "+snap);
+                seg = b.getLong();
+                int good = replay(tx, b);
+                if (good<b.limit()) throw new IOException("corrupt record in "+snap+" at byte "+good);
+            }
+        }
+        File[] segs = dir.listFiles((d, n) -> n.startsWith("wal-") && n.endsWith(".log"));
+        long last = seg;
+        if (segs!=null) {
+            Arrays.sort(segs);
+            for (int i=0;i<segs.length;i++) {
+                File f = segs[i];
+                long n = Long.parseLong(f.getName().substring(4, 14));
+                if (n<seg) continue;
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    int good = replay(tx, b);
+                    if (good<ch.size()) {
+                        if (i<segs.length-1) throw new IOException("corrupt record in "+f+" at byte "+good+", newer segments follow");
+                        ch.truncate(good); // torn tail from a crash mid-write
+                    }
+                }
+                last = Math.max(last, n);
+            }
+        }
+        Main.State st = tx.build();
+        Main.stateRef.set(st); tx.published();
+        Main.resetSeqs(st);
+        return last;
+    }
+
+    /** Applies framed records until the end or the first bad frame; returns the bytes consumed. */
+    static int replay(Main.State.Tx tx, ByteBuffer b){
+        CRC32 crc = new CRC32();
+        while (b.remaining()>=8) {
+            int start = b.position(), len = b.getInt(), sum = b.getInt();
+            if (len<0 || len>b.remaining()) return start;
+            ByteBuffer rec = b.slice(); rec.limit(len);
+            crc.reset(); crc.update(rec.duplicate());
+            if ((int)crc.getValue()!=sum) return start;
+            apply(tx, rec);
+            b.position(start+8+len);
+        }
+        return b.position();
+    }
+
+    static void apply(Main.State.Tx tx, ByteBuffer in){
+        byte type = in.get();
+        switch (type) {
+            case COMPANY: { Main.Company c = new Main.Company(); c.id=in.getInt(); c.name=str(in); tx.company(c); break; }
+            case LINE: {
+                Main.Line l = new Main.Line(); l.id=in.getInt(); l.companyId=in.getInt(); l.name=str(in);
+                Main.Line old = tx.line(l.id); if (old!=null) l.route = old.route;
+                tx.line(l); break;
+            }
+            case BUS: { Main.Bus b = new Main.Bus(); b.id=in.getInt(); b.lineId=in.getInt(); b.code=str(in); tx.bus(b); break; }
+            case ROUTE: {
+                int lineId = in.getInt(), n = in.getInt();
+                int[] la = new int[n], ln = new int[n];
+                in.asIntBuffer().get(la); in.position(in.position()+4*n);
+                in.asIntBuffer().get(ln); in.position(in.position()+4*n);
+                Main.Line l = tx.line(lineId);
+                if (l!=null) tx.route(l, new Route(la, ln));
+                break;
+            }
+            case SCHEDULE: {
+                int lineId = in.getInt(), n = in.getInt();
+                List<String> times = new ArrayList<>(n); for (int i=0;i<n;i++) times.add(str(in));
+                tx.schedule(lineId, Schedule.of(times)); break;
+            }
+            case DEPARTURES: {
+                int lineId = in.getInt(), n = in.getInt();
+                int[] secs = new int[n]; byte[] days = new byte[n];
+                in.asIntBuffer().get(secs); in.position(in.position()+4*n); in.get(days);
+                tx.schedule(lineId, new Schedule(secs, days)); break;
+            }
+            case AD: { Main.Ad a = new Main.Ad(); a.id=in.getInt(); a.title=str(in); a.imageUrl=str(in); a.linkUrl=str(in); tx.ad(a); break; }
+            case PASSENGER: { Main.Passenger p = new Main.Passenger(); p.id=in.getInt(); p.name=str(in); p.photo=Main.photos.adopt(str(in)); tx.passenger(p); break; }
+            default: throw new IllegalStateException("unknown record type "+type);
+        }
+    }
+
+    static byte[] company(Main.Company c){ return rec(COMPANY, o -> { o.writeInt(c.id); str(o,c.name); }); }
+    static byte[] line(Main.Line l){ return rec(LINE, o -> { o.writeInt(l.id); o.writeInt(l.companyId); str(o,l.name); }); }
+    static byte[] bus(Main.Bus b){ return rec(BUS, o -> { o.writeInt(b.id); o.writeInt(b.lineId); str(o,b.code); }); }
+    static byte[] route(int lineId, Route r){ return route(lineId, r.latE7, r.lngE7); }
+    static byte[] route(int lineId, int[] latE7, int[] lngE7){ return rec(ROUTE, o -> { o.writeInt(lineId); o.writeInt(latE7.length); for (int v : latE7) o.writeInt(v); for (int v : lngE7) o.writeInt(v); }); }
+    static byte[] schedule(int lineId, Schedule sc){ return rec(DEPARTURES, o -> { o.writeInt(lineId); o.writeInt(sc.secs.length); for (int v : sc.secs) o.writeInt(v); o.write(sc.days); }); }
+    static byte[] ad(Main.Ad a){ return rec(AD, o -> { o.writeInt(a.id); str(o,a.title); str(o,a.imageUrl); str(o,a.linkUrl); }); }
+    static byte[] passenger(Main.Passenger p){ return rec(PASSENGER, o -> { o.writeInt(p.id); str(o,p.name); str(o,p.photo); }); }
+
+    interface Body { void write(DataOutputStream o) throws IOException; }
+
+    static byte[] rec(byte type, Body body){
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        DataOutputStream o = new DataOutputStream(bo);
+        try { o.writeByte(type); body.write(o); } catch (IOException e) { throw new UncheckedIOException(e); }
+        return bo.toByteArray();
+    }
+
+    static void str(DataOutputStream o, String s) throws IOException {
+        if (s==null) { o.writeInt(-1); return; }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8); o.writeInt(b.length); o.write(b);
+    }
+
+    static String str(ByteBuffer in){
+        int n = in.getInt(); if (n<0) return null;
+        byte[] b = new byte[n]; in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single-pass pull parser over the raw UTF-8 request body. Lenient about types: numbers may
+ * arrive quoted and nextString() returns the text of any scalar. Numbers
+ * with up to 15 significant digits are converted without allocating (exact fast path); longer
+ * ones fall back to Double.parseDouble.
+ */
+final class JsonReader {
+    static final double[] POW10 = {1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,1e12,1e13,1e14,1e15,1e16,1e17,1e18,1e19,1e20,1e21,1e22};
+    final InputStream in;
+    final byte[] buf = new byte[8192];
+    int pos, limit;
+    byte[] scratch = new byte[64];
+    int scratchLen;
+
+    JsonReader(InputStream in){ this.in = in; }
+
+    int read() throws IOException {
+        if (pos==limit) { limit = in.read(buf, 0, buf.length); pos = 0; if (limit<=0) { limit = 0; return -1; } }
+        return buf[pos++] & 0xff;
+    }
+
+    int peek() throws IOException {
+        while (true) {
+            if (pos==limit) { limit = in.read(buf, 0, buf.length); pos = 0; if (limit<=0) { limit = 0; return -1; } }
+            int c = buf[pos] & 0xff;
+            if (c==' '||c=='\n'||c=='\r'||c=='\t') { pos++; continue; }
+            return c;
+        }
+    }
+
+    void expect(char c) throws IOException {
+        int got = peek();
+        if (got!=c) throw new IllegalStateException("expected '"+c+"' but got "+(got<0?"EOF":"'"+(char)got+"'"));
+        pos++;
+    }
+
+    void beginObject() throws IOException { expect('{'); }
+    void endObject() throws IOException { expect('}'); }
+    void beginArray() throws IOException { expect('['); }
+    void endArray() throws IOException { expect(']'); }
+
+    /** True while the current object/array has another member; consumes the separating comma. */
+    boolean hasNext() throws IOException {
+        int c = peek();
+        if (c==',') { pos++; c = peek(); }
+        return c>=0 && c!='}' && c!=']';
+    }
+
+    String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /** Copies the next string value to out as it streams past, escapes resolved, without building a String. */
+    void nextStringTo(OutputStream out) throws IOException {
+        expect('"');
+        while (true) {
+            if (pos==limit) { limit = in.read(buf, 0, buf.length); pos = 0; if (limit<=0) { limit = 0; throw new IllegalStateException("unterminated string"); } }
+            int start = pos;
+            while (pos<limit && buf[pos]!='"' && buf[pos]!='\\') pos++;
+            if (pos>start) out.write(buf, start, pos-start);
+            if (pos==limit) continue;
+            if (buf[pos++]=='"') return;
+            int e = read();
+            switch (e) {
+                case 'n': out.write('\n'); break;
+                case 't': out.write('\t'); break;
+                case 'r': out.write('\r'); break;
+                case 'b': out.write('\b'); break;
+                case 'f': out.write('\f'); break;
+                case 'u': { int cp = escapedCodePoint(); scratchLen = 0; putCodePoint(cp); out.write(scratch, 0, scratchLen); break; }
+                default: if (e<0) throw new IllegalStateException("unterminated string"); out.write(e);
+            }
+        }
+    }
+
+    String nextString() throws IOException {
+        int c = peek();
+        if (c=='"') { pos++; readStringBytes(); return new String(scratch, 0, scratchLen, StandardCharsets.UTF_8); }
+        if (c=='{' || c=='[') { skipValue(); return ""; }
+        readBareToken();
+        String s = new String(scratch, 0, scratchLen, StandardCharsets.US_ASCII);
+        return s.equals("null") ? null : s;
+    }
+
+    double nextDouble() throws IOException {
+        int c = peek();
+        if (c=='"') { String s = nextString(); return Double.parseDouble(s.trim()); }
+        readBareToken();
+        return parseScratchDouble();
+    }
+
+    int nextInt() throws IOException {
+        try { return (int)nextDouble(); } catch (NumberFormatException e) { return 0; }
+    }
+
+    void skipValue() throws IOException {
+        int c = peek();
+        if (c=='{' || c=='[') {
+            pos++;
+            int depth = 1;
+            while (depth>0) {
+                int b = read();
+                if (b<0) throw new IllegalStateException("unterminated value");
+                if (b=='"') readStringBytes();
+                else if (b=='{' || b=='[') depth++;
+                else if (b=='}' || b==']') depth--;
+            }
+        } else if (c=='"') { pos++; readStringBytes(); }
+        else readBareToken();
+    }
+
+    void readBareToken() throws IOException {
+        scratchLen = 0;
+        while (true) {
+            if (pos==limit) { limit = in.read(buf, 0, buf.length); pos = 0; if (limit<=0) { limit = 0; break; } }
+            int c = buf[pos] & 0xff;
+            if (c==','||c=='}'||c==']'||c==':'||c==' '||c=='\n'||c=='\r'||c=='\t') break;
+            put(c); pos++;
+        }
+        if (scratchLen==0) throw new IllegalStateException("expected a value");
+    }
+
+    void readStringBytes() throws IOException {
+        scratchLen = 0;
+        while (true) {
+            int c = read();
+            if (c<0) throw new IllegalStateException("unterminated string");
+            if (c=='"') return;
+            if (c!='\\') { put(c); continue; }
+            int e = read();
+            switch (e) {
+                case 'n': put('\n'); break;
+                case 't': put('\t'); break;
+                case 'r': put('\r'); break;
+                case 'b': put('\b'); break;
+                case 'f': put('\f'); break;
+                case 'u': putCodePoint(escapedCodePoint()); break;
+                default: put(e);
+            }
+        }
+    }
+
+    /**
+     * Decodes the four hex digits after a backslash-u. A high surrogate takes the next escape with it
+     * only when that is a low surrogate; otherwise the next escape is left for the caller and an
+     * unpaired surrogate decodes to U+FFFD.
+     */
+    int escapedCodePoint() throws IOException {
+        int cp = 0;
+        for (int i=0;i<4;i++) { int d = Character.digit(read(), 16); if (d<0) throw new IllegalStateException("malformed \\u escape"); cp = (cp<<4) | d; }
+        if (Character.isLowSurrogate((char)cp)) return 0xFFFD;
+        if (!Character.isHighSurrogate((char)cp)) return cp;
+        if (!ensure(6) || buf[pos]!='\\' || buf[pos+1]!='u') return 0xFFFD;
+        int lo = 0;
+        for (int i=2;i<6;i++) { int d = Character.digit(buf[pos+i], 16); if (d<0) return 0xFFFD; lo = (lo<<4) | d; }
+        if (!Character.isLowSurrogate((char)lo)) return 0xFFFD;
+        pos += 6;
+        return Character.toCodePoint((char)cp, (char)lo);
+    }
+
+    /** Makes n bytes available from buf[pos] without consuming them; false when the body ends first. */
+    boolean ensure(int n) throws IOException {
+        if (limit-pos>=n) return true;
+        System.arraycopy(buf, pos, buf, 0, limit-pos); limit -= pos; pos = 0;
+        while (limit<n) { int r = in.read(buf, limit, buf.length-limit); if (r<=0) return false; limit += r; }
+        return true;
+    }
+
+    void putCodePoint(int cp){
+        if (cp<0x80) put(cp);
+        else if (cp<0x800) { put(0xC0|(cp>>6)); put(0x80|(cp&0x3F)); }
+        else if (cp<0x10000) { put(0xE0|(cp>>12)); put(0x80|((cp>>6)&0x3F)); put(0x80|(cp&0x3F)); }
+        else { put(0xF0|(cp>>18)); put(0x80|((cp>>12)&0x3F)); put(0x80|((cp>>6)&0x3F)); put(0x80|(cp&0x3F)); }
+    }
+
+    void put(int b){
+        if (scratchLen==scratch.length) scratch = Arrays.copyOf(scratch, scratch.length*2);
+        scratch[scratchLen++] = (byte)b;
+    }
+
+    double parseScratchDouble(){
+        int i = 0; boolean neg = false;
+        if (scratch[0]=='-') { neg = true; i++; }
+        long m = 0; int digits = 0, scale = 0; boolean dot = false, ok = i<scratchLen;
+        for (; i<scratchLen; i++) {
+            int c = scratch[i];
+            if (c>='0' && c<='9') { m = m*10+(c-'0'); digits++; if (dot) scale++; }
+            else if (c=='.' && !dot) dot = true;
+            else { ok = false; break; }
+        }
+        if (ok && digits>0 && digits<=15 && scale<POW10.length) { double v = scale==0 ? m : m/POW10[scale]; return neg?-v:v; }
+        return Double.parseDouble(new String(scratch, 0, scratchLen, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+/**
+ * Appends UTF-8 JSON straight into a growable byte array that sendJson writes with its exact length.
+ * Commas are inserted automatically between members.
+ */
+final class JsonWriter {
+    byte[] buf;
+    int len;
+    boolean comma;
+
+    JsonWriter(){ this(1024); }
+    JsonWriter(int capacity){ buf = new byte[capacity]; }
+
+    JsonWriter beginObject(){ sep(); put('{'); comma = false; return this; }
+    JsonWriter endObject(){ put('}'); comma = true; return this; }
+    JsonWriter beginArray(){ sep(); put('['); comma = false; return this; }
+    JsonWriter endArray(){ put(']'); comma = true; return this; }
+    JsonWriter name(String n){ sep(); str(n); put(':'); comma = false; return this; }
+
+    JsonWriter value(String s){ sep(); if (s==null) ascii("null"); else str(s); comma = true; return this; }
+    /** Pre-encoded JSON (one value, or several already comma-separated) written as the next member. */
+    JsonWriter raw(byte[] b, int off, int n){ sep(); for (int i=0;i<n;i++) put(b[off+i]); comma = true; return this; }
+    JsonWriter value(boolean b){ sep(); ascii(b?"true":"false"); comma = true; return this; }
+    JsonWriter value(long v){ sep(); digits(v); comma = true; return this; }
+    JsonWriter value(double v){ sep(); ascii(Double.toString(v)); comma = true; return this; }
+
+    /** Writes a 1e-7 fixed-point coordinate as its shortest decimal, without going through a double. */
+    JsonWriter valueE7(int v){
+        sep();
+        long a = v;
+        if (a<0) { put('-'); a = -a; }
+        digits(a/10000000L);
+        put('.');
+        long frac = a%10000000L;
+        if (frac==0) put('0');
+        else {
+            int n = 7; while (frac%10==0) { frac /= 10; n--; }
+            for (long d = POW10L[n-1]; d>0; d /= 10) put('0'+(int)((frac/d)%10));
+        }
+        comma = true;
+        return this;
+    }
+
+    static final long[] POW10L = {1L,10L,100L,1000L,10000L,100000L,1000000L};
+
+    void sep(){ if (comma) put(','); }
+
+    void digits(long v){
+        if (v<0) { put('-'); if (v==Long.MIN_VALUE) { ascii("9223372036854775808"); return; } v = -v; }
+        if (v<10) { put('0'+(int)v); return; }
+        int start = len;
+        while (v>0) { put('0'+(int)(v%10)); v /= 10; }
+        for (int i=start, j=len-1; i<j; i++, j--) { byte t = buf[i]; buf[i] = buf[j]; buf[j] = t; }
+    }
+
+    void ascii(String s){ for (int i=0;i<s.length();i++) put(s.charAt(i)); }
+
+    void str(String s){
+        put('"');
+        for (int i=0;i<s.length();i++) {
+            char c = s.charAt(i);
+            if (c=='"' || c=='\\') { put('\\'); put(c); }
+            else if (c<0x20) { ascii(c=='\n'?"\\n":c=='\r'?"\\r":c=='\t'?"\\t":String.format("\\u%04x", (int)c)); }
+            else if (c<0x80) put(c);
+            else if (c<0x800) { put(0xC0|(c>>6)); put(0x80|(c&0x3F)); }
+            else if (Character.isHighSurrogate(c) && i+1<s.length() && Character.isLowSurrogate(s.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put(0xF0|(cp>>18)); put(0x80|((cp>>12)&0x3F)); put(0x80|((cp>>6)&0x3F)); put(0x80|(cp&0x3F));
+            }
+            else { put(0xE0|(c>>12)); put(0x80|((c>>6)&0x3F)); put(0x80|(c&0x3F)); }
+        }
+        put('"');
+    }
+
+    void put(int b){
+        if (len==buf.length) buf = Arrays.copyOf(buf, buf.length*2);
+        buf[len++] = (byte)b;
+    }
+
+    byte[] toByteArray(){ return Arrays.copyOf(buf, len); }
+}
@@ -0,0 +1,262 @@
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Line and company name search. Folded words ("palhoca" finds "Palhoça") are posted under the
+ * trigrams of " word "; a token matches words sharing enough grams (shorter tokens scan the words),
+ * scored exact > prefix > typo > infix, and a line needs every token.
+ */
+final class LineSearch {
+    static final int EXACT = 100, PREFIX = 80, TYPO = 50, INFIX = 30, NAME_PREFIX = 20;
+
+    static final class Doc {
+        final int lineId, companyId, slot; final String name, companyName, folded;
+        final String[] words, companyWords;
+        Doc(Main.Line l, Main.Company c, int slot){
+            lineId = l.id; companyId = l.companyId; name = l.name; companyName = c==null?null:c.name; this.slot = slot;
+            words = words(name); companyWords = words(companyName); folded = String.join(" ", words);
+        }
+    }
+
+    static final class Word {
+        final String text; final int id;
+        final Postings docs = new Postings();   // slot<<1 | 1 when it comes from the company name
+        Word(String text, int id){ this.text = text; this.id = id; }
+    }
+
+    /** Sorted, distinct ints. */
+    static final class Postings {
+        int[] a = new int[4]; int n;
+        void add(int s){
+            int i = Arrays.binarySearch(a, 0, n, s);
+            if (i>=0) return;
+            i = -i-1;
+            if (n==a.length) a = Arrays.copyOf(a, n*2);
+            System.arraycopy(a, i, a, i+1, n-i); a[i] = s; n++;
+        }
+        void remove(int s){
+            int i = Arrays.binarySearch(a, 0, n, s);
+            if (i>=0) { System.arraycopy(a, i+1, a, i, n-i-1); n--; }
+        }
+    }
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    final Map<Integer, Doc> docs = new HashMap<>();
+    final List<Doc> slots = new ArrayList<>();
+    final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    final Map<String, Word> dict = new HashMap<>();
+    final List<Word> words = new ArrayList<>();
+    final ArrayDeque<Integer> freeWords = new ArrayDeque<>();
+    final Map<Long, Postings> grams = new HashMap<>();   // gram -> word ids
+    final Map<Integer, Set<Integer>> byCompany = new HashMap<>();
+
+    /** Brings the given lines, and every line of the given companies, in line with the current State. */
+    void update(Collection<Integer> lineIds, Collection<Integer> companyIds){
+        if (lineIds.isEmpty() && companyIds.isEmpty()) return;
+        lock.writeLock().lock();
+        try {
+            Main.State st = Main.state();
+            Set<Integer> ids = new HashSet<>(lineIds);
+            for (Integer c : companyIds) { Set<Integer> s = byCompany.get(c); if (s!=null) ids.addAll(s); }
+            for (Integer id : ids) {
+                Main.Line l = st.lines.get(id);
+                Main.Company c = l==null ? null : st.companies.get(l.companyId);
+                Doc d = docs.get(id);
+                if (d!=null && l!=null && d.companyId==l.companyId && Objects.equals(d.name, l.name)
+                        && Objects.equals(d.companyName, c==null?null:c.name)) continue; // route or schedule only
+                if (d!=null) remove(d);
+                if (l!=null) add(l, c);
+            }
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    void add(Main.Line l, Main.Company c){
+        int slot = freeSlots.isEmpty() ? slots.size() : freeSlots.pop();
+        Doc d = new Doc(l, c, slot);
+        if (slot==slots.size()) slots.add(d); else slots.set(slot, d);
+        docs.put(d.lineId, d);
+        for (String w : d.words) word(w).docs.add(slot<<1);
+        for (String w : d.companyWords) word(w).docs.add(slot<<1|1);
+        byCompany.computeIfAbsent(d.companyId, k -> new HashSet<>()).add(d.lineId);
+    }
+
+    void remove(Doc d){
+        docs.remove(d.lineId);
+        for (String w : d.words) unpost(w, d.slot<<1);
+        for (String w : d.companyWords) unpost(w, d.slot<<1|1);
+        Set<Integer> s = byCompany.get(d.companyId);
+        if (s!=null) { s.remove(d.lineId); if (s.isEmpty()) byCompany.remove(d.companyId); }
+        slots.set(d.slot, null);
+        freeSlots.push(d.slot);
+    }
+
+    Word word(String text){
+        Word w = dict.get(text);
+        if (w!=null) return w;
+        int id = freeWords.isEmpty() ? words.size() : freeWords.pop();
+        w = new Word(text, id);
+        if (id==words.size()) words.add(w); else words.set(id, w);
+        dict.put(text, w);
+        Set<Long> g = new HashSet<>();
+        wordGrams(text, g);
+        for (Long k : g) grams.computeIfAbsent(k, x -> new Postings()).add(id);
+        return w;
+    }
+
+    void unpost(String text, int posting){
+        Word w = dict.get(text);
+        if (w==null) return;   // a word repeated in one name goes on the first pass
+        w.docs.remove(posting);
+        if (w.docs.n>0) return;
+        dict.remove(text);
+        Set<Long> g = new HashSet<>();
+        wordGrams(text, g);
+        for (Long k : g) { Postings p = grams.get(k); p.remove(w.id); if (p.n==0) grams.remove(k); }
+        words.set(w.id, null);
+        freeWords.push(w.id);
+    }
+
+    int terms(){ lock.readLock().lock(); try { return grams.size(); } finally { lock.readLock().unlock(); } }
+
+    /** Matches ranked offset..offset+limit-1, best first; all lines by name for an empty query. */
+    List<Doc> search(String query, int offset, int limit){
+        String[] toks = words(query);
+        lock.readLock().lock();
+        try {
+            if (toks.length==0) {
+                List<Doc> all = new ArrayList<>(docs.values());
+                all.sort(Comparator.comparing((Doc d) -> d.folded).thenComparingInt(d -> d.lineId));
+                return new ArrayList<>(all.subList(Math.min(offset, all.size()), Math.min(offset+limit, all.size())));
+            }
+            int[] hits = new int[words.size()], seen = new int[16];
+            int[] best = new int[slots.size()], total = new int[slots.size()], matched = new int[slots.size()], touched = new int[16];
+            int nt = 0;
+            for (int i=0;i<toks.length;i++) {
+                String t = toks[i];
+                int ns = 0, min = 1;
+                if (t.length()<3) {
+                    // shorter than a trigram: any word containing it, as the old substring scan matched
+                    for (Word word : words) {
+                        if (word==null || !word.text.contains(t)) continue;
+                        if (ns==seen.length) seen = Arrays.copyOf(seen, ns*2);
+                        seen[ns++] = word.id; hits[word.id] = 1;
+                    }
+                } else {
+                    Set<Long> qg = new HashSet<>();
+                    tokenGrams(t, qg);
+                    for (Long g : qg) {
+                        Postings p = grams.get(g);
+                        if (p==null) continue;
+                        for (int j=0;j<p.n;j++) {
+                            int w = p.a[j];
+                            if (hits[w]++==0) { if (ns==seen.length) seen = Arrays.copyOf(seen, ns*2); seen[ns++] = w; }
+                        }
+                    }
+                    min = Math.max(1, qg.size()-1-3*edits(t));
+                }
+                nt = 0;
+                for (int k=0;k<ns;k++) {
+                    int w = seen[k], h = hits[w];
+                    hits[w] = 0;
+                    if (h<min) continue;
+                    Word word = words.get(w);
+                    int m = match(t, word.text);
+                    if (m==0) continue;
+                    for (int j=0;j<word.docs.n;j++) {
+                        int p = word.docs.a[j], s = p>>>1, v = (p&1)!=0 ? m/2 : m;
+                        if (matched[s]!=i || v<=best[s]) continue;
+                        if (best[s]==0) { if (nt==touched.length) touched = Arrays.copyOf(touched, nt*2); touched[nt++] = s; }
+                        best[s] = v;
+                    }
+                }
+                for (int k=0;k<nt;k++) { int s = touched[k]; total[s] += best[s]; matched[s]++; best[s] = 0; }
+            }
+            String phrase = String.join(" ", toks);
+            // min-heap of the best offset+limit keys: score, then shorter name, then lower id;
+            // the lines that matched the last token are the only ones that can have matched them all
+            PriorityQueue<Long> heap = new PriorityQueue<>();
+            for (int k=0;k<nt;k++) {
+                int s = touched[k];
+                if (matched[s]!=toks.length) continue;
+                Doc d = slots.get(s);
+                int score = total[s] + (d.folded.startsWith(phrase) ? NAME_PREFIX : 0);
+                heap.add((long)Math.min(score, 0x7FFFF)<<44 | (long)(4095-Math.min(d.folded.length(), 4095))<<32 | (0xFFFFFFFFL-d.lineId));
+                if (heap.size()>offset+limit) heap.poll();
+            }
+            List<Doc> out = new ArrayList<>(heap.size());
+            while (heap.size()>0) out.add(docs.get((int)(0xFFFFFFFFL-(heap.poll()&0xFFFFFFFFL))));
+            Collections.reverse(out);
+            return new ArrayList<>(out.subList(Math.min(offset, out.size()), out.size()));
+        } finally { lock.readLock().unlock(); }
+    }
+
+    static int match(String t, String w){
+        int m = w.equals(t) ? EXACT : w.startsWith(t) ? PREFIX : w.contains(t) ? INFIX : 0, k = edits(t);
+        if (m<TYPO && k>0) { int e = distance(t, w, k); if (e<=k) m = TYPO-10*(e-1); }
+        return m;
+    }
+
+    /** Typos tolerated in a query token: none below four letters, two from eight. */
+    static int edits(String t){ return t.length()>=8 ? 2 : t.length()>=4 ? 1 : 0; }
+
+    /** Fewest edits (adjacent swaps count as one) turning t into a prefix of w; k+1 once it exceeds k. */
+    static int distance(String t, String w, int k){
+        int m = t.length(), n = Math.min(w.length(), m+k);
+        if (n<m-k) return k+1;
+        int[] pp = new int[n+1], p = new int[n+1], c = new int[n+1];
+        for (int j=0;j<=n;j++) p[j] = j;
+        for (int i=1;i<=m;i++) {
+            c[0] = i;
+            int row = i;
+            for (int j=1;j<=n;j++) {
+                int v = Math.min(Math.min(p[j], c[j-1])+1, p[j-1]+(t.charAt(i-1)==w.charAt(j-1)?0:1));
+                if (i>1 && j>1 && t.charAt(i-1)==w.charAt(j-2) && t.charAt(i-2)==w.charAt(j-1)) v = Math.min(v, pp[j-2]+1);
+                c[j] = v; row = Math.min(row, v);
+            }
+            if (row>k) return k+1;
+            int[] r = pp; pp = p; p = c; c = r;
+        }
+        int best = k+1;
+        for (int j=Math.max(0, m-k);j<=n;j++) best = Math.min(best, p[j]);
+        return best;
+    }
+
+    static long gram(char a, char b, char c){ return (long)a<<32 | (long)b<<16 | c; }
+
+    static void wordGrams(String w, Set<Long> out){
+        String p = " "+w+" ";
+        for (int i=0;i+3<=p.length();i++) out.add(gram(p.charAt(i), p.charAt(i+1), p.charAt(i+2)));
+    }
+
+    static void tokenGrams(String t, Set<Long> out){
+        String p = " "+t;
+        for (int i=0;i+3<=p.length();i++) out.add(gram(p.charAt(i), p.charAt(i+1), p.charAt(i+2)));
+    }
+
+    static String fold(String s){
+        if (s==null) return "";
+        String d = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(d.length());
+        for (int i=0;i<d.length();i++) {
+            char ch = d.charAt(i);
+            if (Character.getType(ch)==Character.NON_SPACING_MARK) continue;
+            sb.append(Character.isLetterOrDigit(ch) ? Character.toLowerCase(ch) : ' ');
+        }
+        return sb.toString();
+    }
+
+    static String[] words(String s){ String f = fold(s).trim(); return f.isEmpty() ? new String[0] : f.split(" +"); }
+}
@@ -2,78 +2,206 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
 
 public class Main {
     static class Company {int id; String name;}
-    static class Line {int id; int companyId; String name; List<RoutePoint> route = new ArrayList<>();}
+    static class Line {int id; int companyId; String name; volatile Route route = Route.EMPTY;}
     static class Bus {int id; int lineId; String code;}
-    static class Passenger {int id; String name; String photoDataUrl;}
-    static class RoutePoint {double lat; double lng; RoutePoint(double a,double b){lat=a;lng=b;}}
+    static class Passenger {int id; String name; String photo;} // photo: PhotoStore name or null
+
+    /**
+     * Immutable snapshot of the model. Writers build the next version in a Tx, which copies only the
+     * maps it touches, and the journal publishes it with one store to stateRef; readers take state()
+     * once and never lock or see a partial write.
+     */
+    static final class State {
+        final long version;
+        final Map<Integer, Company> companies;
+        final Map<Integer, Line> lines;
+        final Map<Integer, Bus> buses;
+        final Map<Integer, Passenger> passengers;
+        final Map<Integer, Schedule> lineSchedules;
+        final List<Ad> ads;
+
+        State(){ this(0, Map.of(), Map.of(), Map.of(), Map.of(), Map.of(), List.of()); }
+
+        State(long version, Map<Integer, Company> companies, Map<Integer, Line> lines, Map<Integer, Bus> buses,
+              Map<Integer, Passenger> passengers, Map<Integer, Schedule> lineSchedules, List<Ad> ads){
+            this.version=version; this.companies=companies; this.lines=lines; this.buses=buses;
+            this.passengers=passengers; this.lineSchedules=lineSchedules; this.ads=ads;
+        }
+
+        /**
+         * Next version under construction. Each map is copied on its first write, so a batch of any
+         * size costs one copy per touched map. Route, planner and search side effects are collected and
+         * run by published() once the new State is visible. Single use: build() hands the maps over.
+         */
+        static final class Tx {
+            final State base;
+            Map<Integer, Company> companies;
+            Map<Integer, Line> lines;
+            Map<Integer, Bus> buses;
+            Map<Integer, Passenger> passengers;
+            Map<Integer, Schedule> lineSchedules;
+            List<Ad> ads;
+            final Map<Integer, Route> routes = new HashMap<>();
+            final Set<Integer> dirtyLines = new HashSet<>();
+            final Set<Integer> dirtyCompanies = new HashSet<>();
+
+            Tx(State base){ this.base = base; }
+
+            Line line(int id){ return (lines!=null?lines:base.lines).get(id); }
+
+            void company(Company c){ if (companies==null) companies = new HashMap<>(base.companies); companies.put(c.id, c); dirtyCompanies.add(c.id); }
+            void line(Line l){ if (lines==null) lines = new HashMap<>(base.lines); lines.put(l.id, l); dirtyLines.add(l.id); }
+            void bus(Bus b){ if (buses==null) buses = new HashMap<>(base.buses); buses.put(b.id, b); }
+            void passenger(Passenger p){ if (passengers==null) passengers = new HashMap<>(base.passengers); passengers.put(p.id, p); }
+            void schedule(int lineId, Schedule sc){ if (lineSchedules==null) lineSchedules = new HashMap<>(base.lineSchedules); lineSchedules.put(lineId, sc); dirtyLines.add(lineId); }
+            void ad(Ad a){ if (ads==null) ads = new ArrayList<>(base.ads); ads.removeIf(o -> o.id==a.id); ads.add(a); }
+            void route(Line l, Route r){ Line n = new Line(); n.id=l.id; n.companyId=l.companyId; n.name=l.name; n.route=r; line(n); routes.put(n.id, r); }
+
+            State build(){
+                return new State(base.version+1, frozen(companies, base.companies), frozen(lines, base.lines), frozen(buses, base.buses),
+                        frozen(passengers, base.passengers), frozen(lineSchedules, base.lineSchedules),
+                        ads==null?base.ads:Collections.unmodifiableList(ads));
+            }
+
+            void published(){
+                for (Map.Entry<Integer, Route> e : routes.entrySet()) routeIndex.put(e.getKey(), e.getValue());
+                for (Integer id : dirtyLines) planner.invalidate(id);
+                lineSearch.update(dirtyLines, dirtyCompanies);
+                responses.bump((lines!=null || companies!=null?ResponseCache.LINES:0) | (routes.isEmpty()?0:ResponseCache.ROUTES)
+                        | (lineSchedules!=null?ResponseCache.SCHEDULES:0) | (ads!=null?ResponseCache.ADS:0));
+            }
 
-    static class State {
-        Map<Integer, Company> companies = new HashMap<>();
-        Map<Integer, Line> lines = new HashMap<>();
-        Map<Integer, Bus> buses = new HashMap<>();
-        Map<Integer, Passenger> passengers = new HashMap<>();
-        Map<Integer, List<String>> lineSchedules = new HashMap<>();
-        List<Ad> ads = new ArrayList<>();
-        int companySeq = 1;
-        int lineSeq = 1;
-        int busSeq = 1;
-        int passengerSeq = 1;
-        int adSeq = 1;
+            static <V> Map<Integer,V> frozen(Map<Integer,V> m, Map<Integer,V> base){ return m==null?base:Collections.unmodifiableMap(m); }
+        }
     }
 
-    static State state = new State();
+    static final AtomicReference<State> stateRef = new AtomicReference<>(new State());
+    static final AtomicInteger companySeq = new AtomicInteger(1);
+    static final AtomicInteger lineSeq = new AtomicInteger(1);
+    static final AtomicInteger busSeq = new AtomicInteger(1);
+    static final AtomicInteger passengerSeq = new AtomicInteger(1);
+    static final AtomicInteger adSeq = new AtomicInteger(1);
+
+    static State state(){ return stateRef.get(); }
+
+    /** Moves every id sequence past the ids already in st (never backwards). */
+    static void resetSeqs(State st){
+        companySeq.accumulateAndGet(1+st.companies.keySet().stream().mapToInt(i->i).max().orElse(0), Math::max);
+        lineSeq.accumulateAndGet(1+st.lines.keySet().stream().mapToInt(i->i).max().orElse(0), Math::max);
+        busSeq.accumulateAndGet(1+st.buses.keySet().stream().mapToInt(i->i).max().orElse(0), Math::max);
+        passengerSeq.accumulateAndGet(1+st.passengers.keySet().stream().mapToInt(i->i).max().orElse(0), Math::max);
+        adSeq.accumulateAndGet(1+st.ads.stream().mapToInt(a->a.id).max().orElse(0), Math::max);
+    }
 
     public static void main(String[] args) throws Exception {
-        HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
-        server.createContext("/", new StaticHandler());
-        server.createContext("/api/admin/company", new AdminCompanyHandler());
-        server.createContext("/api/admin/line", new AdminLineHandler());
-        server.createContext("/api/admin/bus", new AdminBusHandler());
-        server.createContext("/api/admin/route", new AdminRouteHandler());
-        server.createContext("/api/admin/schedule", new AdminScheduleHandler());
-        server.createContext("/api/line/schedule", new LineScheduleGetHandler());
-        server.createContext("/api/admin/ad", new AdminAdHandler());
-        server.createContext("/api/ads", new AdsGetHandler());
-        server.createContext("/api/plan", new PlannerHandler());
-        server.createContext("/api/passenger/register", new PassengerRegisterHandler());
-        server.createContext("/api/passenger/searchRoutes", new PassengerSearchRoutesHandler());
-        server.createContext("/api/routes/stream", new RouteStreamHandler());
-        server.createContext("/api/routes/get", new RouteGetHandler());
-        server.createContext("/api/buses/near", new BusesNearHandler());
-        server.createContext("/api/bus/stream", new BusStreamHandler());
-        server.setExecutor(Executors.newCachedThreadPool());
+        if (flag("PERSIST", true)) journal.open(new File(env("DATA_DIR", "data")));
+        cluster.catchUp();
+        for (int i=0;i+1<args.length;i++) if (args[i].equals("--import-gtfs")) GtfsImport.run(new File(args[++i]));
+        HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(env("PORT", "8000"))), Integer.parseInt(env("HTTP_BACKLOG", "1024")));
+        httpExec.mount(server, "/", new StaticHandler());
+        httpExec.mount(server, "/api/admin/company", new AdminCompanyHandler());
+        httpExec.mount(server, "/api/admin/line", new AdminLineHandler());
+        httpExec.mount(server, "/api/admin/bus", new AdminBusHandler());
+        httpExec.mount(server, "/api/admin/route", new AdminRouteHandler());
+        httpExec.mount(server, "/api/admin/schedule", new AdminScheduleHandler());
+        httpExec.mount(server, "/api/line/schedule", new LineScheduleGetHandler());
+        httpExec.mount(server, "/api/departures", new DeparturesHandler());
+        httpExec.mount(server, "/api/admin/ad", new AdminAdHandler());
+        httpExec.mount(server, "/api/ads", new AdsGetHandler());
+        httpExec.mount(server, "/api/plan", new PlannerHandler());
+        httpExec.mount(server, "/api/passenger/register", new PassengerRegisterHandler());
+        httpExec.mount(server, "/api/passenger/searchRoutes", new PassengerSearchRoutesHandler());
+        httpExec.mount(server, "/api/routes/stream", new RouteStreamHandler());
+        httpExec.mount(server, "/api/routes/get", new RouteGetHandler());
+        httpExec.mount(server, "/api/buses/near", new BusesNearHandler());
+        httpExec.mount(server, "/api/bus/stream", new BusStreamHandler());
+        httpExec.mount(server, "/api/fleet/stream", new FleetStreamHandler());
+        if (cluster.enabled()) httpExec.mount(server, "/api/cluster/msg", new ClusterMessageHandler());
+        httpExec.mount(server, "/api/cluster/status", new ClusterStatusHandler());
+        httpExec.mount(server, "/api/ingest/positions", new IngestPositionsHandler());
+        httpExec.mount(server, "/api/ingest/stats", new IngestStatsHandler());
+        httpExec.mount(server, "/api/admin/executor", new ExecutorStatsHandler());
+        httpExec.mount(server, "/metrics", new MetricsHandler());
+        server.setExecutor(httpExec.pool);
+        assets.start();
+        if (FleetSim.VIRTUAL>0) ensureTicker(); // load test: virtual buses from the start
         server.start();
     }
 
+    static final HttpExec httpExec = new HttpExec(env("EXECUTOR", "bounded"));
+
+    static class ExecutorStatsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("mode").value(httpExec.mode).name("inFlight").value(httpExec.inFlight.get())
+             .name("peakInFlight").value(httpExec.peakInFlight.get()).name("served").value(httpExec.served.get())
+             .name("rejected").value(httpExec.rejected.get()).name("queued").value(httpExec.queued())
+             .name("threads").value(httpExec.threads()).name("sseSubscribers").value(streamHub.activeSubscribers())
+             .name("sseCoalesced").value(streamHub.coalesced.get()).endObject();
+            sendJson(ex, 200, w);
+        }
+    }
+
+    static final Metrics metrics = new Metrics();
+
+    static class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-store");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+        }
+    }
+
     static class Ad {int id; String title; String imageUrl; String linkUrl;}
 
     static void sendJson(HttpExchange ex, int code, String body) throws IOException {
         Headers h = ex.getResponseHeaders();
         h.set("Content-Type", "application/json; charset=utf-8");
         h.set("Cache-Control", "no-store");
-        ex.sendResponseHeaders(code, body.getBytes(StandardCharsets.UTF_8).length);
-        try (OutputStream os = ex.getResponseBody()) { os.write(body.getBytes(StandardCharsets.UTF_8)); }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        metrics.bytesOut(ex, bytes.length);
     }
 
-    static String readBody(HttpExchange ex) throws IOException {
-        byte[] buf = ex.getRequestBody().readAllBytes();
-        return new String(buf, StandardCharsets.UTF_8);
+    static void sendJson(HttpExchange ex, int code, JsonWriter w) throws IOException {
+        Headers h = ex.getResponseHeaders();
+        h.set("Content-Type", "application/json; charset=utf-8");
+        h.set("Cache-Control", "no-store");
+        ex.sendResponseHeaders(code, w.len);
+        try (OutputStream os = ex.getResponseBody()) { os.write(w.buf, 0, w.len); }
+        metrics.bytesOut(ex, w.len);
     }
 
     static Map<String,String> parseQuery(String raw) {
@@ -88,159 +216,252 @@ public class Main {
         return m;
     }
 
-    static String jsonString(String s) {return s==null?"null":"\""+s.replace("\\","\\\\").replace("\"","\\\"")+"\"";}
+    static void sendError(HttpExchange ex, int code, String message) throws IOException {
+        sendJson(ex, code, new JsonWriter(64).beginObject().name("error").value(message).endObject());
+    }
 
     static class StaticHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             String path = ex.getRequestURI().getPath();
             if (path.startsWith("/api/")) { sendJson(ex,404,"{}" ); return; }
             if (path.equals("/") || path.equals("")) path = "/index.html";
-            File f = new File("public" + path);
-            if (!f.exists() || f.isDirectory()) { f = new File("public/index.html"); }
-            String ct = contentType(f.getName());
-            Headers h = ex.getResponseHeaders();
-            h.set("Content-Type", ct);
-            ex.sendResponseHeaders(200, f.length());
-            try (OutputStream os = ex.getResponseBody(); FileInputStream fis = new FileInputStream(f)) {
-                fis.transferTo(os);
-            }
-        }
-        String contentType(String name){
-            String n = name.toLowerCase();
-            if (n.endsWith(".html")) return "text/html; charset=utf-8";
-            if (n.endsWith(".css")) return "text/css; charset=utf-8";
-            if (n.endsWith(".js")) return "application/javascript; charset=utf-8";
-            if (n.endsWith(".png")) return "image/png";
-            if (n.endsWith(".jpg")||n.endsWith(".jpeg")) return "image/jpeg";
-            return "application/octet-stream";
+            String method = ex.getRequestMethod();
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) { sendJson(ex,405,"{}"); return; }
+            if (path.startsWith("/photos/")) { photos.serve(ex, path.substring(8), method.equalsIgnoreCase("HEAD")); return; }
+            AssetCache.Asset a = assets.get(path);
+            if (a==null) a = assets.get("/index.html");
+            if (a==null) { sendJson(ex,404,"{}"); return; }
+            assets.serve(ex, a, method.equalsIgnoreCase("HEAD"));
         }
     }
 
+    static final AssetCache assets = new AssetCache(new File(env("STATIC_DIR", "public")),
+            Long.parseLong(env("STATIC_CACHE_MB", "64"))<<20, Long.parseLong(env("STATIC_MAX_ENTRY_KB", "1024"))<<10);
+
+    static final PhotoStore photos = new PhotoStore(new File(env("PHOTO_DIR", new File(env("DATA_DIR", "data"), "photos").getPath())),
+            Long.parseLong(env("PHOTO_MAX_KB", "2048"))<<10);
+
+    static final ResponseCache responses = new ResponseCache(Long.parseLong(env("RESPONSE_CACHE_MB", "16"))<<20);
+
     static class AdminCompanyHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            String name = extractField(body, "name");
+            Map<String,String> f;
+            try { f = readFields(ex); } catch (IllegalStateException e) { sendError(ex,400,e.getMessage()); return; }
+            String name = f.get("name");
             Company c = new Company();
-            c.id = state.companySeq++;
+            c.id = cluster.nextId(companySeq);
             c.name = name;
-            state.companies.put(c.id, c);
-            sendJson(ex,200,"{\"id\":"+c.id+",\"name\":"+jsonString(c.name)+"}");
+            journal.commit(Journal.company(c));
+            JsonWriter w = new JsonWriter(64);
+            sendJson(ex,200,w.beginObject().name("id").value(c.id).name("name").value(c.name).endObject());
         }
     }
 
     static class AdminLineHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            int companyId = parseInt(extractField(body, "companyId"));
-            String name = extractField(body, "name");
+            Map<String,String> f;
+            try { f = readFields(ex); } catch (IllegalStateException e) { sendError(ex,400,e.getMessage()); return; }
+            int companyId = parseInt(f.get("companyId"));
+            String name = f.get("name");
             Line l = new Line();
-            l.id = state.lineSeq++;
+            l.id = cluster.nextId(lineSeq);
             l.companyId = companyId;
             l.name = name;
-            state.lines.put(l.id, l);
-            sendJson(ex,200,"{\"id\":"+l.id+",\"companyId\":"+l.companyId+",\"name\":"+jsonString(l.name)+"}");
+            journal.commit(Journal.line(l));
+            JsonWriter w = new JsonWriter(96);
+            sendJson(ex,200,w.beginObject().name("id").value(l.id).name("companyId").value(l.companyId).name("name").value(l.name).endObject());
         }
     }
 
     static class AdminBusHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            int lineId = parseInt(extractField(body, "lineId"));
-            String code = extractField(body, "code");
+            Map<String,String> f;
+            try { f = readFields(ex); } catch (IllegalStateException e) { sendError(ex,400,e.getMessage()); return; }
+            int lineId = parseInt(f.get("lineId"));
+            String code = f.get("code");
             Bus b = new Bus();
-            b.id = state.busSeq++;
+            b.id = cluster.nextId(busSeq);
             b.lineId = lineId;
             b.code = code;
-            state.buses.put(b.id, b);
-            sendJson(ex,200,"{\"id\":"+b.id+",\"lineId\":"+b.lineId+",\"code\":"+jsonString(b.code)+"}");
+            cluster.commitOwned(b.lineId, Journal.bus(b));
+            JsonWriter w = new JsonWriter(96);
+            sendJson(ex,200,w.beginObject().name("id").value(b.id).name("lineId").value(b.lineId).name("code").value(b.code).endObject());
         }
     }
 
     static class AdminRouteHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            int lineId = parseInt(extractField(body, "lineId"));
-            String pointsRaw = extractArray(body, "points");
-            Line l = state.lines.get(lineId);
-            if (l == null) { sendJson(ex,404,"{}"); return; }
-            l.route.clear();
-            for (String item : splitItems(pointsRaw)) {
-                double lat = Double.parseDouble(extractField(item, "lat"));
-                double lng = Double.parseDouble(extractField(item, "lng"));
-                l.route.add(new RoutePoint(lat,lng));
-            }
-            sendJson(ex,200,"{\"ok\":true,\"count\":"+l.route.size()+"}");
+            int lineId = 0, n = 0;
+            int[] lat = new int[256], lng = new int[256];
+            try {
+                JsonReader r = new JsonReader(ex.getRequestBody());
+                r.beginObject();
+                while (r.hasNext()) {
+                    String k = r.nextName();
+                    if (k.equals("lineId")) lineId = r.nextInt();
+                    else if (k.equals("points")) {
+                        r.beginArray();
+                        while (r.hasNext()) {
+                            if (n==lat.length) { lat = Arrays.copyOf(lat, n*2); lng = Arrays.copyOf(lng, n*2); }
+                            r.beginObject();
+                            while (r.hasNext()) {
+                                String pk = r.nextName();
+                                if (pk.equals("lat")) lat[n] = Route.fixed(r.nextDouble());
+                                else if (pk.equals("lng")) lng[n] = Route.fixed(r.nextDouble());
+                                else r.skipValue();
+                            }
+                            r.endObject();
+                            n++;
+                        }
+                        r.endArray();
+                    } else r.skipValue();
+                }
+                r.endObject();
+            } catch (IllegalStateException | NumberFormatException e) { sendJson(ex,400,"{}"); return; }
+            if (state().lines.get(lineId) == null) { sendJson(ex,404,"{}"); return; }
+            cluster.commitOwned(lineId, Journal.route(lineId, Arrays.copyOf(lat, n), Arrays.copyOf(lng, n)));
+            sendJson(ex,200,"{\"ok\":true,\"count\":"+n+"}");
         }
     }
 
     static class AdminScheduleHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            int lineId = parseInt(extractField(body, "lineId"));
-            String timesRaw = extractArray(body, "times");
-            List<String> times = new ArrayList<>();
-            for (String item : splitItems(timesRaw)) {
-                String t = extractField(item, "time");
-                if (t!=null && !t.isEmpty()) times.add(t);
-            }
-            state.lineSchedules.put(lineId, times);
-            sendJson(ex,200,"{\"ok\":true,\"count\":"+times.size()+"}");
+            int lineId = 0;
+            int[] secs = new int[16]; byte[] days = new byte[16]; int n = 0;
+            try {
+                JsonReader r = new JsonReader(ex.getRequestBody());
+                r.beginObject();
+                while (r.hasNext()) {
+                    String k = r.nextName();
+                    if (k.equals("lineId")) lineId = r.nextInt();
+                    else if (k.equals("times")) {
+                        r.beginArray();
+                        while (r.hasNext()) {
+                            String t = null; int mask = Schedule.DAILY;
+                            if (r.peek()=='{') {
+                                r.beginObject();
+                                while (r.hasNext()) {
+                                    String f = r.nextName();
+                                    if (f.equals("time")) t = r.nextString();
+                                    else if (f.equals("days")) mask = Schedule.days(r.nextString());
+                                    else r.skipValue();
+                                }
+                                r.endObject();
+                            } else t = r.nextString();
+                            int sec = t==null?-1:secondOfDay(t.trim());
+                            if (sec<0 || mask==0) continue;
+                            if (n==secs.length) { secs = Arrays.copyOf(secs, n*2); days = Arrays.copyOf(days, n*2); }
+                            secs[n] = sec; days[n] = (byte)mask; n++;
+                        }
+                        r.endArray();
+                    } else r.skipValue();
+                }
+                r.endObject();
+            } catch (IllegalStateException | NumberFormatException e) { sendJson(ex,400,"{}"); return; }
+            Schedule sc = new Schedule(Arrays.copyOf(secs, n), Arrays.copyOf(days, n));
+            cluster.commitOwned(lineId, Journal.schedule(lineId, sc));
+            sendJson(ex,200,"{\"ok\":true,\"count\":"+sc.secs.length+"}");
         }
     }
 
     static class LineScheduleGetHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            long v = responses.version(ResponseCache.SCHEDULES);
+            if (responses.serve(ex, v)) return;
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
             int lineId = parseInt(q.getOrDefault("line","0"));
-            List<String> times = state.lineSchedules.getOrDefault(lineId, List.of("06:00","07:00","08:00","12:00","17:30"));
-            String next = nextDeparture(times);
-            sendJson(ex,200,"{\"times\":"+toJsonArray(times)+",\"next\":"+jsonString(next)+"}");
+            Schedule sc = scheduleOf(state(), lineId);
+            int day = q.containsKey("day") ? Schedule.day(q.get("day")) : Schedule.today();
+            if (day<0) { sendJson(ex,400,"{}"); return; }
+            int[] secs = q.containsKey("day") ? sc.byDay[day] : sc.all;
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("times").beginArray();
+            for (int t : secs) w.value(clock(t));
+            w.endArray().name("next").value(nextDeparture(sc, day)).endObject();
+            // "next" moves on when that departure leaves, and the default day at midnight
+            long now = System.currentTimeMillis();
+            int sod = LocalTime.now().toSecondOfDay(), next = sc.next(day, sod);
+            long expires = now + 1000L*((next<0 ? 86400 : Math.min(86400, next)) - sod);
+            responses.store(ex, ResponseCache.SCHEDULES, v, w, expires);
         }
     }
 
-    static String toJsonArray(List<String> arr){
-        StringBuilder sb = new StringBuilder();
-        sb.append("["); boolean first=true; for(String s:arr){ if(!first) sb.append(","); first=false; sb.append(jsonString(s)); } sb.append("]"); return sb.toString();
+    static Schedule scheduleOf(State st, int lineId){ return st.lineSchedules.getOrDefault(lineId, Schedule.DEFAULT); }
+
+    static String nextDeparture(Schedule sc, int day){
+        int t = sc.next(day, LocalTime.now().toSecondOfDay());
+        return t<0 ? "" : clock(t);
     }
 
-    static String nextDeparture(List<String> times){
-        java.time.LocalTime now = java.time.LocalTime.now();
-        java.time.LocalTime best = null;
-        for (String t:times){
-            try {
-                java.time.LocalTime lt = java.time.LocalTime.parse(t);
-                if (lt.isAfter(now) && (best==null || lt.isBefore(best))) best = lt;
-            } catch(Exception ignore) {}
+    /** Next n departures after a time across several lines (all lines when none are given), merged in time order. */
+    static class DeparturesHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
+            int n = Math.max(1, Math.min(500, parseInt(q.getOrDefault("n","10"))));
+            int day = q.containsKey("day") ? Schedule.day(q.get("day")) : Schedule.today();
+            int at = q.containsKey("time") ? secondOfDay(q.get("time")) : LocalTime.now().toSecondOfDay();
+            if (day<0 || at<0) { sendJson(ex,400,"{}"); return; }
+            State st = state();
+            List<Line> lines = new ArrayList<>();
+            String ids = q.get("lines");
+            if (ids==null || ids.isEmpty()) lines.addAll(st.lines.values());
+            else for (String id : ids.split(",")) { Line l = st.lines.get(parseInt(id.trim())); if (l!=null) lines.add(l); }
+            // k-way merge: each line contributes its own next-n list; the heap holds one cursor per line
+            int[][] next = new int[lines.size()][];
+            PriorityQueue<long[]> heap = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+            int[] buf = new int[n];
+            for (int i=0;i<lines.size();i++) {
+                int c = scheduleOf(st, lines.get(i).id).next(day, at, buf);
+                next[i] = Arrays.copyOf(buf, c);
+                if (c>0) heap.add(new long[]{next[i][0], i, 0});
+            }
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("day").value(Schedule.DAY_NAMES[day]).name("time").value(clock(at)).name("departures").beginArray();
+            for (int k=0;k<n && !heap.isEmpty();k++) {
+                long[] top = heap.poll();
+                int i = (int)top[1], j = (int)top[2], t = (int)top[0];
+                Line l = lines.get(i);
+                w.beginObject().name("lineId").value(l.id).name("name").value(l.name).name("time").value(clock(t))
+                 .name("inMinutes").value((t-at)/60).name("dayOffset").value(t/86400).endObject();
+                if (j+1<next[i].length) { top[0] = next[i][j+1]; top[2] = j+1; heap.add(top); }
+            }
+            w.endArray().endObject();
+            sendJson(ex,200,w);
         }
-        return best==null? (times.isEmpty()?"":times.get(0)) : best.toString();
     }
 
     static class AdminAdHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
+            Map<String,String> f;
+            try { f = readFields(ex); } catch (IllegalStateException e) { sendError(ex,400,e.getMessage()); return; }
             Ad ad = new Ad();
-            ad.id = state.adSeq++;
-            ad.title = extractField(body, "title");
-            ad.imageUrl = extractField(body, "imageUrl");
-            ad.linkUrl = extractField(body, "linkUrl");
-            state.ads.add(ad);
-            sendJson(ex,200,"{\"id\":"+ad.id+"}");
+            ad.id = cluster.nextId(adSeq);
+            ad.title = f.getOrDefault("title", "");
+            ad.imageUrl = f.getOrDefault("imageUrl", "");
+            ad.linkUrl = f.getOrDefault("linkUrl", "");
+            journal.commit(Journal.ad(ad));
+            sendJson(ex,200,new JsonWriter(32).beginObject().name("id").value(ad.id).endObject());
         }
     }
 
     static class AdsGetHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
-            StringBuilder sb = new StringBuilder();
-            sb.append("["); boolean first=true; for(Ad a:state.ads){ if(!first) sb.append(","); first=false; sb.append("{\"id\":").append(a.id).append(",\"title\":").append(jsonString(a.title)).append(",\"imageUrl\":").append(jsonString(a.imageUrl)).append(",\"linkUrl\":").append(jsonString(a.linkUrl)).append("}"); } sb.append("]");
-            sendJson(ex,200,sb.toString());
+            long v = responses.version(ResponseCache.ADS);
+            if (responses.serve(ex, v)) return;
+            JsonWriter w = new JsonWriter();
+            w.beginArray();
+            for (Ad a : state().ads) w.beginObject().name("id").value(a.id).name("title").value(a.title).name("imageUrl").value(a.imageUrl).name("linkUrl").value(a.linkUrl).endObject();
+            w.endArray();
+            responses.store(ex, ResponseCache.ADS, v, w, Long.MAX_VALUE);
         }
     }
 
@@ -248,91 +469,272 @@ public class Main {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
-            double oLat = Double.parseDouble(q.getOrDefault("originLat","-27.65"));
-            double oLng = Double.parseDouble(q.getOrDefault("originLng","-48.65"));
-            double dLat = Double.parseDouble(q.getOrDefault("destLat","-27.66"));
-            double dLng = Double.parseDouble(q.getOrDefault("destLng","-48.65"));
-            Line bestLine = null; int oIdx=0, dIdx=0; int bestLen = Integer.MAX_VALUE;
-            for (Line l : state.lines.values()) {
-                List<RoutePoint> r = l.route.isEmpty()?seedDefaultRoute():l.route;
-                int oi = nearestIndex(r, oLat, oLng);
-                int di = nearestIndex(r, dLat, dLng);
-                if (oi<=di) {
-                    int len = di-oi;
-                    if (len<bestLen) {bestLen=len; bestLine=l; oIdx=oi; dIdx=di;}
-                }
+            JsonWriter w;
+            try { w = plan(q); }
+            catch (NumberFormatException e) { sendError(ex,400,"malformed numeric parameter"); return; }
+            if (w==null) sendJson(ex,400,"{}"); else sendJson(ex,200,w);
+        }
+    }
+
+    /** The /api/plan answer, or null for a malformed time; NumberFormatException for other malformed parameters. */
+    static JsonWriter plan(Map<String,String> q){
+        double oLat = Double.parseDouble(q.getOrDefault("originLat","-27.65"));
+        double oLng = Double.parseDouble(q.getOrDefault("originLng","-48.65"));
+        double dLat = Double.parseDouble(q.getOrDefault("destLat","-27.66"));
+        double dLng = Double.parseDouble(q.getOrDefault("destLng","-48.65"));
+        int depart = q.containsKey("time") ? secondOfDay(q.get("time")) : LocalTime.now().toSecondOfDay();
+        if (depart<0) return null;
+        State st = state();
+        List<TransitPlanner.Journey> journeys = planner.plan(st, oLat, oLng, dLat, dLng, depart);
+        if (!journeys.isEmpty()) return journeysJson(st, journeys, q);
+        Line bestLine = null; int oIdx=0, dIdx=0; int bestLen = Integer.MAX_VALUE;
+        for (Line l : st.lines.values()) {
+            Route r = routeOf(l);
+            int oi = r.nearest(oLat, oLng);
+            int di = r.nearest(dLat, dLng);
+            if (oi<=di) {
+                int len = di-oi;
+                if (len<bestLen) {bestLen=len; bestLine=l; oIdx=oi; dIdx=di;}
+            }
+        }
+        if (bestLine==null) { bestLine = DEFAULT_LINE; oIdx=0; dIdx=Math.min(5, DEFAULT_ROUTE.size()-1); }
+        Route r = routeOf(bestLine);
+        int estMin = Math.max(1, (int)Math.round(eta.seconds(bestLine.id, r, oIdx, dIdx, depart)/60));
+        String next = nextDeparture(scheduleOf(st, bestLine.id), Schedule.today());
+        JsonWriter w = new JsonWriter();
+        w.beginObject().name("line").value(bestLine.id).name("name").value(bestLine.name).name("estimatedMinutes").value(estMin).name("nextDeparture").value(next).name("segment").beginArray();
+        writePoints(w, r, r.simplified(oIdx, dIdx, tolerance(q, r)));
+        w.endArray().endObject();
+        return w;
+    }
+
+    /**
+     * The fastest journey's ridden points as "segment" (simplified per ?zoom=/?tolerance=, as routes/get), then
+     * every journey. Geometry comes from the routes the planner used; a walk-only journey has a null line.
+     */
+    static JsonWriter journeysJson(State st, List<TransitPlanner.Journey> journeys, Map<String,String> q){
+        TransitPlanner.Journey fastest = journeys.get(journeys.size()-1);
+        TransitPlanner.Leg firstRide = null;
+        for (TransitPlanner.Leg lg : fastest.legs) if (lg.lineId>=0) { firstRide = lg; break; }
+        Line fl = firstRide==null ? null : st.lines.get(firstRide.lineId);
+        JsonWriter w = new JsonWriter();
+        w.beginObject().name("line");
+        if (firstRide==null) w.value((String)null); else w.value(firstRide.lineId);
+        w.name("name").value(fl==null?null:fl.name)
+         .name("estimatedMinutes").value(Math.max(1, (fastest.arrive-fastest.depart+59)/60))
+         .name("nextDeparture").value(firstRide==null?"":clock(firstRide.depart)).name("segment").beginArray();
+        for (TransitPlanner.Leg lg : fastest.legs)
+            if (lg.lineId>=0) writePoints(w, lg.route, lg.route.simplified(lg.fromIdx, lg.toIdx, tolerance(q, lg.route)));
+        w.endArray().name("journeys").beginArray();
+        for (TransitPlanner.Journey jr : journeys) {
+            w.beginObject().name("departure").value(clock(jr.depart)).name("arrival").value(clock(jr.arrive)).name("transfers").value(jr.transfers).name("legs").beginArray();
+            for (TransitPlanner.Leg lg : jr.legs) {
+                w.beginObject().name("mode").value(lg.mode);
+                if (lg.lineId>=0) w.name("lineId").value(lg.lineId).name("fromIndex").value(lg.fromIdx).name("toIndex").value(lg.toIdx);
+                w.name("departure").value(clock(lg.depart)).name("arrival").value(clock(lg.arrive)).endObject();
             }
-            if (bestLine==null) { bestLine = seedDefaultLine(); List<RoutePoint> r = bestLine.route; oIdx=0; dIdx=Math.min(5, r.size()-1); }
-            List<RoutePoint> r = bestLine.route.isEmpty()?seedDefaultRoute():bestLine.route;
-            int hopMin = 2; int estMin = Math.max(1, (dIdx-oIdx)*hopMin);
-            String next = nextDeparture(state.lineSchedules.getOrDefault(bestLine.id, List.of("06:00","07:00","08:00","12:00","17:30")));
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"line\":").append(bestLine.id).append(",\"name\":").append(jsonString(bestLine.name)).append(",\"estimatedMinutes\":").append(estMin).append(",\"nextDeparture\":").append(jsonString(next)).append(",\"segment\":[");
-            boolean first=true; for(int i=oIdx;i<=dIdx;i++){ if(!first) sb.append(","); first=false; RoutePoint p=r.get(i); sb.append("{\"lat\":").append(p.lat).append(",\"lng\":").append(p.lng).append("}"); }
-            sb.append("]}");
-            sendJson(ex,200,sb.toString());
+            w.endArray().endObject();
         }
+        w.endArray().endObject();
+        return w;
     }
 
-    static int nearestIndex(List<RoutePoint> r, double lat, double lng){
-        int idx = 0; double best = Double.MAX_VALUE; for(int i=0;i<r.size();i++){ RoutePoint p=r.get(i); double d=(p.lat-lat)*(p.lat-lat)+(p.lng-lng)*(p.lng-lng); if (d<best){best=d; idx=i;} } return idx;
+    static final TransitPlanner planner = new TransitPlanner();
+
+    /** "H:mm" or "HH:mm[:ss]" as seconds after midnight; -1 if it is not a valid time of day. */
+    static int secondOfDay(String t){
+        int[] f = new int[3]; int k = 0, digits = 0;
+        for (int i=0;i<t.length();i++) {
+            char c = t.charAt(i);
+            if (c>='0' && c<='9') { if (++digits>2) return -1; f[k] = f[k]*10+(c-'0'); }
+            else if (c==':' && digits>0 && k<2) { k++; digits = 0; }
+            else return -1;
+        }
+        if (k==0 || digits==0 || (k>0 && digits!=2) || f[0]>23 || f[1]>59 || f[2]>59) return -1;
+        return f[0]*3600+f[1]*60+f[2];
     }
 
-    static class BusState {int busId; int lineId; int idx; double speed;}
-    static java.util.concurrent.ScheduledExecutorService ticker;
+    static String clock(int sec){ return String.format("%02d:%02d", (sec/3600)%24, (sec/60)%60); }
+
+    /**
+     * Bus position. Simulated buses move along (metres from point 0) at speed m/s; live ones are set by
+     * PositionIngest, lastTs being the newest accepted report. lastIdx/lastMs feed the ETA model.
+     */
+    static class BusState {int busId; int lineId; volatile int idx; double along; double speed; int lastIdx; long lastMs; volatile boolean live; final AtomicLong lastTs = new AtomicLong();}
     static boolean tickerStarted = false;
-    static Map<Integer, BusState> busStates = new HashMap<>();
+    static final Map<Integer, BusState> busStates = new ConcurrentHashMap<>();
 
-    static void ensureTicker(){
+    /**
+     * Starts the simulator, with three SIM buses when there are none: journaled on the first line, or
+     * on a fresh single node simulated on DEFAULT_LINE without touching State.
+     */
+    static synchronized void ensureTicker() throws IOException {
         if (tickerStarted) return;
-        ticker = java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
-        if (state.buses.isEmpty()) {
-            Line l = state.lines.isEmpty()?seedDefaultLine():state.lines.values().iterator().next();
-            for (int k=0;k<3;k++){ Bus b=new Bus(); b.id=state.busSeq++; b.lineId=l.id; b.code="SIM"+(k+1); state.buses.put(b.id,b);}            
-        }
-        for (Bus b : state.buses.values()) {
-            BusState bs = new BusState(); bs.busId=b.id; bs.lineId=b.lineId; bs.idx=(int)(Math.random()*10); bs.speed=1; busStates.put(b.id, bs);
-        }
-        ticker.scheduleAtFixedRate(() -> {
-            for (BusState bs : busStates.values()) {
-                Line l = state.lines.get(bs.lineId);
-                List<RoutePoint> r = l==null?seedDefaultRoute(): (l.route.isEmpty()?seedDefaultRoute():l.route);
-                bs.idx = (bs.idx + (int)bs.speed) % r.size();
-            }
-        }, 0, 1, java.util.concurrent.TimeUnit.SECONDS);
+        State st = state();
+        int demo = 0;
+        if (st.buses.isEmpty() && !st.lines.isEmpty() && cluster.self==0) {
+            Line l = st.lines.values().iterator().next();
+            for (int k=0;k<3;k++){ Bus b=new Bus(); b.id=cluster.nextId(busSeq); b.lineId=l.id; b.code="SIM"+(k+1); cluster.commitOwned(l.id, Journal.bus(b));}
+        } else if (st.lines.isEmpty() && !cluster.enabled()) demo = 3;
+        sim.start(demo);
         tickerStarted = true;
     }
 
+    static final FleetSim sim = new FleetSim();
+
+    static final EtaModel eta = new EtaModel();
+
+    static final PositionIngest ingest = new PositionIngest();
+
+    static class IngestPositionsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
+            long t0 = System.nanoTime();
+            ensureTicker();
+            State st = state();
+            long now = System.currentTimeMillis();
+            int[] res = new int[4];
+            // in a cluster the batch is re-encoded as binary records and split by line owner afterwards
+            ByteBuffer fwd = cluster.enabled() ? ByteBuffer.allocate(1<<12) : null;
+            String ct = ex.getRequestHeaders().getFirst("Content-Type");
+            try {
+                if (ct!=null && ct.startsWith("application/octet-stream")) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(ex.getRequestBody(), 1<<16));
+                    byte[] rec = new byte[20];
+                    ByteBuffer bb = ByteBuffer.wrap(rec);
+                    while (true) {
+                        int got = in.readNBytes(rec, 0, 20);
+                        if (got==0) break;
+                        if (got<20) throw new IllegalStateException("truncated record");
+                        bb.clear();
+                        int busId = bb.getInt(), la = bb.getInt(), ln = bb.getInt(); long ts = bb.getLong();
+                        if (fwd!=null) fwd = append(fwd, busId, la, ln, ts>0?ts:now);
+                        else res[ingest.report(st, busId, la, ln, ts>0?ts:now)]++;
+                    }
+                } else {
+                    JsonReader r = new JsonReader(ex.getRequestBody());
+                    while (r.peek()=='{') {
+                        r.beginObject();
+                        int busId = 0; double lat = Double.NaN, lng = Double.NaN; long ts = 0;
+                        while (r.hasNext()) {
+                            String k = r.nextName();
+                            switch (k) {
+                                case "busId": case "id": busId = r.nextInt(); break;
+                                case "lat": lat = r.nextDouble(); break;
+                                case "lng": case "lon": lng = r.nextDouble(); break;
+                                case "ts": ts = (long)r.nextDouble(); break;
+                                default: r.skipValue();
+                            }
+                        }
+                        r.endObject();
+                        if (Double.isNaN(lat) || Double.isNaN(lng)) { res[PositionIngest.OFF_ROUTE]++; ingest.offRoute.incrementAndGet(); continue; }
+                        if (fwd!=null) fwd = append(fwd, busId, Route.fixed(lat), Route.fixed(lng), ts>0?ts:now);
+                        else res[ingest.report(st, busId, Route.fixed(lat), Route.fixed(lng), ts>0?ts:now)]++;
+                    }
+                    if (r.peek()>=0) throw new IllegalStateException("expected an object per line");
+                }
+            } catch (IllegalStateException | NumberFormatException e) {
+                sendJson(ex,400,new JsonWriter(96).beginObject().name("error").value(e.getMessage()).name("accepted").value(res[PositionIngest.OK]).endObject()); return;
+            }
+            if (fwd!=null) res = cluster.positions(st, fwd.flip());
+            ingest.batches.incrementAndGet();
+            ingest.latencyMicros.record((System.nanoTime()-t0)/1000);
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("accepted").value(res[PositionIngest.OK]).name("unknownBus").value(res[PositionIngest.UNKNOWN])
+             .name("offRoute").value(res[PositionIngest.OFF_ROUTE]).name("stale").value(res[PositionIngest.STALE]).endObject();
+            sendJson(ex,200,w);
+        }
+    }
+
+    static ByteBuffer append(ByteBuffer b, int busId, int latE7, int lngE7, long ts){
+        if (b.remaining()<20) b = ByteBuffer.allocate(b.capacity()*2).put(b.flip());
+        return b.putInt(busId).putInt(latE7).putInt(lngE7).putLong(ts);
+    }
+
+    static class IngestStatsHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            PositionIngest in = ingest;
+            double up = Math.max(1, System.currentTimeMillis()-in.startedMs)/1000.0;
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("accepted").value(in.accepted.get()).name("unknownBus").value(in.unknown.get())
+             .name("offRoute").value(in.offRoute.get()).name("stale").value(in.stale.get()).name("batches").value(in.batches.get())
+             .name("reportsPerSecond").value(Math.round(in.accepted.get()/up))
+             .name("latencyMicros").beginObject().name("p50").value(in.latencyMicros.percentile(0.50)).name("p99").value(in.latencyMicros.percentile(0.99))
+             .name("p999").value(in.latencyMicros.percentile(0.999)).name("max").value(in.latencyMicros.percentile(1.0)).endObject().endObject();
+            sendJson(ex,200,w);
+        }
+    }
+
+    static final Cluster cluster = new Cluster(Integer.parseInt(env("NODE_ID", "0")), env("CLUSTER_NODES", ""), env("CLUSTER_SECRET", ""));
+
+    static class ClusterMessageHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
+            if (!cluster.trusted(ex.getRequestHeaders().getFirst(Cluster.SECRET_HEADER))) { sendError(ex,403,"forbidden"); return; }
+            String topic = parseQuery(ex.getRequestURI().getQuery()).getOrDefault("topic", "");
+            byte[] out;
+            try { out = cluster.receive(topic, ex.getRequestBody().readAllBytes()); }
+            catch (IOException | RuntimeException e) { sendError(ex,400,String.valueOf(e.getMessage())); return; }
+            ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ex.sendResponseHeaders(200, out.length==0 ? -1 : out.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(out); }
+        }
+    }
+
+    static class ClusterStatusHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            int owned = 0; for (Integer id : state().lines.keySet()) if (cluster.owns(id)) owned++;
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("node").value(cluster.self).name("nodes").value(cluster.size).name("ownedLines").value(owned)
+             .name("replicated").value(cluster.replicated.get()).name("replicationFailures").value(cluster.replicationFailures.get())
+             .name("forwarded").value(cluster.forwarded.get()).endObject();
+            sendJson(ex,200,w);
+        }
+    }
+
     static class BusesNearHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
             ensureTicker();
+            String query = ex.getRequestURI().getRawQuery();
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
-            double lat = Double.parseDouble(q.getOrDefault("lat","-27.65"));
-            double lng = Double.parseDouble(q.getOrDefault("lng","-48.65"));
-            boolean hasDest = q.containsKey("destLat") && q.containsKey("destLng");
-            double dLat = Double.parseDouble(q.getOrDefault("destLat","0"));
-            double dLng = Double.parseDouble(q.getOrDefault("destLng","0"));
-            int hopMin = 2;
-            StringBuilder sb = new StringBuilder(); sb.append("["); boolean first=true;
-            for (BusState bs : busStates.values()) {
-                Line l = state.lines.get(bs.lineId);
-                if (l==null) continue; List<RoutePoint> r = l.route.isEmpty()?seedDefaultRoute():l.route;
-                int stopIdx = nearestIndex(r, lat, lng);
-                int destIdx = hasDest? nearestIndex(r, dLat, dLng) : stopIdx;
-                if (hasDest && bs.idx>destIdx) { // aproximação de direção
-                    continue;
-                }
-                double dist = distanceAlong(r, bs.idx, stopIdx);
-                double speedMps = 5.0; // ~18 km/h
-                int eta = (int)Math.round(dist / (speedMps*60.0));
-                RoutePoint p = r.get(bs.idx % r.size());
-                if (!first) sb.append(","); first=false;
-                String arrival = java.time.LocalTime.now().plusMinutes(eta).toString();
-                sb.append("{\"busId\":").append(bs.busId).append(",\"lineId\":").append(l.id).append(",\"name\":").append(jsonString(l.name)).append(",\"lat\":").append(p.lat).append(",\"lng\":").append(p.lng).append(",\"etaMinutes\":").append(eta).append(",\"arrivalTime\":").append(jsonString(arrival)).append("}");
+            JsonWriter w = new JsonWriter();
+            w.beginArray();
+            if (!cluster.enabled()) writeNear(w, q, id -> true);
+            else if (!cluster.near(w, q, query==null?"":query)) ex.getResponseHeaders().set("X-Partial", "true");
+            w.endArray();
+            sendJson(ex,200,w);
+        }
+    }
+
+    /** Buses on lines accepted by ownsLine, as objects appended to an open JSON array. */
+    static void writeNear(JsonWriter w, Map<String,String> q, IntPredicate ownsLine){
+        double lat = Double.parseDouble(q.getOrDefault("lat","-27.65"));
+        double lng = Double.parseDouble(q.getOrDefault("lng","-48.65"));
+        boolean hasDest = q.containsKey("destLat") && q.containsKey("destLng");
+        double dLat = Double.parseDouble(q.getOrDefault("destLat","0"));
+        double dLng = Double.parseDouble(q.getOrDefault("destLng","0"));
+        double radius = Double.parseDouble(q.getOrDefault("radius","0"));
+        Set<Integer> nearLines = radius>0 ? routeIndex.linesWithin(lat, lng, radius) : null;
+        Map<Integer,int[]> snapped = new HashMap<>();
+        int sod = LocalTime.now().toSecondOfDay();
+        State st = state();
+        for (BusState bs : busStates.values()) {
+            Line l = lineOf(st, bs.lineId);
+            if (l==null || !ownsLine.test(l.id)) continue; Route r = routeOf(l); int pos = bs.idx % r.size();
+            if (nearLines!=null && (!nearLines.contains(l.id) || distanceMeters(r.lat(pos), r.lng(pos), lat, lng)>radius)) continue;
+            int[] sd = snapped.computeIfAbsent(l.id, k -> { int si = r.nearest(lat, lng); return new int[]{si, hasDest? r.nearest(dLat, dLng) : si}; });
+            int stopIdx = sd[0];
+            int destIdx = sd[1];
+            if (hasDest && bs.idx>destIdx) { // aproximação de direção
+                continue;
             }
-            sb.append("]");
-            sendJson(ex,200,sb.toString());
+            int secs = (int)Math.round(eta.seconds(l.id, r, pos, stopIdx, sod));
+            int etaMin = (secs+30)/60;
+            w.beginObject().name("busId").value(bs.busId).name("lineId").value(l.id).name("name").value(l.name)
+             .name("lat").valueE7(r.latE7[pos]).name("lng").valueE7(r.lngE7[pos]).name("etaMinutes").value(etaMin).name("arrivalTime").value(clock(sod+secs)).endObject();
         }
     }
 
@@ -346,84 +748,110 @@ public class Main {
             double tLng = Double.parseDouble(q.getOrDefault("targetLng","-48.65"));
             BusState bs = busStates.get(busId);
             if (bs==null) { sendJson(ex,404,"{}"); return; }
+            int stopIdx = routeOf(state().lines.get(bs.lineId)).nearest(tLat, tLng);
             Headers h = ex.getResponseHeaders(); h.set("Content-Type","text/event-stream"); h.set("Cache-Control","no-store"); ex.sendResponseHeaders(200,0);
-            OutputStream os = ex.getResponseBody();
-            Executors.newSingleThreadExecutor().submit(() -> {
-                try {
-                    while (true) {
-                        Line l = state.lines.get(bs.lineId);
-                        List<RoutePoint> r = l==null?seedDefaultRoute(): (l.route.isEmpty()?seedDefaultRoute():l.route);
-                        int stopIdx = nearestIndex(r, tLat, tLng);
-                        double dist = distanceAlong(r, bs.idx, stopIdx);
-                        double speedMps = 5.0; // ~18 km/h
-                        int eta = (int)Math.round(dist / (speedMps*60.0));
-                        RoutePoint p = r.get(bs.idx % r.size());
-                        String arrival = java.time.LocalTime.now().plusMinutes(eta).toString();
-                        String data = "data:{\"lat\":"+p.lat+",\"lng\":"+p.lng+",\"etaMinutes\":"+eta+",\"arrivalTime\":"+jsonString(arrival)+",\"lineId\":"+l.id+"}\n\n";
-                        os.write(data.getBytes(StandardCharsets.UTF_8)); os.flush();
-                        Thread.sleep(1000);
-                    }
-                } catch (Exception e) { try { os.close(); } catch (IOException ignore) {} }
-            });
+            streamHub.subscribe("bus:"+busId+":"+stopIdx, () -> busFrame(bs, stopIdx), ex);
         }
     }
 
-    static double distanceMeters(RoutePoint a, RoutePoint b){
+    static byte[] busFrame(BusState bs, int stopIdx){
+        Route r = routeOf(state().lines.get(bs.lineId));
+        int pos = bs.idx % r.size();
+        int sod = LocalTime.now().toSecondOfDay();
+        int secs = (int)Math.round(eta.seconds(bs.lineId, r, pos, Math.min(stopIdx, r.size()-1), sod));
+        JsonWriter w = new JsonWriter(128);
+        w.ascii("data:");
+        w.beginObject().name("lat").value(r.lat(pos)).name("lng").value(r.lng(pos)).name("etaMinutes").value((secs+30)/60)
+         .name("arrivalTime").value(clock(sod+secs)).name("lineId").value(bs.lineId).endObject();
+        w.ascii("\n\n");
+        return w.toByteArray();
+    }
+
+    static byte[] routeFrame(int lineId, int[] cursor){
+        Route r = routeOf(state().lines.get(lineId));
+        int i = cursor[0]++ % r.size();
+        return ("data:{\"lat\":"+r.lat(i)+",\"lng\":"+r.lng(i)+"}\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static final StreamHub streamHub = new StreamHub();
+
+    static double distanceMeters(double aLat, double aLng, double bLat, double bLng){
         double R = 6371000.0;
-        double dLat = Math.toRadians(b.lat - a.lat);
-        double dLng = Math.toRadians(b.lng - a.lng);
+        double dLat = Math.toRadians(bLat - aLat);
+        double dLng = Math.toRadians(bLng - aLng);
         double sa = Math.sin(dLat/2), sb = Math.sin(dLng/2);
-        double h = sa*sa + Math.cos(Math.toRadians(a.lat))*Math.cos(Math.toRadians(b.lat))*sb*sb;
+        double h = sa*sa + Math.cos(Math.toRadians(aLat))*Math.cos(Math.toRadians(bLat))*sb*sb;
         return 2*R*Math.asin(Math.min(1.0, Math.sqrt(h)));
     }
 
-    static double distanceAlong(List<RoutePoint> r, int fromIdx, int toIdx){
-        if (r.isEmpty()) return 0;
-        int n = r.size();
-        double sum = 0;
-        int i = fromIdx;
-        while (i != toIdx) {
-            RoutePoint a = r.get(i % n);
-            RoutePoint b = r.get((i+1) % n);
-            sum += distanceMeters(a,b);
-            i = (i+1) % n;
-            if (sum>1e7) break; // safety guard
-        }
-        return sum;
-    }
-
     static class PassengerRegisterHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("POST")) { sendJson(ex,405,"{}"); return; }
-            String body = readBody(ex);
-            String name = extractField(body, "name");
-            String photo = extractField(body, "photoDataUrl");
+            String name = null, photo = null;
+            try {
+                JsonReader r = new JsonReader(ex.getRequestBody());
+                r.beginObject();
+                while (r.hasNext()) {
+                    String k = r.nextName();
+                    if (k.equals("photoDataUrl") && r.peek()=='"') photo = photos.put(r);
+                    else if (k.equals("name")) name = r.nextString();
+                    else r.skipValue();
+                }
+                r.endObject();
+            } catch (PhotoStore.TooLarge e) { sendError(ex,413,e.getMessage()); return; }
+            catch (IllegalStateException e) { sendError(ex,400,e.getMessage()); return; }
             Passenger p = new Passenger();
-            p.id = state.passengerSeq++;
+            p.id = cluster.nextId(passengerSeq);
             p.name = name;
-            p.photoDataUrl = photo;
-            state.passengers.put(p.id, p);
-            sendJson(ex,200,"{\"id\":"+p.id+",\"name\":"+jsonString(p.name)+"}");
+            p.photo = photo;
+            journal.commit(Journal.passenger(p));
+            JsonWriter w = new JsonWriter();
+            w.beginObject().name("id").value(p.id).name("name").value(p.name);
+            if (p.photo!=null) w.name("photoUrl").value("/photos/"+p.photo);
+            sendJson(ex,200,w.endObject());
         }
     }
 
+    static final LineSearch lineSearch = new LineSearch();
+
+    /** Ranked line search: ?q= (empty lists every line by name), limit (1..200, default 50), offset. */
     static class PassengerSearchRoutesHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            long v = responses.version(ResponseCache.LINES);
+            if (responses.serve(ex, v)) return;
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
-            String term = q.getOrDefault("q","" ).toLowerCase();
-            StringBuilder sb = new StringBuilder();
-            sb.append("[");
-            boolean first = true;
-            for (Line l : state.lines.values()) {
-                if (term.isEmpty() || l.name.toLowerCase().contains(term)) {
-                    if (!first) sb.append(",");
-                    first = false;
-                    sb.append("{\"id\":").append(l.id).append(",\"name\":").append(jsonString(l.name)).append("}");
-                }
+            int limit = Math.max(1, Math.min(200, parseInt(q.getOrDefault("limit","50"))));
+            int offset = Math.max(0, Math.min(10000, parseInt(q.getOrDefault("offset","0"))));
+            JsonWriter w = new JsonWriter();
+            w.beginArray();
+            for (LineSearch.Doc d : lineSearch.search(q.getOrDefault("q",""), offset, limit))
+                w.beginObject().name("id").value(d.lineId).name("name").value(d.name).name("companyId").value(d.companyId).endObject();
+            w.endArray();
+            responses.store(ex, ResponseCache.LINES, v, w, Long.MAX_VALUE);
+        }
+    }
+
+    static final FleetFeed fleetFeed = new FleetFeed(streamHub.writers);
+
+    static class FleetStreamHandler implements HttpHandler {
+        public void handle(HttpExchange ex) throws IOException {
+            if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
+            boolean binary = "binary".equals(q.get("format"));
+            long[] tiles = {FleetFeed.ALL};
+            String bbox = q.get("bbox");
+            if (bbox!=null) {
+                String[] p = bbox.split(",");
+                try { tiles = FleetFeed.tiles(Double.parseDouble(p[0]), Double.parseDouble(p[1]), Double.parseDouble(p[2]), Double.parseDouble(p[3])); }
+                catch (RuntimeException e) { sendJson(ex,400,"{}"); return; }
             }
-            sb.append("]");
-            sendJson(ex,200,sb.toString());
+            ensureTicker();
+            Headers h = ex.getResponseHeaders();
+            h.set("Content-Type", binary ? "application/octet-stream" : "text/event-stream");
+            h.set("Cache-Control","no-store");
+            ex.sendResponseHeaders(200, 0);
+            fleetFeed.subscribe(ex.getResponseBody(), ex::close, binary, tiles);
         }
     }
 
@@ -432,148 +860,155 @@ public class Main {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
             int lineId = parseInt(q.getOrDefault("line","0"));
-            Line l = state.lines.get(lineId);
-            if (l == null) {
-                l = seedDefaultLine();
-            }
+            Line l = state().lines.getOrDefault(lineId, DEFAULT_LINE);
+            ensureTicker();
             Headers h = ex.getResponseHeaders();
             h.set("Content-Type","text/event-stream");
             h.set("Cache-Control","no-store");
             ex.sendResponseHeaders(200, 0);
-            OutputStream os = ex.getResponseBody();
-            List<RoutePoint> route = l.route.isEmpty()?seedDefaultRoute():l.route;
-            Executors.newSingleThreadExecutor().submit(() -> {
-                try {
-                    int i = 0;
-                    while (true) {
-                        RoutePoint p = route.get(i % route.size());
-                        String data = "data:{\"lat\":"+p.lat+",\"lng\":"+p.lng+"}\n\n";
-                        os.write(data.getBytes(StandardCharsets.UTF_8));
-                        os.flush();
-                        Thread.sleep(1000);
-                        i++;
-                    }
-                } catch (Exception e) {
-                    try { os.close(); } catch (IOException ignore) {}
-                }
-            });
+            int id = l.id;
+            int[] cursor = new int[1];
+            streamHub.subscribe("route:"+id, () -> routeFrame(id, cursor), ex);
         }
     }
 
+    /**
+     * A line's points, simplified for ?zoom= or ?tolerance=; format=json, polyline (Google encoded)
+     * or binary ([varint n] then zigzag varint deltas of latE7/lngE7).
+     */
     static class RouteGetHandler implements HttpHandler {
         public void handle(HttpExchange ex) throws IOException {
             if (!ex.getRequestMethod().equalsIgnoreCase("GET")) { sendJson(ex,405,"{}"); return; }
+            long v = responses.version(ResponseCache.ROUTES);
+            if (responses.serve(ex, v)) return;
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
             int lineId = parseInt(q.getOrDefault("line","0"));
-            Line l = state.lines.get(lineId);
-            if (l == null) { l = seedDefaultLine(); }
-            List<RoutePoint> route = l.route.isEmpty()?seedDefaultRoute():l.route;
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"points\":[");
-            boolean first = true;
-            for (RoutePoint p : route) {
-                if (!first) sb.append(",");
-                first = false;
-                sb.append("{\"lat\":").append(p.lat).append(",\"lng\":").append(p.lng).append("}");
+            String format = q.getOrDefault("format", "json");
+            if (!format.equals("json") && !format.equals("polyline") && !format.equals("binary")) { sendJson(ex,400,"{}"); return; }
+            Line l = state().lines.getOrDefault(lineId, DEFAULT_LINE);
+            Route route = routeOf(l);
+            double tol;
+            try { tol = tolerance(q, route); }
+            catch (NumberFormatException e) { sendError(ex,400,"tolerance must be a finite number of metres >= 0 and zoom an integer"); return; }
+            int[] idx = route.simplified(0, route.size()-1, tol);
+            if (format.equals("binary")) { responses.store(ex, ResponseCache.ROUTES, v, deltaVarint(route, idx), "application/octet-stream", Long.MAX_VALUE); return; }
+            JsonWriter w;
+            if (format.equals("polyline")) {
+                byte[] enc = polyline(route, idx);
+                w = new JsonWriter(96+enc.length);
+                w.beginObject().name("line").value(l.id).name("tolerance").value(Math.round(Math.max(0, tol)*100)/100.0).name("points").value(idx.length).name("polyline").raw(enc, 0, enc.length).endObject();
+            } else {
+                w = new JsonWriter(64+idx.length*40);
+                w.beginObject().name("points").beginArray();
+                writePoints(w, route, idx);
+                w.endArray().endObject();
             }
-            sb.append("]}");
-            sendJson(ex,200,sb.toString());
+            responses.store(ex, ResponseCache.ROUTES, v, w, Long.MAX_VALUE);
         }
     }
 
-    static Line seedDefaultLine() {
-        Line l = new Line();
-        l.id = state.lineSeq++;
-        l.companyId = ensureDefaultCompany();
-        l.name = "Centro-Palhoça";
-        l.route = seedDefaultRoute();
-        state.lines.put(l.id, l);
-        return l;
+    /**
+     * Metres from ?tolerance=, else one pixel at ?zoom= (clamped to 0..MAX_ZOOM) on r; -1 (every point)
+     * when neither is given. NumberFormatException for a negative or non-finite tolerance or a non-integer zoom.
+     */
+    static double tolerance(Map<String,String> q, Route r){
+        if (q.containsKey("tolerance")) {
+            double t = Double.parseDouble(q.get("tolerance"));
+            if (!Double.isFinite(t) || t<0) throw new NumberFormatException("tolerance "+q.get("tolerance"));
+            return t;
+        }
+        if (q.containsKey("zoom")) return r.tolerance(Integer.parseInt(q.get("zoom").trim()));
+        return -1;
     }
 
-    static int ensureDefaultCompany() {
-        if (state.companies.isEmpty()) {
-            Company c = new Company();
-            c.id = state.companySeq++;
-            c.name = "Empresa Palhoça";
-            state.companies.put(c.id, c);
-            return c.id;
+    static void writePoints(JsonWriter w, Route r, int[] idx){
+        for (int i : idx) w.beginObject().name("lat").valueE7(r.latE7[i]).name("lng").valueE7(r.lngE7[i]).endObject();
+    }
+
+    /** Google encoded polyline of the given points at 1e-5 degrees, as a quoted JSON string. */
+    static byte[] polyline(Route r, int[] idx){
+        byte[] out = new byte[idx.length*28+2];   // two values of at most 7 chars, each possibly escaped
+        int n = 0;
+        out[n++] = '"';
+        long pLat = 0, pLng = 0;
+        for (int i : idx) {
+            long lat = Math.round(r.latE7[i]/100.0), lng = Math.round(r.lngE7[i]/100.0);
+            n = polylineValue(out, n, lat-pLat); n = polylineValue(out, n, lng-pLng);
+            pLat = lat; pLng = lng;
+        }
+        out[n++] = '"';
+        return Arrays.copyOf(out, n);
+    }
+
+    static int polylineValue(byte[] out, int n, long v){
+        v = v<0 ? ~(v<<1) : v<<1;
+        while (true) {
+            int c = (int)(v>=0x20 ? (0x20 | (v & 0x1f))+63 : v+63);
+            if (c=='\\') out[n++] = '\\';
+            out[n++] = (byte)c;
+            if (v<0x20) return n;
+            v >>>= 5;
+        }
+    }
+
+    static byte[] deltaVarint(Route r, int[] idx){
+        byte[] out = new byte[idx.length*10+5];
+        int n = varint(out, 0, idx.length), pLat = 0, pLng = 0;
+        for (int i : idx) {
+            int dLat = r.latE7[i]-pLat, dLng = r.lngE7[i]-pLng;
+            n = varint(out, n, (dLat<<1)^(dLat>>31)); n = varint(out, n, (dLng<<1)^(dLng>>31));
+            pLat = r.latE7[i]; pLng = r.lngE7[i];
         }
-        return state.companies.values().iterator().next().id;
+        return Arrays.copyOf(out, n);
     }
 
-    static List<RoutePoint> seedDefaultRoute() {
-        List<RoutePoint> r = new ArrayList<>();
-        r.add(new RoutePoint(-27.646, -48.654));
-        r.add(new RoutePoint(-27.648, -48.651));
-        r.add(new RoutePoint(-27.650, -48.649));
-        r.add(new RoutePoint(-27.653, -48.648));
-        r.add(new RoutePoint(-27.656, -48.647));
-        r.add(new RoutePoint(-27.658, -48.646));
-        r.add(new RoutePoint(-27.660, -48.645));
-        r.add(new RoutePoint(-27.662, -48.646));
-        r.add(new RoutePoint(-27.664, -48.648));
-        r.add(new RoutePoint(-27.666, -48.650));
-        return r;
+    static int varint(byte[] out, int n, int v){
+        while ((v & ~0x7f)!=0) { out[n++] = (byte)((v & 0x7f) | 0x80); v >>>= 7; }
+        out[n++] = (byte)v;
+        return n;
     }
 
+    static Route routeOf(Line l) {
+        Route r = l==null?null:l.route;
+        return r==null||r.isEmpty()?DEFAULT_ROUTE:r;
+    }
+
+    static final RouteIndex routeIndex = new RouteIndex();
+
+    static String env(String name, String def){ String v = System.getenv(name); return v==null||v.isEmpty()?def:v; }
+    static boolean flag(String name, boolean def){ String v = System.getenv(name); if (v==null) return def; return v.equals("true") || v.equals("1"); }
+
+    static final Journal journal = new Journal();
+
+    static final Route DEFAULT_ROUTE = Route.of(
+        new double[]{-27.646, -27.648, -27.650, -27.653, -27.656, -27.658, -27.660, -27.662, -27.664, -27.666},
+        new double[]{-48.654, -48.651, -48.649, -48.648, -48.647, -48.646, -48.645, -48.646, -48.648, -48.650}, 10);
+
+    /**
+     * Answers an unknown ?line= on the route, stream and planner endpoints and carries the demo buses
+     * of a server without lines; id 0, never part of State.
+     */
+    static final Line DEFAULT_LINE = defaultLine();
+
+    static Line defaultLine(){ Line l = new Line(); l.name = "Centro-Palhoça"; l.route = DEFAULT_ROUTE; return l; }
+
+    /** st's line, or DEFAULT_LINE for its id. */
+    static Line lineOf(State st, int lineId){ Line l = st.lines.get(lineId); return l==null && lineId==DEFAULT_LINE.id ? DEFAULT_LINE : l; }
+
     static int parseInt(String s){try {return Integer.parseInt(s);} catch(Exception e){return 0;}}
 
-    static String extractField(String json, String field) {
-        String f = "\""+field+"\"";
-        int i = json.indexOf(f);
-        if (i<0) return "";
-        int c = json.indexOf(':', i);
-        if (c<0) return "";
-        int start = c+1;
-        while (start<json.length() && Character.isWhitespace(json.charAt(start))) start++;
-        char ch = json.charAt(start);
-        if (ch=='\"') {
-            int end = json.indexOf('"', start+1);
-            if (end<0) return "";
-            return json.substring(start+1, end);
-        } else {
-            int end = start;
-            while (end<json.length() && ",}\n\r".indexOf(json.charAt(end))==-1) end++;
-            return json.substring(start, end).trim();
-        }
-    }
-
-    static String extractArray(String json, String field) {
-        String f = "\""+field+"\"";
-        int i = json.indexOf(f);
-        if (i<0) return "[]";
-        int c = json.indexOf(':', i);
-        int start = json.indexOf('[', c);
-        if (start<0) return "[]";
-        int depth = 0; int end = start;
-        while (end<json.length()) {
-            char ch = json.charAt(end);
-            if (ch=='[') depth++;
-            if (ch==']') {depth--; if (depth==0) break;}
-            end++;
-        }
-        return json.substring(start, end+1);
-    }
-
-    static List<String> splitItems(String arrayJson) {
-        List<String> items = new ArrayList<>();
-        int i = arrayJson.indexOf('[')+1;
-        int start = i;
-        int depth = 0;
-        while (i<arrayJson.length()) {
-            char ch = arrayJson.charAt(i);
-            if (ch=='{') depth++;
-            if (ch=='}') depth--;
-            if (ch==',' && depth==0) {
-                items.add(arrayJson.substring(start, i));
-                start = i+1;
-            }
-            i++;
+    /** Reads the top-level scalar members of a JSON object; nested values are skipped. */
+    static Map<String,String> readFields(HttpExchange ex) throws IOException {
+        JsonReader r = new JsonReader(ex.getRequestBody());
+        Map<String,String> m = new HashMap<>();
+        r.beginObject();
+        while (r.hasNext()) {
+            String k = r.nextName();
+            int c = r.peek();
+            if (c=='{' || c=='[') r.skipValue(); else m.put(k, r.nextString());
         }
-        String last = arrayJson.substring(start, arrayJson.lastIndexOf(']'));
-        if (!last.trim().isEmpty()) items.add(last);
-        return items;
+        r.endObject();
+        return m;
     }
 }
 
@@ -0,0 +1,186 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Prometheus text on /metrics. Each context gets its Endpoint up front, so a request costs a few
+ * atomic adds; allocation comes from the thread's allocated-bytes counter. METRICS_JFR=true also
+ * emits JFR events.
+ */
+final class Metrics {
+    static final String KEY = "metrics";
+    /** Prometheus bucket bounds in micros; a Histogram answers them to within its 1/8 bucket width. */
+    static final long[] BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000};
+    static final String[] LE = Arrays.stream(BOUNDS).mapToObj(b -> BigDecimal.valueOf(b, 6).stripTrailingZeros().toPlainString()).toArray(String[]::new);
+
+    static final class Endpoint {
+        final String path;
+        final AtomicLongArray byClass = new AtomicLongArray(6); // [0] unanswered, [n] nxx
+        final AtomicLong bytesOut = new AtomicLong(), allocated = new AtomicLong();
+        final Histogram micros = new Histogram();
+        Endpoint(String path){ this.path = path; }
+    }
+
+    @Name("trackhub.Request") @Label("HTTP request") @Category("TrackHub") @StackTrace(false)
+    static final class RequestEvent extends Event { String path; int status; long allocated; }
+
+    @Name("trackhub.Tick") @Label("Ticker tick") @Category("TrackHub") @StackTrace(false)
+    static final class TickEvent extends Event { long lagMicros; int buses; }
+
+    final Map<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+    final Histogram tickMicros = new Histogram(), tickLagMicros = new Histogram(), sseWriteMicros = new Histogram();
+    final AtomicLong ticks = new AtomicLong(), sseFrames = new AtomicLong(), sseBytes = new AtomicLong();
+    final com.sun.management.ThreadMXBean threads = allocationBean();
+    final boolean jfr = Main.flag("METRICS_JFR", false);
+
+    static com.sun.management.ThreadMXBean allocationBean(){
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        if (!Main.flag("METRICS_ALLOC", true) || !(b instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean)b;
+        return t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled() ? t : null;
+    }
+
+    Endpoint endpoint(String path){ return endpoints.computeIfAbsent(path, Endpoint::new); }
+
+    long allocatedBytes(){ return threads==null ? 0 : threads.getCurrentThreadAllocatedBytes(); }
+
+    /** Wraps one request; called from the mount filter on the thread that runs the handler. */
+    void request(Endpoint e, HttpExchange ex, Filter.Chain chain) throws IOException {
+        RequestEvent ev = null;
+        if (jfr) { ev = new RequestEvent(); ev.begin(); }
+        long a0 = allocatedBytes(), t0 = System.nanoTime();
+        try { chain.doFilter(ex); }
+        finally {
+            long alloc = allocatedBytes()-a0;
+            int status = ex.getResponseCode();
+            e.micros.record((System.nanoTime()-t0)/1000);
+            e.byClass.incrementAndGet(status>=100 && status<600 ? status/100 : 0);
+            e.allocated.addAndGet(alloc);
+            if (ev!=null) { ev.end(); if (ev.shouldCommit()) { ev.path = e.path; ev.status = status; ev.allocated = alloc; ev.commit(); } }
+        }
+    }
+
+    void bytesOut(HttpExchange ex, long n){
+        Object e = ex.getHttpContext().getAttributes().get(KEY);
+        if (e!=null) ((Endpoint)e).bytesOut.addAndGet(n);
+    }
+
+    void sseWrite(long t0, int bytes){
+        sseWriteMicros.record((System.nanoTime()-t0)/1000);
+        sseFrames.incrementAndGet(); sseBytes.addAndGet(bytes);
+    }
+
+    /** One simulator tick that was due at due and started at t0 (nanoTime); lag is how late it started. */
+    void tick(long due, long t0, int buses){
+        ticks.incrementAndGet();
+        long lag = Math.max(0, t0-due)/1000;
+        tickLagMicros.record(lag);
+        tickMicros.record((System.nanoTime()-t0)/1000);
+        if (jfr) {
+            TickEvent ev = new TickEvent();
+            if (ev.shouldCommit()) { ev.lagMicros = lag; ev.buses = buses; ev.commit(); }
+        }
+    }
+
+    String render(){
+        StringBuilder sb = new StringBuilder(8192);
+        type(sb, "trackhub_http_requests_total", "counter", "Requests by context and status class.");
+        for (Endpoint e : endpoints.values())
+            for (int c=0;c<6;c++) { long v = e.byClass.get(c); if (v>0) sb.append("trackhub_http_requests_total{path=\"").append(e.path).append("\",code=\"").append(c==0?"none":c+"xx").append("\"} ").append(v).append('\n'); }
+        type(sb, "trackhub_http_request_duration_seconds", "histogram", "Handler wall time, filter to return.");
+        for (Endpoint e : endpoints.values()) if (e.micros.total.get()>0) histogram(sb, "trackhub_http_request_duration_seconds", "path=\""+e.path+"\"", e.micros);
+        type(sb, "trackhub_http_allocated_bytes_total", "counter", "Heap allocated by handler threads while serving.");
+        for (Endpoint e : endpoints.values()) if (e.micros.total.get()>0) sample(sb, "trackhub_http_allocated_bytes_total{path=\""+e.path+"\"}", e.allocated.get());
+        type(sb, "trackhub_http_response_bytes_total", "counter", "JSON body bytes sent.");
+        for (Endpoint e : endpoints.values()) if (e.bytesOut.get()>0) sample(sb, "trackhub_http_response_bytes_total{path=\""+e.path+"\"}", e.bytesOut.get());
+        gauge(sb, "trackhub_http_in_flight", "Requests being handled.", Main.httpExec.inFlight.get());
+        counter(sb, "trackhub_http_rejected_total", "Requests shed with 503.", Main.httpExec.rejected.get());
+        gauge(sb, "trackhub_http_queued", "Requests waiting for a bounded executor thread.", Main.httpExec.queued());
+
+        gauge(sb, "trackhub_sse_subscribers", "Open per-bus and per-route streams.", Main.streamHub.activeSubscribers());
+        gauge(sb, "trackhub_fleet_subscribers", "Open fleet streams.", Main.fleetFeed.active.get());
+        counter(sb, "trackhub_sse_frames_total", "Frames written to stream subscribers.", sseFrames.get());
+        counter(sb, "trackhub_sse_bytes_total", "Bytes written to stream subscribers.", sseBytes.get());
+        counter(sb, "trackhub_sse_coalesced_total", "Frames replaced before a slow subscriber took them.", Main.streamHub.coalesced.get());
+        counter(sb, "trackhub_fleet_resyncs_total", "Fleet subscribers sent a fresh snapshot after falling behind.", Main.fleetFeed.resyncs.get());
+        counter(sb, "trackhub_fleet_frames_encoded_total", "Fleet frames built; one delta is shared by every subscriber of a view and format.", Main.fleetFeed.framesEncoded.get());
+        counter(sb, "trackhub_fleet_frames_sent_total", "Fleet delta frames queued to subscribers.", Main.fleetFeed.framesSent.get());
+        type(sb, "trackhub_sse_write_seconds", "histogram", "Time to write and flush one frame.");
+        histogram(sb, "trackhub_sse_write_seconds", null, sseWriteMicros);
+
+        type(sb, "trackhub_tick_duration_seconds", "histogram", "Simulator tick wall time.");
+        histogram(sb, "trackhub_tick_duration_seconds", null, tickMicros);
+        type(sb, "trackhub_tick_lag_seconds", "histogram", "How late each tick started against its schedule.");
+        histogram(sb, "trackhub_tick_lag_seconds", null, tickLagMicros);
+        gauge(sb, "trackhub_buses", "Buses tracked by this node.", Main.busStates.size());
+        gauge(sb, "trackhub_sim_buses", "Buses the simulator moves, virtual ones included.", Main.sim.buses);
+        type(sb, "trackhub_sim_step_seconds", "histogram", "Parallel part of a tick: stepping every shard.");
+        histogram(sb, "trackhub_sim_step_seconds", null, Main.sim.stepMicros);
+        counter(sb, "trackhub_sim_overruns_total", "Ticks that ran past the next one's deadline.", Main.sim.overruns.get());
+        counter(sb, "trackhub_sim_ticks_skipped_total", "Ticks dropped to get back on schedule after an overrun.", Main.sim.skipped.get());
+        counter(sb, "trackhub_sim_tick_errors_total", "Ticks that failed with an exception.", Main.sim.errors.get());
+
+        counter(sb, "trackhub_ingest_accepted_total", "Position reports applied.", Main.ingest.accepted.get());
+        counter(sb, "trackhub_ingest_rejected_total{reason=\"unknown_bus\"}", "Position reports dropped, by reason.", Main.ingest.unknown.get());
+        sample(sb, "trackhub_ingest_rejected_total{reason=\"off_route\"}", Main.ingest.offRoute.get());
+        sample(sb, "trackhub_ingest_rejected_total{reason=\"stale\"}", Main.ingest.stale.get());
+        gauge(sb, "trackhub_state_version", "Version of the published State.", Main.state().version);
+        gauge(sb, "trackhub_journal_writable", "1 while the journal accepts commits, 0 after a write error.", Main.journal.failed==null ? 1 : 0);
+        counter(sb, "trackhub_journal_snapshot_failures_total", "Periodic snapshots that failed.", Main.journal.snapshotFailures.get());
+        gauge(sb, "trackhub_search_terms", "Distinct grams in the line search index.", Main.lineSearch.terms());
+        counter(sb, "trackhub_response_cache_total{result=\"hit\"}", "Cached read endpoint lookups, by result.", Main.responses.hits.get());
+        sample(sb, "trackhub_response_cache_total{result=\"miss\"}", Main.responses.misses.get());
+        counter(sb, "trackhub_response_not_modified_total", "Cached responses answered 304.", Main.responses.notModified.get());
+        counter(sb, "trackhub_static_cache_total{result=\"hit\"}", "Static asset cache lookups, by result.", Main.assets.hits.get());
+        sample(sb, "trackhub_static_cache_total{result=\"miss\"}", Main.assets.misses.get());
+        counter(sb, "trackhub_static_not_modified_total", "Static assets answered 304.", Main.assets.notModified.get());
+        counter(sb, "trackhub_photos_total{result=\"stored\"}", "Photo uploads, by result.", Main.photos.stored.get());
+        sample(sb, "trackhub_photos_total{result=\"deduplicated\"}", Main.photos.deduplicated.get());
+        sample(sb, "trackhub_photos_total{result=\"rejected\"}", Main.photos.rejected.get());
+
+        type(sb, "jvm_gc_collections_total", "counter", "Collections by collector.");
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : gcs) sample(sb, "jvm_gc_collections_total{gc=\""+gc.getName()+"\"}", gc.getCollectionCount());
+        type(sb, "jvm_gc_collection_seconds_total", "counter", "Time spent in collections by collector.");
+        for (GarbageCollectorMXBean gc : gcs) sb.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime()/1000.0).append('\n');
+        Runtime rt = Runtime.getRuntime();
+        gauge(sb, "jvm_heap_used_bytes", "Heap in use.", rt.totalMemory()-rt.freeMemory());
+        return sb.toString();
+    }
+
+    static void type(StringBuilder sb, String name, String type, String help){
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    static void sample(StringBuilder sb, String series, long v){ sb.append(series).append(' ').append(v).append('\n'); }
+    static void counter(StringBuilder sb, String series, String help, long v){
+        int b = series.indexOf('{');
+        type(sb, b<0?series:series.substring(0, b), "counter", help);
+        sample(sb, series, v);
+    }
+    static void gauge(StringBuilder sb, String name, String help, long v){ type(sb, name, "gauge", help); sample(sb, name, v); }
+
+    static void histogram(StringBuilder sb, String name, String labels, Histogram h){
+        String l = labels==null ? "" : labels+",";
+        long n = h.total.get();
+        for (int i=0;i<BOUNDS.length;i++) sb.append(name).append("_bucket{").append(l).append("le=\"").append(LE[i]).append("\"} ").append(Math.min(n, h.countAtMost(BOUNDS[i]))).append('\n');
+        sb.append(name).append("_bucket{").append(l).append("le=\"+Inf\"} ").append(n).append('\n');
+        String sel = labels==null ? "" : "{"+labels+"}";
+        sb.append(name).append("_sum").append(sel).append(' ').append(h.sum.get()/1e6).append('\n');
+        sb.append(name).append("_count").append(sel).append(' ').append(n).append('\n');
+    }
+}
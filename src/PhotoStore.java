@@ -0,0 +1,179 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Passenger photos stored once under the SHA-256 of their bytes. Data URLs are decoded and hashed
+ * chunk by chunk into a temp file, capped at maxBytes and type-checked, and served immutable.
+ */
+final class PhotoStore {
+    static final Map<String,String> TYPES = Map.of("image/jpeg", "jpg", "image/png", "png", "image/webp", "webp", "image/gif", "gif");
+    static final Map<String,String> CONTENT_TYPES = Map.of("jpg", "image/jpeg", "png", "image/png", "webp", "image/webp", "gif", "image/gif");
+    static final Pattern NAME = Pattern.compile("[0-9a-f]{64}\\.(jpg|png|webp|gif)");
+    static final int MAX_MAPPED = 4096;
+    static final byte[] B64 = new byte[128];
+    static { Arrays.fill(B64, (byte)-1); String a = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"; for (int i=0;i<64;i++) B64[a.charAt(i)] = (byte)i; B64['-'] = 62; B64['_'] = 63; }
+
+    /** Decoded photo over the limit; answered with 413. */
+    static final class TooLarge extends IllegalStateException { private static final long serialVersionUID = 1L; TooLarge(long max){ super("photo larger than "+(max>>10)+" KB"); } }
+
+    final File dir; final long maxBytes;
+    final Map<String, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+    final AtomicLong stored = new AtomicLong(), deduplicated = new AtomicLong(), rejected = new AtomicLong();
+
+    PhotoStore(File dir, long maxBytes){ this.dir = dir; this.maxBytes = maxBytes; }
+
+    File file(String name){ return new File(new File(dir, name.substring(0, 2)), name); }
+
+    /** Reads a data URL string value off r straight into the store; returns the photo's name. */
+    String put(JsonReader r) throws IOException {
+        Upload u = new Upload();
+        try { r.nextStringTo(u); return u.finish(); }
+        catch (IllegalStateException e) { rejected.incrementAndGet(); throw e; }
+        finally { u.abort(); }
+    }
+
+    /** A PASSENGER record's photo: a name as is, a legacy data URL moved into the store (null if unusable). */
+    String adopt(String value){
+        if (value==null || !value.startsWith("data:")) return value;
+        Upload u = new Upload();
+        try { u.write(value.getBytes(StandardCharsets.US_ASCII)); return u.finish(); }
+        catch (IOException | IllegalStateException e) { return null; }
+        finally { u.abort(); }
+    }
+
+    /** "data:image/...;base64," header, then base64 decoded in 4-char groups into an 8 KB buffer. */
+    final class Upload extends OutputStream {
+        final StringBuilder header = new StringBuilder();
+        final MessageDigest sha;
+        final byte[] out = new byte[8192], magic = new byte[12];
+        String ext; File tmp; OutputStream file;
+        int n, quad, quadLen, pad; long total;
+
+        Upload(){
+            try { sha = MessageDigest.getInstance("SHA-256"); } catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+        }
+
+        public void write(int b) throws IOException { write(new byte[]{(byte)b}, 0, 1); }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            int i = off, end = off+len;
+            while (ext==null && i<end) {
+                char c = (char)(b[i++] & 0xff);
+                if (c!=',') { if (header.length()>64) throw new IllegalStateException("not a data URL"); header.append(c); continue; }
+                String h = header.toString();
+                int semi = h.indexOf(';');
+                if (!h.startsWith("data:") || semi<0 || !h.substring(semi+1).equals("base64")) throw new IllegalStateException("not a base64 data URL");
+                ext = TYPES.get(h.substring(5, semi).toLowerCase());
+                if (ext==null) throw new IllegalStateException("unsupported image type");
+                dir.mkdirs();
+                tmp = File.createTempFile("upload-", ".tmp", dir);
+                file = new FileOutputStream(tmp);
+            }
+            for (; i<end; i++) {
+                int c = b[i] & 0xff;
+                if (c=='=') { pad++; continue; }
+                if (c=='\r' || c=='\n' || c==' ') continue;
+                int v = c<128 ? B64[c] : -1;
+                if (v<0 || pad>0) throw new IllegalStateException("bad base64");
+                quad = quad<<6 | v;
+                if (++quadLen==4) { emit(quad>>16); emit(quad>>8); emit(quad); quad = 0; quadLen = 0; }
+            }
+        }
+
+        void emit(int b) throws IOException {
+            if (total<magic.length) magic[(int)total] = (byte)b;
+            if (++total>maxBytes) throw new TooLarge(maxBytes);
+            out[n++] = (byte)b;
+            if (n==out.length) drain();
+        }
+
+        void drain() throws IOException { sha.update(out, 0, n); file.write(out, 0, n); n = 0; }
+
+        String finish() throws IOException {
+            if (ext==null) throw new IllegalStateException("not a data URL");
+            if (quadLen==2) emit(quad>>4);
+            else if (quadLen==3) { emit(quad>>10); emit(quad>>2); }
+            else if (quadLen==1) throw new IllegalStateException("bad base64");
+            drain();
+            file.close();
+            if (!looksLike(ext, magic, total)) throw new IllegalStateException("content is not a "+ext+" image");
+            byte[] d = sha.digest();
+            StringBuilder sb = new StringBuilder(70);
+            for (byte x : d) sb.append(Character.forDigit((x>>4)&15, 16)).append(Character.forDigit(x&15, 16));
+            String name = sb.append('.').append(ext).toString();
+            File target = file(name);
+            if (target.isFile()) { deduplicated.incrementAndGet(); return name; }
+            target.getParentFile().mkdirs();
+            try { Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE); }
+            catch (FileAlreadyExistsException e) { deduplicated.incrementAndGet(); return name; }
+            stored.incrementAndGet();
+            return name;
+        }
+
+        /** Drops the temp file unless finish() moved it into place. */
+        void abort(){
+            if (file!=null) try { file.close(); } catch (IOException ignore) {}
+            if (tmp!=null) tmp.delete();
+        }
+    }
+
+    static boolean looksLike(String ext, byte[] m, long n){
+        switch (ext) {
+            case "jpg": return n>=3 && (m[0]&0xff)==0xFF && (m[1]&0xff)==0xD8 && (m[2]&0xff)==0xFF;
+            case "png": return n>=8 && (m[0]&0xff)==0x89 && m[1]=='P' && m[2]=='N' && m[3]=='G';
+            case "gif": return n>=6 && m[0]=='G' && m[1]=='I' && m[2]=='F' && m[3]=='8';
+            case "webp": return n>=12 && m[0]=='R' && m[1]=='I' && m[2]=='F' && m[3]=='F' && m[8]=='W' && m[9]=='E' && m[10]=='B' && m[11]=='P';
+            default: return false;
+        }
+    }
+
+    void serve(HttpExchange ex, String name, boolean head) throws IOException {
+        if (!NAME.matcher(name).matches()) { Main.sendJson(ex,404,"{}"); return; }
+        MappedByteBuffer data = mapped.get(name);
+        if (data==null) {
+            File f = file(name);
+            if (!f.isFile()) { Main.sendJson(ex,404,"{}"); return; }
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            if (mapped.size()>=MAX_MAPPED) mapped.clear(); // mappings are off-heap; dropping them only costs a re-map
+            mapped.put(name, data);
+        }
+        Headers h = ex.getResponseHeaders();
+        String etag = "\""+name.substring(0, 24)+"\"";
+        h.set("Content-Type", CONTENT_TYPES.get(name.substring(65)));
+        h.set("Cache-Control", "public, max-age=31536000, immutable");
+        h.set("ETag", etag);
+        String inm = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (inm!=null && AssetCache.matches(inm, etag)) { ex.sendResponseHeaders(304, -1); ex.close(); return; }
+        int len = data.capacity();
+        if (head) { h.set("Content-Length", String.valueOf(len)); ex.sendResponseHeaders(200, -1); ex.close(); return; }
+        ex.sendResponseHeaders(200, len==0 ? -1 : len);
+        try (OutputStream os = ex.getResponseBody()) {
+            WritableByteChannel out = Channels.newChannel(os);
+            ByteBuffer b = data.duplicate();
+            while (b.hasRemaining()) out.write(b);
+        }
+    }
+}
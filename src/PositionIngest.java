@@ -0,0 +1,49 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Real positions as NDJSON {"busId","lat","lng","ts"} or 20-byte records [busId][latE7][lngE7]
+ * [long ts]. Reports are map-matched ahead of the last point, stale ones lose a CAS, and reported
+ * buses stop being simulated.
+ */
+final class PositionIngest {
+    static final double MAX_SNAP_M = 150, WINDOW_SLACK_M = 25;
+    static final int WINDOW = 32;
+    static final int OK = 0, UNKNOWN = 1, OFF_ROUTE = 2, STALE = 3;
+    final AtomicLong accepted = new AtomicLong(), unknown = new AtomicLong(), offRoute = new AtomicLong(), stale = new AtomicLong(), batches = new AtomicLong();
+    final Histogram latencyMicros = new Histogram();
+    final long startedMs = System.currentTimeMillis();
+
+    int report(Main.State st, int busId, int latE7, int lngE7, long ts){
+        Main.Bus b = st.buses.get(busId);
+        if (b==null) { unknown.incrementAndGet(); return UNKNOWN; }
+        Main.Line l = st.lines.get(b.lineId);
+        Route r = Main.routeOf(l);
+        Main.BusState bs = Main.busStates.computeIfAbsent(busId, k -> { Main.BusState n = new Main.BusState(); n.busId=k; n.lineId=b.lineId; n.lastIdx=-1; return n; });
+        long prev;
+        do { prev = bs.lastTs.get(); if (ts<=prev) { stale.incrementAndGet(); return STALE; } } while (!bs.lastTs.compareAndSet(prev, ts));
+        double lat = latE7/Route.E7, lng = lngE7/Route.E7;
+        int idx = match(r, lat, lng, bs.live ? bs.idx : -1);
+        if (Main.distanceMeters(lat, lng, r.lat(idx), r.lng(idx))>MAX_SNAP_M) { offRoute.incrementAndGet(); return OFF_ROUTE; }
+        bs.live = true;
+        if (bs.lastIdx>=0 && idx!=bs.lastIdx && prev>0)
+            Main.eta.observe(bs.lineId, r, bs.lastIdx, idx, (ts-prev)/1000.0, Instant.ofEpochMilli(ts).atZone(ZoneId.systemDefault()).toLocalTime().toSecondOfDay());
+        bs.lastIdx = idx; bs.lastMs = ts; bs.along = r.cum[idx]; bs.idx = idx;
+        accepted.incrementAndGet();
+        return OK;
+    }
+
+    static int match(Route r, double lat, double lng, int hint){
+        int best = r.nearest(lat, lng);
+        if (hint<0) return best;
+        double global = Main.distanceMeters(lat, lng, r.lat(best), r.lng(best));
+        int n = r.size(), ahead = -1; double ad = Double.MAX_VALUE;
+        for (int k=0;k<Math.min(WINDOW, n);k++) {
+            int i = (hint+k)%n;
+            double d = Main.distanceMeters(lat, lng, r.lat(i), r.lng(i));
+            if (d<ad) { ad = d; ahead = i; }
+        }
+        return ad<=global+WINDOW_SLACK_M ? ahead : best;
+    }
+}
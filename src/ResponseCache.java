@@ -0,0 +1,128 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded bodies of the read endpoints, keyed by path and query and filed under the version of the
+ * domains they read, which State.Tx bumps on publish. Served with ETag/Last-Modified; LRU bounded.
+ */
+final class ResponseCache {
+    static final int LINES = 1, ROUTES = 2, SCHEDULES = 4, ADS = 8, DOMAINS = 4;
+    static final int GZIP_MIN = 1024;
+
+    static final String JSON = "application/json; charset=utf-8";
+
+    static final class Entry {
+        final int deps; final long version, modified, expires;
+        final byte[] body, gzip; final String etag, type;
+        Entry(int deps, long version, long modified, long expires, byte[] body, byte[] gzip, String etag, String type){
+            this.deps=deps; this.version=version; this.modified=modified; this.expires=expires; this.body=body; this.gzip=gzip; this.etag=etag; this.type=type;
+        }
+        long bytes(){ return body.length+(gzip==null?0:gzip.length); }
+    }
+
+    final long maxBytes;
+    long bytes;
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    final AtomicLongArray versions = new AtomicLongArray(DOMAINS), modified = new AtomicLongArray(DOMAINS);
+    final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), notModified = new AtomicLong();
+
+    ResponseCache(long maxBytes){
+        this.maxBytes = maxBytes;
+        long now = System.currentTimeMillis();
+        for (int d=0;d<DOMAINS;d++) modified.set(d, now);
+    }
+
+    long version(int deps){ long v = 0; for (int d=0;d<DOMAINS;d++) if ((deps>>d&1)!=0) v += versions.get(d); return v; }
+
+    long modified(int deps){ long m = 0; for (int d=0;d<DOMAINS;d++) if ((deps>>d&1)!=0) m = Math.max(m, modified.get(d)); return m; }
+
+    /** Called once a State that changed the given domains is visible; drops the entries built on them. */
+    void bump(int changed){
+        if (changed==0) return;
+        long now = System.currentTimeMillis();
+        for (int d=0;d<DOMAINS;d++) if ((changed>>d&1)!=0) { versions.incrementAndGet(d); modified.set(d, now); }
+        synchronized (this) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                Entry e = it.next();
+                if ((e.deps & changed)!=0) { bytes -= e.bytes(); it.remove(); }
+            }
+        }
+    }
+
+    static String key(HttpExchange ex){
+        String q = ex.getRequestURI().getRawQuery();
+        return q==null ? ex.getRequestURI().getRawPath() : ex.getRequestURI().getRawPath()+"?"+q;
+    }
+
+    /** Answers from the cache when the entry for this URI is at the given version and not expired; false on a miss. */
+    boolean serve(HttpExchange ex, long version) throws IOException {
+        Entry e;
+        synchronized (this) { e = entries.get(key(ex)); }
+        if (e==null || e.version!=version || System.currentTimeMillis()>=e.expires) { misses.incrementAndGet(); return false; }
+        hits.incrementAndGet();
+        send(ex, e);
+        return true;
+    }
+
+    /** Files a freshly built response (valid until expires, epoch ms) and sends it. */
+    void store(HttpExchange ex, int deps, long version, JsonWriter w, long expires) throws IOException {
+        store(ex, deps, version, w.toByteArray(), JSON, expires);
+    }
+
+    void store(HttpExchange ex, int deps, long version, byte[] body, String type, long expires) throws IOException {
+        byte[] gz = null;
+        if (body.length>=GZIP_MIN) {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream(body.length/4+64);
+            try (GZIPOutputStream z = new GZIPOutputStream(bo)) { z.write(body); }
+            gz = bo.toByteArray();
+        }
+        Entry e = new Entry(deps, version, modified(deps), expires, body, gz, AssetCache.etag(body), type);
+        if (e.bytes()<=maxBytes/8) {
+            synchronized (this) {
+                Entry old = entries.put(key(ex), e);
+                bytes += e.bytes() - (old==null?0:old.bytes());
+                for (Iterator<Entry> it = entries.values().iterator(); bytes>maxBytes && it.hasNext();) { bytes -= it.next().bytes(); it.remove(); }
+            }
+        }
+        send(ex, e);
+    }
+
+    void send(HttpExchange ex, Entry e) throws IOException {
+        Headers req = ex.getRequestHeaders(), h = ex.getResponseHeaders();
+        h.set("Content-Type", e.type);
+        h.set("Cache-Control", "no-cache");
+        h.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(e.modified).atZone(ZoneOffset.UTC)));
+        String enc = e.gzip!=null && AssetCache.accepts(req.getFirst("Accept-Encoding"), "gzip") ? "gzip" : null;
+        if (e.gzip!=null) h.set("Vary", "Accept-Encoding");
+        String etag = enc==null ? e.etag : e.etag.substring(0, e.etag.length()-1)+"-gzip\"";
+        h.set("ETag", etag);
+        String inm = req.getFirst("If-None-Match"), ims = req.getFirst("If-Modified-Since");
+        if (inm!=null ? AssetCache.matches(inm, etag) : ims!=null && notModifiedSince(ims, e.modified)) {
+            notModified.incrementAndGet(); ex.sendResponseHeaders(304, -1); ex.close(); return;
+        }
+        byte[] body = enc==null ? e.body : e.gzip;
+        if (enc!=null) h.set("Content-Encoding", enc);
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+        Main.metrics.bytesOut(ex, body.length);
+    }
+
+    static boolean notModifiedSince(String header, long modified){
+        try { return modified/1000 <= ZonedDateTime.parse(header, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond(); }
+        catch (DateTimeParseException e) { return false; }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * Immutable route geometry: fixed-point coordinates (1e-7 degrees, about 1 cm), cumulative metres
+ * and the spatial grid. Built once when a route is stored and swapped into Line.route as a whole.
+ */
+final class Route {
+    static final double E7 = 1e7, M_PER_E7 = 111_319.49/E7, MPP_ZOOM0 = 156_543.03;
+    static final int MAX_ZOOM = 22;
+    static final Route EMPTY = new Route(new int[0], new int[0]);
+    final int[] latE7, lngE7;
+    final double[] cum; // cum[i]: metres from point 0 to i; cum[n] closes the loop back to point 0
+    final float[] keep; // keep[i]: largest tolerance in metres at which point i survives simplification
+    final RouteGrid grid;
+
+    Route(int[] latE7, int[] lngE7){
+        this.latE7 = latE7; this.lngE7 = lngE7;
+        int n = latE7.length;
+        cum = new double[n+1];
+        for (int i=1;i<=n;i++) cum[i] = cum[i-1] + Main.distanceMeters(lat(i-1), lng(i-1), lat(i % n), lng(i % n));
+        keep = significance(latE7, lngE7);
+        grid = new RouteGrid(latE7, lngE7);
+    }
+
+    /**
+     * Douglas-Peucker run once down to zero tolerance. Each split point records its distance from
+     * the chord, capped by its parent's, so the points kept at tolerance t are exactly those with
+     * keep[i] &gt; t and any t is one scan. The ends are always kept. Distances are planar metres
+     * around point 0, close enough at city scale.
+     */
+    static float[] significance(int[] lat, int[] lng){
+        int n = lat.length;
+        float[] keep = new float[n];
+        if (n==0) return keep;
+        keep[0] = keep[n-1] = Float.MAX_VALUE;
+        double kx = Math.cos(Math.toRadians(lat[0]/E7))*M_PER_E7, ky = M_PER_E7;
+        int[] span = new int[64]; float[] cap = new float[32];
+        int sp = 0;
+        span[0] = 0; span[1] = n-1; cap[0] = Float.MAX_VALUE; sp = 1;
+        while (sp>0) {
+            sp--;
+            int a = span[2*sp], b = span[2*sp+1];
+            float c = cap[sp];
+            if (b-a<2) continue;
+            double ax = lng[a]*kx, ay = lat[a]*ky, dx = lng[b]*kx-ax, dy = lat[b]*ky-ay, len2 = dx*dx+dy*dy;
+            double far = -1; int at = a+1;
+            for (int i=a+1;i<b;i++) {
+                double px = lng[i]*kx-ax, py = lat[i]*ky-ay;
+                double t = len2>0 ? Math.max(0, Math.min(1, (px*dx+py*dy)/len2)) : 0;
+                double ex = px-t*dx, ey = py-t*dy, d = ex*ex+ey*ey;
+                if (d>far) { far = d; at = i; }
+            }
+            float k = (float)Math.min(Math.sqrt(far), c);
+            keep[at] = k;
+            if (2*sp+4>span.length) { span = Arrays.copyOf(span, span.length*2); cap = Arrays.copyOf(cap, cap.length*2); }
+            span[2*sp] = a; span[2*sp+1] = at; cap[sp++] = k;
+            span[2*sp] = at; span[2*sp+1] = b; cap[sp++] = k;
+        }
+        return keep;
+    }
+
+    /** Indexes from..to (inclusive) that survive at the given tolerance, both ends included; none when from &gt; to. */
+    int[] simplified(int from, int to, double tolerance){
+        if (from>to) return new int[0];
+        int[] out = new int[to-from+1];
+        int n = 0;
+        for (int i=from;i<=to;i++) if (i==from || i==to || keep[i]>tolerance) out[n++] = i;
+        return n==out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** One screen pixel in metres at a web-map zoom level, at this route's latitude. */
+    double tolerance(int zoom){
+        double lat = isEmpty() ? 0 : lat(0);
+        return MPP_ZOOM0*Math.cos(Math.toRadians(lat))/(1L<<Math.max(0, Math.min(MAX_ZOOM, zoom)));
+    }
+
+    static Route of(double[] lat, double[] lng, int n){
+        int[] a = new int[n], b = new int[n];
+        for (int i=0;i<n;i++) { a[i] = fixed(lat[i]); b[i] = fixed(lng[i]); }
+        return new Route(a, b);
+    }
+
+    static int fixed(double deg){ return (int)Math.round(deg*E7); }
+
+    int size(){ return latE7.length; }
+    boolean isEmpty(){ return latE7.length==0; }
+    double lat(int i){ return latE7[i]/E7; }
+    double lng(int i){ return lngE7[i]/E7; }
+    int nearest(double lat, double lng){ return grid.nearest(lat, lng); }
+
+    /** Index of the point at or before the given metres along the route (wrapping). */
+    int indexAt(double metres){
+        int n = size();
+        if (n==0) return 0;
+        double m = cum[n]>0 ? metres % cum[n] : 0;
+        if (m<0) m += cum[n];
+        int lo=0, hi=n-1;
+        while (lo<hi) { int mid=(lo+hi+1)>>>1; if (cum[mid]<=m) lo=mid; else hi=mid-1; }
+        return lo;
+    }
+
+    double distanceAlong(int fromIdx, int toIdx){
+        int n = size();
+        if (n==0) return 0;
+        int from = Math.floorMod(fromIdx, n), to = Math.floorMod(toIdx, n);
+        return from<=to ? cum[to]-cum[from] : cum[n]-cum[from]+cum[to];
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform grid over a point set (a route, or the planner's stops), stored CSR-style:
+ * cellStart[c]..cellStart[c+1] indexes into items. nearest() compares squared degree differences and prefers the lowest index on ties.
+ */
+class RouteGrid {
+    final int[] latE7, lngE7;
+    final double minLat, minLng, maxLat, maxLng, cell;
+    final int nx, ny;
+    final int[] cellStart, items;
+
+    RouteGrid(int[] latE7, int[] lngE7){
+        this.latE7 = latE7; this.lngE7 = lngE7;
+        int n = latE7.length;
+        double a = Double.MAX_VALUE, b = Double.MAX_VALUE, c = -Double.MAX_VALUE, d = -Double.MAX_VALUE;
+        for (int i=0;i<n;i++) {
+            double la = lat(i), ln = lng(i);
+            a=Math.min(a,la); b=Math.min(b,ln); c=Math.max(c,la); d=Math.max(d,ln);
+        }
+        minLat=a; minLng=b; maxLat=c; maxLng=d;
+        double w = maxLng-minLng, h = maxLat-minLat; int target = Math.max(1, n/2);
+        cell = Math.max(1e-6, w*h>0 ? Math.sqrt(w*h/target) : Math.max(w,h)/target);
+        nx = (int)(w/cell)+1; ny = (int)(h/cell)+1;
+        cellStart = new int[nx*ny+1]; items = new int[n];
+        int[] cellOf = new int[n];
+        for (int i=0;i<n;i++) { cellOf[i] = cellIndex(lat(i), lng(i)); cellStart[cellOf[i]+1]++; }
+        for (int k=0;k<nx*ny;k++) cellStart[k+1] += cellStart[k];
+        int[] fill = Arrays.copyOf(cellStart, nx*ny);
+        for (int i=0;i<n;i++) items[fill[cellOf[i]]++] = i;
+    }
+
+    double lat(int i){ return latE7[i]/Route.E7; }
+    double lng(int i){ return lngE7[i]/Route.E7; }
+
+    int cellIndex(double la, double ln){
+        int x = Math.min(nx-1, Math.max(0, (int)((ln-minLng)/cell)));
+        int y = Math.min(ny-1, Math.max(0, (int)((la-minLat)/cell)));
+        return y*nx+x;
+    }
+
+    int nearest(double qLat, double qLng){
+        if (latE7.length==0) return 0;
+        double qx = (qLng-minLng)/cell, qy = (qLat-minLat)/cell;
+        long cx = (long)Math.floor(qx), cy = (long)Math.floor(qy);
+        long r0 = Math.max(cx<0?-cx:Math.max(0,cx-(nx-1)), cy<0?-cy:Math.max(0,cy-(ny-1)));
+        double[] best = {-1, Double.MAX_VALUE}; // {index, squared distance}
+        for (long r=r0; r<=r0+Math.max(nx,ny); r++) {
+            for (long y=Math.max(0,cy-r); y<=Math.min(ny-1,cy+r); y++) {
+                if (y==cy-r || y==cy+r) { for (long x=Math.max(0,cx-r); x<=Math.min(nx-1,cx+r); x++) scanCell((int)(y*nx+x), qLat, qLng, best); }
+                else {
+                    if (cx-r>=0 && cx-r<nx) scanCell((int)(y*nx+cx-r), qLat, qLng, best);
+                    if (r>0 && cx+r>=0 && cx+r<nx) scanCell((int)(y*nx+cx+r), qLat, qLng, best);
+                }
+            }
+            if (best[0]>=0) {
+                double lb = Math.min(Math.min(qx-(cx-r), (cx+r+1)-qx), Math.min(qy-(cy-r), (cy+r+1)-qy))*cell;
+                if (lb*lb > best[1]) break;
+            }
+        }
+        return (int)best[0];
+    }
+
+    void scanCell(int c, double qLat, double qLng, double[] best){
+        for (int k=cellStart[c]; k<cellStart[c+1]; k++) {
+            int i = items[k];
+            double la = lat(i)-qLat, ln = lng(i)-qLng, d = la*la+ln*ln;
+            if (d<best[1] || (d==best[1] && i<best[0])) {best[0]=i; best[1]=d;}
+        }
+    }
+
+    void within(double qLat, double qLng, double radiusM, IntConsumer out){
+        double dLat = radiusM/111320.0, dLng = radiusM/(111320.0*Math.max(0.01, Math.cos(Math.toRadians(qLat))));
+        if (qLat+dLat<minLat || qLat-dLat>maxLat || qLng+dLng<minLng || qLng-dLng>maxLng) return;
+        int x0 = Math.max(0,(int)Math.floor((qLng-dLng-minLng)/cell)), x1 = Math.min(nx-1,(int)((qLng+dLng-minLng)/cell));
+        int y0 = Math.max(0,(int)Math.floor((qLat-dLat-minLat)/cell)), y1 = Math.min(ny-1,(int)((qLat+dLat-minLat)/cell));
+        for (int y=y0;y<=y1;y++) for (int x=x0;x<=x1;x++) {
+            int c = y*nx+x;
+            for (int k=cellStart[c]; k<cellStart[c+1]; k++) {
+                int i = items[k];
+                if (Main.distanceMeters(lat(i), lng(i), qLat, qLng) <= radiusM) out.accept(i);
+            }
+        }
+    }
+}
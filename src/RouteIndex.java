@@ -0,0 +1,54 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which lines pass near a point, across all lines: a sparse map from CELL_DEG cells to the lines
+ * with a route point in them narrows a query to a few candidates, which are then checked exactly
+ * against their own RouteGrid. put() moves a line between cells as its route changes.
+ */
+class RouteIndex {
+    static final double CELL_DEG = 0.01;
+    final Map<Integer, Route> routes = new ConcurrentHashMap<>();
+    final Map<Long, Set<Integer>> cells = new ConcurrentHashMap<>();
+    final Map<Integer, Set<Long>> cellsOf = new HashMap<>();   // guarded by this
+
+    static long cell(int x, int y){ return (long)y<<32 | (x & 0xffffffffL); }
+    static int cellOf(double deg){ return (int)Math.floor(deg/CELL_DEG); }
+
+    synchronized void put(int lineId, Route route){
+        Set<Long> now = new HashSet<>();
+        for (int i=0;i<route.size();i++) now.add(cell(cellOf(route.lng(i)), cellOf(route.lat(i))));
+        Set<Long> before = cellsOf.getOrDefault(lineId, Set.of());
+        for (long c : now) if (!before.contains(c)) cells.computeIfAbsent(c, k -> ConcurrentHashMap.newKeySet()).add(lineId);
+        if (route.isEmpty()) routes.remove(lineId); else routes.put(lineId, route);
+        for (long c : before) if (!now.contains(c)) cells.computeIfPresent(c, (k, ids) -> { ids.remove(lineId); return ids.isEmpty() ? null : ids; });
+        if (now.isEmpty()) cellsOf.remove(lineId); else cellsOf.put(lineId, now);
+    }
+
+    Set<Integer> linesWithin(double lat, double lng, double radiusM){
+        double dLat = radiusM/111320.0, dLng = radiusM/(111320.0*Math.max(0.01, Math.cos(Math.toRadians(lat))));
+        int x0 = cellOf(lng-dLng), x1 = cellOf(lng+dLng), y0 = cellOf(lat-dLat), y1 = cellOf(lat+dLat);
+        Set<Integer> candidates = new HashSet<>();
+        if ((long)(x1-x0+1)*(y1-y0+1) > cells.size()) {
+            for (Map.Entry<Long, Set<Integer>> e : cells.entrySet()) {
+                int x = (int)(long)e.getKey(), y = (int)(e.getKey()>>32);
+                if (x>=x0 && x<=x1 && y>=y0 && y<=y1) candidates.addAll(e.getValue());
+            }
+        } else {
+            for (int y=y0;y<=y1;y++) for (int x=x0;x<=x1;x++) { Set<Integer> ids = cells.get(cell(x, y)); if (ids!=null) candidates.addAll(ids); }
+        }
+        Set<Integer> ids = new HashSet<>();
+        boolean[] hit = new boolean[1];
+        for (int id : candidates) {
+            Route r = routes.get(id);
+            if (r==null) continue;
+            hit[0] = false;
+            r.grid.within(lat, lng, radiusM, i -> hit[0] = true);
+            if (hit[0]) ids.add(id);
+        }
+        return ids;
+    }
+}
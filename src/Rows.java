@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** CSV records over one chunk, read in place: field i spans b[fs[i]..fe[i]), quotes already stripped. */
+final class Rows {
+    final byte[] b; final int lim;
+    int pos, n;
+    int[] fs = new int[16], fe = new int[16];
+    boolean[] quoted = new boolean[16];
+
+    Rows(byte[] b, int pos, int lim){ this.b = b; this.pos = pos; this.lim = lim; }
+
+    boolean next(){
+        while (pos<lim && (b[pos]=='\n' || b[pos]=='\r')) pos++;
+        if (pos>=lim) return false;
+        n = 0;
+        while (true) {
+            if (n==fs.length) { fs = Arrays.copyOf(fs, n*2); fe = Arrays.copyOf(fe, n*2); quoted = Arrays.copyOf(quoted, n*2); }
+            if (pos<lim && b[pos]=='"') {
+                int s = ++pos;
+                while (pos<lim && !(b[pos]=='"' && (pos+1>=lim || b[pos+1]!='"'))) pos += b[pos]=='"'?2:1;
+                fs[n] = s; fe[n] = pos; quoted[n] = true;
+                while (pos<lim && b[pos]!=',' && b[pos]!='\n') pos++;
+            } else {
+                int s = pos;
+                while (pos<lim && b[pos]!=',' && b[pos]!='\n' && b[pos]!='\r') pos++;
+                fs[n] = s; fe[n] = pos; quoted[n] = false;
+            }
+            n++;
+            if (pos<lim && b[pos]==',') { pos++; continue; }
+            while (pos<lim && b[pos]!='\n') pos++;
+            return true;
+        }
+    }
+
+    String str(int i){
+        if (i<0 || i>=n) return "";
+        String s = new String(b, fs[i], fe[i]-fs[i], StandardCharsets.UTF_8);
+        return (quoted[i] ? s.replace("\"\"", "\"") : s).trim();
+    }
+
+    byte[] bytes(int i){ return i<0||i>=n ? new byte[0] : Arrays.copyOfRange(b, fs[i], fe[i]); }
+
+    boolean eq(int i, byte[] k){
+        int len = i<0||i>=n ? 0 : fe[i]-fs[i];
+        return len==k.length && Arrays.equals(b, fs[i], fe[i], k, 0, len);
+    }
+
+    int integer(int i){
+        if (i<0 || i>=n) return 0;
+        int v = 0; boolean neg = false;
+        for (int p=fs[i];p<fe[i];p++) { byte c = b[p]; if (c=='-') neg = true; else if (c>='0' && c<='9') v = v*10+(c-'0'); else if (c=='.') break; }
+        return neg?-v:v;
+    }
+
+    /** Degrees as E7 fixed point without going through a String; exponents fall back to parseDouble. */
+    int e7(int i){
+        if (i<0 || i>=n) return 0;
+        long v = 0; int frac = -1; boolean neg = false;
+        for (int p=fs[i];p<fe[i];p++) {
+            byte c = b[p];
+            if (c>='0' && c<='9') { if (frac<8) { v = v*10+(c-'0'); if (frac>=0) frac++; } }
+            else if (c=='.') frac = 0;
+            else if (c=='-') neg = true;
+            else if (c=='e' || c=='E') return Route.fixed(Double.parseDouble(str(i)));
+        }
+        if (frac<0) frac = 0;
+        for (int k=frac;k<8;k++) v *= 10;
+        v = (v+5)/10;
+        return (int)(neg?-v:v);
+    }
+
+    /** H:MM:SS as seconds after midnight (may pass 24:00 on overnight trips); -1 when empty. */
+    int time(int i){
+        if (i<0 || i>=n) return -1;
+        int v = 0, acc = 0, parts = 0;
+        for (int p=fs[i];p<fe[i];p++) { byte c = b[p]; if (c>='0' && c<='9') { acc = acc*10+(c-'0'); } else if (c==':') { v = v*60+acc; acc = 0; parts++; } }
+        if (parts==0) return -1;
+        v = v*60+acc;
+        return parts==1 ? v*60 : v;
+    }
+}
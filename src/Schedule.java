@@ -0,0 +1,90 @@
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Departures of one line as sorted seconds after midnight, each tagged with the weekdays it runs
+ * on (bit 0 = Monday). Built once when stored: one merged array plus one per weekday, so a lookup
+ * is a binary search instead of parsing the times again.
+ */
+final class Schedule {
+    static final int DAILY = 0x7F;
+    static final String[] DAY_NAMES = {"mon","tue","wed","thu","fri","sat","sun"};
+    static final Schedule DEFAULT = of(List.of("06:00","07:00","08:00","12:00","17:30"));
+    final int[] secs; final byte[] days;   // as stored: sorted, unique seconds with their day masks
+    final int[] all;
+    final int[][] byDay;
+
+    Schedule(int[] secs, byte[] days){
+        long[] packed = new long[secs.length];
+        for (int i=0;i<secs.length;i++) packed[i] = (long)Math.floorMod(secs[i], 86400)<<8 | (days[i]&DAILY);
+        Arrays.sort(packed);
+        int n = 0;
+        for (long v : packed) { if (n>0 && packed[n-1]>>8==v>>8) packed[n-1] |= v&DAILY; else packed[n++] = v; }
+        this.secs = new int[n]; this.days = new byte[n];
+        boolean daily = true;
+        for (int i=0;i<n;i++) { this.secs[i] = (int)(packed[i]>>8); this.days[i] = (byte)packed[i]; daily &= this.days[i]==DAILY; }
+        all = this.secs;
+        byDay = new int[7][];
+        for (int d=0;d<7;d++) {
+            if (daily) { byDay[d] = all; continue; }
+            int c = 0; for (int i=0;i<n;i++) if ((this.days[i]>>d&1)!=0) c++;
+            int[] a = new int[c]; c = 0;
+            for (int i=0;i<n;i++) if ((this.days[i]>>d&1)!=0) a[c++] = this.secs[i];
+            byDay[d] = a;
+        }
+    }
+
+    static Schedule of(List<String> times){
+        int[] s = new int[times.size()]; byte[] d = new byte[times.size()]; int n = 0;
+        for (String t : times) { int v = Main.secondOfDay(t); if (v>=0) { s[n] = v; d[n++] = DAILY; } }
+        return new Schedule(Arrays.copyOf(s, n), Arrays.copyOf(d, n));
+    }
+
+    /** Next departure strictly after sec on day d, as seconds from that day's midnight (may roll into later days); -1 if none. */
+    int next(int d, int sec){
+        for (int k=0;k<=7;k++) {
+            int[] a = byDay[(d+k)%7];
+            int i = k==0 ? after(a, sec) : 0;
+            if (i<a.length) return a[i]+k*86400;
+        }
+        return -1;
+    }
+
+    /** Fills out with up to out.length departures after sec on day d (same units as next); returns the count. */
+    int next(int d, int sec, int[] out){
+        int n = 0;
+        for (int k=0;k<=7 && n<out.length;k++) {
+            int[] a = byDay[(d+k)%7];
+            for (int i = k==0 ? after(a, sec) : 0; i<a.length && n<out.length; i++) out[n++] = a[i]+k*86400;
+        }
+        return n;
+    }
+
+    static int after(int[] a, int sec){
+        int lo=0, hi=a.length;
+        while (lo<hi) { int mid=(lo+hi)>>>1; if (a[mid]<=sec) lo=mid+1; else hi=mid; }
+        return lo;
+    }
+
+    static int today(){ return LocalDate.now().getDayOfWeek().getValue()-1; }
+
+    /** "mon".."sun" (or 0..6) as a day index; -1 if unknown. */
+    static int day(String s){
+        for (int d=0;d<7;d++) if (DAY_NAMES[d].equalsIgnoreCase(s) || String.valueOf(d).equals(s)) return d;
+        return -1;
+    }
+
+    /** "daily", "weekdays", "weekend" or a comma list of day names, as a mask; 0 if nothing valid. */
+    static int days(String s){
+        int m = 0;
+        for (String p : s.toLowerCase().split(",")) {
+            p = p.trim();
+            if (p.equals("daily")) m |= DAILY;
+            else if (p.equals("weekdays")) m |= 0x1F;
+            else if (p.equals("weekend")) m |= 0x60;
+            else { int d = day(p); if (d>=0) m |= 1<<d; }
+        }
+        return m;
+    }
+}
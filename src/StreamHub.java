@@ -0,0 +1,91 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Fan-out of SSE frames driven by the ticker. Each topic encodes its frame once per tick and the
+ * same bytes go to every subscriber; writes run on a small shared pool. A subscriber keeps at most
+ * one pending frame, so slow readers get the latest frame instead of a growing backlog, and a
+ * subscriber stuck in a write for longer than STALL_MS is disconnected.
+ */
+class StreamHub {
+    static final long STALL_MS = 30000;
+    final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicLong coalesced = new AtomicLong();
+    final ExecutorService writers = "virtual".equals(Main.httpExec.mode) ? HttpExec.virtualThreads()
+            : Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> { Thread t = new Thread(r, "sse-writer"); t.setDaemon(true); return t; });
+
+    static class Topic {
+        final Supplier<byte[]> encoder; final Set<Subscriber> subs = ConcurrentHashMap.newKeySet(); volatile byte[] last;
+        Topic(Supplier<byte[]> encoder){this.encoder=encoder;}
+    }
+
+    class Subscriber {
+        final String key; final HttpExchange ex; final OutputStream os;
+        final AtomicReference<byte[]> pending = new AtomicReference<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile long busySince;
+        Subscriber(String key, HttpExchange ex){this.key=key; this.ex=ex; this.os=ex.getResponseBody();}
+
+        void offer(byte[] frame){
+            if (pending.getAndSet(frame)!=null) coalesced.incrementAndGet();
+            schedule();
+        }
+        void schedule(){
+            if (!closed.get() && scheduled.compareAndSet(false,true)) { busySince = System.currentTimeMillis(); writers.execute(this::drain); }
+        }
+        void drain(){
+            try {
+                byte[] f;
+                while (!closed.get() && (f = pending.getAndSet(null)) != null) { long t0 = System.nanoTime(); os.write(f); os.flush(); Main.metrics.sseWrite(t0, f.length); }
+            } catch (IOException | RuntimeException e) { unsubscribe(this); }
+            scheduled.set(false);
+            if (pending.get()!=null) schedule();
+        }
+        boolean stalled(long now){ return scheduled.get() && now-busySince > STALL_MS; }
+    }
+
+    Subscriber subscribe(String key, Supplier<byte[]> encoder, HttpExchange ex){
+        Subscriber s = new Subscriber(key, ex);
+        Topic t = topics.compute(key, (k,cur) -> { Topic n = cur==null?new Topic(encoder):cur; n.subs.add(s); return n; });
+        active.incrementAndGet();
+        byte[] first = t.last;
+        if (first==null) { synchronized (t) { if (t.last==null) t.last = t.encoder.get(); first = t.last; } }
+        s.offer(first);
+        return s;
+    }
+
+    void unsubscribe(Subscriber s){
+        if (!s.closed.compareAndSet(false,true)) return;
+        active.decrementAndGet();
+        topics.computeIfPresent(s.key, (k,t) -> { t.subs.remove(s); return t.subs.isEmpty()?null:t; });
+        s.ex.close();
+    }
+
+    void tick(){
+        long now = System.currentTimeMillis();
+        for (Topic t : topics.values()) {
+            byte[] frame;
+            try { frame = t.encoder.get(); } catch (RuntimeException e) { continue; }
+            synchronized (t) { t.last = frame; }
+            for (Subscriber s : t.subs) {
+                try { if (s.stalled(now)) unsubscribe(s); else s.offer(frame); }
+                catch (RuntimeException e) { unsubscribe(s); }
+            }
+        }
+    }
+
+    int activeSubscribers(){ return active.get(); }
+}
@@ -0,0 +1,272 @@
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * RAPTOR over State. Each line is one pattern of stops every STOP_SPACING_M; patterns and their
+ * walking transfers are cached per line and only invalidated ones are rebuilt. Trip times (the
+ * weekday's departures, ETA-model offsets for the hour) are a separate Slice, so a new hour only
+ * retimes the patterns.
+ */
+class TransitPlanner {
+    static final double STOP_SPACING_M = 400, WALK_MPS = 1.3, MAX_TRANSFER_M = 400, MAX_ACCESS_M = 1000;
+    static final int MAX_ROUNDS = 4;
+    static final int INF = Integer.MAX_VALUE;
+
+    static class Pattern {
+        final int lineId; final Route route; final int[] routeIdx;
+        Pattern(int lineId, Route route, int[] routeIdx){this.lineId=lineId; this.route=route; this.routeIdx=routeIdx;}
+    }
+
+    /** A pattern's trips on one weekday and hour: departures from point 0, seconds from there to each stop. */
+    static class Trips {
+        final int[] offset; final int[] departures;
+        Trips(int[] offset, int[] departures){this.offset=offset; this.departures=departures;}
+        /** Earliest trip that is at stop pos no earlier than t, or -1. */
+        int earliestTrip(int pos, int t){
+            int lo=0, hi=departures.length;
+            while (lo<hi) { int mid=(lo+hi)>>>1; if (departures[mid]+offset[pos] < t) lo=mid+1; else hi=mid; }
+            return lo<departures.length ? lo : -1;
+        }
+    }
+
+    static class Timetable {
+        final Pattern[] patterns; final int[] base;       // stops of pattern p are base[p]..base[p+1]-1
+        final int[] stopPattern, stopLatE7, stopLngE7;
+        final RouteGrid stopGrid;
+        final int[] transStart, transTo, transSec;
+
+        /**
+         * edges holds each line's transfers, per stop, as (lineId, position, seconds) triples and is
+         * updated in place: lines in changed get theirs from grid lookups around their own stops, the
+         * other lines only lose the triples into changed or removed lines and gain the reverse ones.
+         */
+        Timetable(Pattern[] patterns, Map<Integer, int[][]> edges, Set<Integer> changed){
+            this.patterns = patterns;
+            base = new int[patterns.length+1];
+            Map<Integer, Integer> index = new HashMap<>();
+            for (int p=0;p<patterns.length;p++) { base[p+1] = base[p]+patterns[p].routeIdx.length; index.put(patterns[p].lineId, p); }
+            int n = base[patterns.length];
+            stopPattern = new int[n]; stopLatE7 = new int[n]; stopLngE7 = new int[n];
+            for (int p=0;p<patterns.length;p++) {
+                Route r = patterns[p].route;
+                for (int k=0;k<patterns[p].routeIdx.length;k++) { int s = base[p]+k; stopPattern[s]=p; stopLatE7[s]=r.latE7[patterns[p].routeIdx[k]]; stopLngE7[s]=r.lngE7[patterns[p].routeIdx[k]]; }
+            }
+            stopGrid = new RouteGrid(stopLatE7, stopLngE7);
+            edges.keySet().removeIf(id -> !index.containsKey(id) || changed.contains(id));
+            for (int[][] out : edges.values())
+                for (int k=0;k<out.length;k++) out[k] = without(out[k], changed, index);
+            for (int p=0;p<patterns.length;p++) {
+                Pattern pt = patterns[p];
+                if (edges.containsKey(pt.lineId)) continue;
+                int[][] out = new int[pt.routeIdx.length][];
+                for (int k=0;k<out.length;k++) {
+                    int from = base[p]+k, pos = k;
+                    int[][] mine = {new int[0]};
+                    stopGrid.within(stopGrid.lat(from), stopGrid.lng(from), MAX_TRANSFER_M, o -> {
+                        int q = stopPattern[o];
+                        if (q==stopPattern[from]) return;
+                        int sec = (int)Math.ceil(Main.distanceMeters(stopGrid.lat(from), stopGrid.lng(from), stopGrid.lat(o), stopGrid.lng(o))/WALK_MPS);
+                        mine[0] = triple(mine[0], patterns[q].lineId, o-base[q], sec);
+                        int[][] back = changed.contains(patterns[q].lineId) ? null : edges.get(patterns[q].lineId);
+                        if (back!=null) back[o-base[q]] = triple(back[o-base[q]], pt.lineId, pos, sec);
+                    });
+                    out[k] = mine[0];
+                }
+                edges.put(pt.lineId, out);
+            }
+            transStart = new int[n+1];
+            int m = 0;
+            for (int p=0;p<patterns.length;p++) for (int[] e : edges.get(patterns[p].lineId)) m += e.length/3;
+            transTo = new int[m]; transSec = new int[m];
+            m = 0;
+            for (int p=0;p<patterns.length;p++) {
+                int[][] out = edges.get(patterns[p].lineId);
+                for (int k=0;k<out.length;k++) {
+                    for (int i=0;i<out[k].length;i+=3) { transTo[m] = base[index.get(out[k][i])]+out[k][i+1]; transSec[m++] = out[k][i+2]; }
+                    transStart[base[p]+k+1] = m;
+                }
+            }
+        }
+
+        static int[] triple(int[] a, int lineId, int pos, int sec){
+            int[] b = Arrays.copyOf(a, a.length+3);
+            b[a.length] = lineId; b[a.length+1] = pos; b[a.length+2] = sec;
+            return b;
+        }
+
+        static int[] without(int[] a, Set<Integer> changed, Map<Integer, Integer> index){
+            int n = 0;
+            for (int i=0;i<a.length;i+=3) if (index.containsKey(a[i]) && !changed.contains(a[i])) n += 3;
+            if (n==a.length) return a;
+            int[] b = new int[n]; n = 0;
+            for (int i=0;i<a.length;i+=3) if (index.containsKey(a[i]) && !changed.contains(a[i])) { b[n++] = a[i]; b[n++] = a[i+1]; b[n++] = a[i+2]; }
+            return b;
+        }
+        int stops(){ return stopPattern.length; }
+    }
+
+    static class Slice {
+        final Timetable tt; final Trips[] trips; final int day, hour;   // trips[p] times tt.patterns[p]
+        Slice(Timetable tt, Trips[] trips, int day, int hour){this.tt=tt; this.trips=trips; this.day=day; this.hour=hour;}
+    }
+
+    static class Leg {String mode; int lineId; Route route; int fromIdx, toIdx; int depart, arrive;}   // fromIdx/toIdx index route
+    static class Journey {List<Leg> legs = new ArrayList<>(); int depart, arrive, transfers;}
+
+    final Map<Integer, Pattern> patterns = new HashMap<>();    // guarded by this, as are the fields below
+    final Map<Integer, int[][]> transfers = new HashMap<>();   // see Timetable
+    final Map<Integer, Trips> trips = new HashMap<>();         // for day and hour
+    final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    volatile boolean stale = true;
+    Timetable timetable;
+    Slice slice;
+    int day = -1, hour = -1;
+
+    void invalidate(int lineId){ dirty.add(lineId); stale = true; }
+
+    Slice slice(Main.State st){ return slice(st, Schedule.today(), LocalTime.now().getHour()); }
+
+    /** The current timetable timed for today and h; only trips of changed lines are rebuilt unless the hour turned. */
+    synchronized Slice slice(Main.State st, int today, int h){
+        if (today!=day || h!=hour) { day = today; hour = h; trips.clear(); }
+        Timetable tt = timetable(st);
+        if (slice!=null && slice.tt==tt && slice.day==day && slice.hour==hour) return slice;
+        Trips[] ts = new Trips[tt.patterns.length];
+        for (int p=0;p<ts.length;p++) { Pattern pt = tt.patterns[p]; ts[p] = trips.computeIfAbsent(pt.lineId, id -> buildTrips(st, pt, today, h)); }
+        return slice = new Slice(tt, ts, day, hour);
+    }
+
+    synchronized Timetable timetable(Main.State st){
+        if (!stale && timetable!=null) return timetable;
+        stale = false;
+        Set<Integer> changed = new HashSet<>();
+        for (Integer id : dirty.toArray(new Integer[0])) { dirty.remove(id); patterns.remove(id); trips.remove(id); changed.add(id); }
+        patterns.keySet().removeIf(id -> !st.lines.containsKey(id));
+        trips.keySet().removeIf(id -> !st.lines.containsKey(id));
+        List<Pattern> ps = new ArrayList<>();
+        for (Main.Line l : st.lines.values()) ps.add(patterns.computeIfAbsent(l.id, id -> { changed.add(id); return buildPattern(l); }));
+        return timetable = new Timetable(ps.toArray(new Pattern[0]), transfers, changed);
+    }
+
+    static Pattern buildPattern(Main.Line l){
+        Route r = Main.routeOf(l);
+        IntStream.Builder idx = IntStream.builder();
+        double last = -STOP_SPACING_M;
+        for (int i=0;i<r.size();i++) if (i==r.size()-1 || r.cum[i]-last >= STOP_SPACING_M) { idx.add(i); last = r.cum[i]; }
+        return new Pattern(l.id, r, idx.build().toArray());
+    }
+
+    static Trips buildTrips(Main.State st, Pattern pt, int day, int hour){
+        int[] offset = new int[pt.routeIdx.length];
+        for (int k=0;k<offset.length;k++) offset[k] = (int)Math.round(Main.eta.seconds(pt.lineId, pt.route, 0, pt.routeIdx[k], hour*3600));
+        return new Trips(offset, Main.scheduleOf(st, pt.lineId).byDay[day]);
+    }
+
+    /**
+     * Pareto-optimal journeys (arrival time vs. number of rides), fewest rides first. Walking the
+     * whole way is the zero-ride journey when the destination is within MAX_ACCESS_M.
+     */
+    List<Journey> plan(Main.State st, double oLat, double oLng, double dLat, double dLng, int departSec){
+        Slice sl = slice(st);
+        Timetable tt = sl.tt;
+        int n = tt.stops();
+        List<Journey> out = new ArrayList<>();
+        double direct = Main.distanceMeters(oLat, oLng, dLat, dLng);
+        if (direct<=MAX_ACCESS_M) {
+            Journey j = new Journey(); j.depart = departSec; j.arrive = departSec+(int)Math.ceil(direct/WALK_MPS);
+            Leg w = new Leg(); w.mode="walk"; w.lineId=-1; w.depart=j.depart; w.arrive=j.arrive; j.legs.add(w);
+            out.add(j);
+        }
+        if (n==0) return out;
+        int[][] arr = new int[MAX_ROUNDS+1][n];
+        int[][] kind = new int[MAX_ROUNDS+1][n];   // 0 copied, 1 access, 2 ride, 3 walk
+        int[][] from = new int[MAX_ROUNDS+1][n];
+        int[][] trip = new int[MAX_ROUNDS+1][n];
+        for (int[] a : arr) Arrays.fill(a, INF);
+        int[] best = new int[n]; Arrays.fill(best, INF);
+        int[] egress = new int[n]; Arrays.fill(egress, -1);
+        tt.stopGrid.within(dLat, dLng, MAX_ACCESS_M, s -> egress[s] = (int)Math.ceil(Main.distanceMeters(dLat, dLng, tt.stopGrid.lat(s), tt.stopGrid.lng(s))/WALK_MPS));
+        boolean[] marked = new boolean[n];
+        tt.stopGrid.within(oLat, oLng, MAX_ACCESS_M, s -> {
+            arr[0][s] = best[s] = departSec + (int)Math.ceil(Main.distanceMeters(oLat, oLng, tt.stopGrid.lat(s), tt.stopGrid.lng(s))/WALK_MPS);
+            kind[0][s] = 1; marked[s] = true;
+        });
+        int bestDest = out.isEmpty() ? INF : out.get(0).arrive;
+        for (int k=1;k<=MAX_ROUNDS;k++) {
+            System.arraycopy(arr[k-1], 0, arr[k], 0, n);
+            int[] startPos = new int[tt.patterns.length]; Arrays.fill(startPos, -1);
+            boolean any = false;
+            for (int s=0;s<n;s++) if (marked[s]) {
+                marked[s] = false; any = true;
+                int p = tt.stopPattern[s], pos = s-tt.base[p];
+                if (startPos[p]<0 || pos<startPos[p]) startPos[p] = pos;
+            }
+            if (!any) break;
+            boolean[] rode = new boolean[n];
+            for (int p=0;p<tt.patterns.length;p++) {
+                if (startPos[p]<0) continue;
+                Trips tr = sl.trips[p];
+                int t = -1, boardStop = -1;
+                for (int pos=startPos[p]; pos<tr.offset.length; pos++) {
+                    int s = tt.base[p]+pos;
+                    if (t>=0) {
+                        int a = tr.departures[t]+tr.offset[pos];
+                        if (a < best[s] && a < bestDest) { arr[k][s]=best[s]=a; kind[k][s]=2; from[k][s]=boardStop; trip[k][s]=t; rode[s]=true; }
+                    }
+                    int prev = arr[k-1][s];
+                    if (prev!=INF && (t<0 || prev <= tr.departures[t]+tr.offset[pos])) {
+                        int nt = tr.earliestTrip(pos, prev);
+                        if (nt>=0 && (t<0 || nt<t)) { t = nt; boardStop = s; }
+                    }
+                }
+            }
+            for (int s=0;s<n;s++) {
+                if (!rode[s]) continue;
+                marked[s] = true;
+                for (int e=tt.transStart[s]; e<tt.transStart[s+1]; e++) {
+                    int o = tt.transTo[e], a = arr[k][s]+tt.transSec[e];
+                    if (a < best[o] && a < bestDest) { arr[k][o]=best[o]=a; kind[k][o]=3; from[k][o]=s; marked[o]=true; }
+                }
+            }
+            int destStop = -1, destArr = bestDest;
+            for (int s=0;s<n;s++) if (egress[s]>=0 && arr[k][s]!=INF && kind[k][s]>=2 && arr[k][s]+egress[s] < destArr) { destArr = arr[k][s]+egress[s]; destStop = s; }
+            if (destStop>=0) { bestDest = destArr; out.add(reconstruct(sl, arr, kind, from, trip, k, destStop, egress[destStop], departSec)); }
+        }
+        return out;
+    }
+
+    Journey reconstruct(Slice sl, int[][] arr, int[][] kind, int[][] from, int[][] trip, int k, int s, int egressSec, int departSec){
+        Timetable tt = sl.tt;
+        Journey j = new Journey();
+        j.arrive = arr[k][s]+egressSec;
+        Leg tail = new Leg(); tail.mode="walk"; tail.depart=arr[k][s]; tail.arrive=j.arrive; tail.lineId=-1;
+        if (egressSec>0) j.legs.add(tail);
+        while (k>0) {
+            if (kind[k][s]==0) { k--; continue; }
+            if (kind[k][s]==3) {
+                Leg w = new Leg(); w.mode="walk"; w.lineId=-1; w.arrive=arr[k][s]; s = from[k][s]; w.depart=arr[k][s];
+                j.legs.add(0, w); continue;
+            }
+            Pattern pt = tt.patterns[tt.stopPattern[s]];
+            Trips tr = sl.trips[tt.stopPattern[s]];
+            int b = from[k][s], t = trip[k][s];
+            Leg ride = new Leg(); ride.mode="bus"; ride.lineId=pt.lineId; ride.route=pt.route;
+            ride.fromIdx = pt.routeIdx[b-tt.base[tt.stopPattern[s]]]; ride.toIdx = pt.routeIdx[s-tt.base[tt.stopPattern[s]]];
+            ride.depart = tr.departures[t]+tr.offset[b-tt.base[tt.stopPattern[s]]]; ride.arrive = arr[k][s];
+            j.legs.add(0, ride); j.transfers++;
+            s = b; k--;
+        }
+        j.transfers = Math.max(0, j.transfers-1);
+        if (arr[0][s]>departSec) { Leg w = new Leg(); w.mode="walk"; w.lineId=-1; w.depart=departSec; w.arrive=arr[0][s]; j.legs.add(0, w); }
+        j.depart = departSec;
+        return j;
+    }
+}